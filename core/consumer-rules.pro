@@ -0,0 +1,10 @@
+# Generated state dispatchers are looked up by name from StateMachine
+-keep class * implements io.appservice.core.statemachine.StateDispatcher {
+    <init>();
+}
+-keepnames class * extends io.appservice.core.statemachine.StateContext
+
+# Persisted @StateField values are read and written by name
+-keepclassmembers class * extends io.appservice.core.statemachine.StateContext {
+    @io.appservice.core.statemachine.annotations.StateField *;
+}
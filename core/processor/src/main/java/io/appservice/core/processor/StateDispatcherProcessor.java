@@ -0,0 +1,375 @@
+package io.appservice.core.processor;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code <ContextName>_StateDispatcher} for every state context declaring
+ * {@code @StateEntry}, {@code @StateExit}, {@code @StateEvent}, {@code @StateTimer} or
+ * {@code @StateThread} members. Contexts with private handlers are skipped and keep using
+ * the reflective dispatcher.
+ */
+public class StateDispatcherProcessor extends AbstractProcessor {
+
+    private static final String ANNOTATIONS = "io.appservice.core.statemachine.annotations.";
+    private static final String STATE_CONTEXT_SETTINGS = ANNOTATIONS + "StateContextSettings";
+    private static final String STATE_ENTRY = ANNOTATIONS + "StateEntry";
+    private static final String STATE_EXIT = ANNOTATIONS + "StateExit";
+    private static final String STATE_EVENT = ANNOTATIONS + "StateEvent";
+    private static final String STATE_TIMER = ANNOTATIONS + "StateTimer";
+    private static final String STATE_THREAD = ANNOTATIONS + "StateThread";
+
+    private static final String STATE_CONTEXT = "io.appservice.core.statemachine.StateContext";
+    private static final String STATE_CONTEXT_THREAD = STATE_CONTEXT + ".StateContextThread";
+    private static final String SUFFIX = "_StateDispatcher";
+
+    private final Set<String> mGenerated = new HashSet<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<>(Arrays.asList(
+                STATE_ENTRY, STATE_EXIT, STATE_EVENT, STATE_TIMER, STATE_THREAD, STATE_CONTEXT_SETTINGS));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<TypeElement> contexts = new LinkedHashSet<>();
+        for (TypeElement annotation : annotations) {
+            String name = annotation.getQualifiedName().toString();
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (name.equals(STATE_CONTEXT_SETTINGS)) {
+                    if (element instanceof TypeElement) {
+                        contexts.add((TypeElement) element);
+                    }
+                } else if (element.getEnclosingElement() instanceof TypeElement) {
+                    contexts.add((TypeElement) element.getEnclosingElement());
+                }
+            }
+        }
+        for (TypeElement context : contexts) {
+            String name = processingEnv.getElementUtils().getBinaryName(context).toString();
+            if (mGenerated.add(name)) {
+                generate(context);
+            }
+        }
+        return false;
+    }
+
+    private static class Handler {
+        private final String mName;
+        private final boolean mVoid;
+        private final Map<String, Object> mValues;
+
+        private Handler(String name, boolean isVoid, Map<String, Object> values) {
+            mName = name;
+            mVoid = isVoid;
+            mValues = values;
+        }
+    }
+
+    private AnnotationMirror getMirror(Element element, String type) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+            if (annotation.getQualifiedName().contentEquals(type)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Object> getValues(AnnotationMirror mirror) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+                processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+            values.put(value.getKey().getSimpleName().toString(), value.getValue().getValue());
+        }
+        return values;
+    }
+
+    private boolean isPrivate(Element element) {
+        return element.getModifiers().contains(Modifier.PRIVATE);
+    }
+
+    private boolean isAccessible(TypeElement type) {
+        Element element = type;
+        while (element instanceof TypeElement) {
+            if (isPrivate(element)) {
+                return false;
+            }
+            element = element.getEnclosingElement();
+        }
+        return true;
+    }
+
+    private void skip(TypeElement context, Element element, String reason) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                "State dispatcher not generated for " + context.getQualifiedName() + ": " + reason,
+                element);
+    }
+
+    private void generate(TypeElement context) {
+        if (!isAccessible(context)) {
+            skip(context, context, "context is private");
+            return;
+        }
+        TypeMirror threadType = processingEnv.getElementUtils().getTypeElement(STATE_CONTEXT_THREAD).asType();
+        List<Handler> entries = new ArrayList<>();
+        List<Handler> exits = new ArrayList<>();
+        List<Handler> events = new ArrayList<>();
+        List<Handler> timers = new ArrayList<>();
+        List<Handler> threads = new ArrayList<>();
+        // same precedence as the reflective scan: entry, exit, event, timer
+        for (ExecutableElement method : ElementFilter.methodsIn(context.getEnclosedElements())) {
+            String[] kinds = {STATE_ENTRY, STATE_EXIT, STATE_EVENT, STATE_TIMER};
+            List<?>[] targets = {entries, exits, events, timers};
+            for (int index = 0; index < kinds.length; index++) {
+                AnnotationMirror mirror = getMirror(method, kinds[index]);
+                if (mirror == null) {
+                    continue;
+                }
+                if (isPrivate(method)) {
+                    skip(context, method, method.getSimpleName() + " is private");
+                    return;
+                }
+                Map<String, Object> values = getValues(mirror);
+                if (kinds[index].equals(STATE_TIMER) && values.get("id").toString().length() == 0) {
+                    values.put("id", method.getSimpleName().toString());
+                }
+                @SuppressWarnings("unchecked")
+                List<Handler> target = (List<Handler>) targets[index];
+                target.add(new Handler(method.getSimpleName().toString(),
+                        method.getReturnType().getKind() == TypeKind.VOID,
+                        values));
+                break;
+            }
+        }
+        for (TypeElement inner : ElementFilter.typesIn(context.getEnclosedElements())) {
+            AnnotationMirror mirror = getMirror(inner, STATE_THREAD);
+            if (mirror == null) {
+                continue;
+            }
+            if (!processingEnv.getTypeUtils().isAssignable(inner.asType(), threadType)) {
+                continue;
+            }
+            if (isPrivate(inner) || inner.getModifiers().contains(Modifier.STATIC)) {
+                skip(context, inner, inner.getSimpleName() + " is private or static");
+                return;
+            }
+            boolean constructor = false;
+            for (ExecutableElement c : ElementFilter.constructorsIn(inner.getEnclosedElements())) {
+                if (c.getParameters().isEmpty() && !isPrivate(c)) {
+                    constructor = true;
+                }
+            }
+            if (!constructor) {
+                skip(context, inner, inner.getSimpleName() + " has no accessible default constructor");
+                return;
+            }
+            threads.add(new Handler(inner.getSimpleName().toString(), false, getValues(mirror)));
+        }
+        AnnotationMirror settings = getMirror(context, STATE_CONTEXT_SETTINGS);
+        try {
+            write(context,
+                    settings != null ? getValues(settings) : null,
+                    entries, exits, events, timers, threads);
+        } catch (Exception e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not write state dispatcher: " + e.getMessage(), context);
+        }
+    }
+
+    private static String states(Object value) {
+        StringBuilder sb = new StringBuilder("new int[]{");
+        List<?> states = (List<?>) value;
+        for (int index = 0; index < states.size(); index++) {
+            if (index > 0) {
+                sb.append(", ");
+            }
+            sb.append(((AnnotationValue) states.get(index)).getValue());
+        }
+        return sb.append("}").toString();
+    }
+
+    private static String literal(Object value) {
+        if (value instanceof String) {
+            return quote((String) value);
+        }
+        if (value instanceof Long) {
+            return value + "L";
+        }
+        if (value instanceof List) {
+            return states(value);
+        }
+        return String.valueOf(value);
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append("\"").toString();
+    }
+
+    private void write(TypeElement context,
+                       Map<String, Object> settings,
+                       List<Handler> entries,
+                       List<Handler> exits,
+                       List<Handler> events,
+                       List<Handler> timers,
+                       List<Handler> threads) throws Exception {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(context);
+        String packageName = pkg.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(context).toString();
+        String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + SUFFIX;
+        String contextName = context.getQualifiedName().toString();
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                (packageName.isEmpty() ? "" : packageName + ".") + simpleName, context);
+        Writer writer = file.openWriter();
+        PrintWriter out = new PrintWriter(writer);
+        if (!packageName.isEmpty()) {
+            out.println("package " + packageName + ";");
+            out.println();
+        }
+        out.println("import android.content.Context;");
+        out.println("import android.content.Intent;");
+        out.println();
+        out.println("import io.appservice.core.statemachine.StateContext;");
+        out.println("import io.appservice.core.statemachine.StateDispatcher;");
+        out.println();
+        out.println("// Generated by " + StateDispatcherProcessor.class.getName() + ", do not edit");
+        out.println("public final class " + simpleName + " implements StateDispatcher {");
+        out.println();
+        out.println("    private static int result(Integer state) {");
+        out.println("        return state != null ? state : StateContext.SAME_STATE;");
+        out.println("    }");
+        out.println();
+
+        out.println("    @Override");
+        out.println("    public void describe(Registry registry) {");
+        if (settings != null) {
+            out.println("        registry.settings(" + literal(settings.get("initial")) + ", "
+                    + literal(settings.get("recover")) + ", "
+                    + literal(settings.get("crash")) + ", "
+                    + literal(settings.get("store")) + ");");
+        }
+        for (int index = 0; index < entries.size(); index++) {
+            Map<String, Object> v = entries.get(index).mValues;
+            out.println("        registry.entry(" + index + ", " + literal(v.get("states")) + ", "
+                    + literal(v.get("foreground")) + ", " + literal(v.get("store")) + ", "
+                    + literal(v.get("durable")) + ");");
+        }
+        for (int index = 0; index < exits.size(); index++) {
+            Map<String, Object> v = exits.get(index).mValues;
+            out.println("        registry.exit(" + index + ", " + literal(v.get("states")) + ");");
+        }
+        for (int index = 0; index < events.size(); index++) {
+            Map<String, Object> v = events.get(index).mValues;
+            out.println("        registry.event(" + index + ", " + literal(v.get("states")) + ", "
+                    + literal(v.get("id")) + ", " + literal(v.get("external")) + ", "
+                    + literal(v.get("coalesce")) + ");");
+        }
+        for (int index = 0; index < timers.size(); index++) {
+            Map<String, Object> v = timers.get(index).mValues;
+            out.println("        registry.timer(" + index + ", " + literal(v.get("states")) + ", "
+                    + literal(v.get("id")) + ", " + literal(v.get("timeout")) + ", "
+                    + literal(v.get("slack")) + ", " + literal(v.get("factor")) + ", "
+                    + literal(v.get("max")) + ", " + literal(v.get("jitter")) + ", "
+                    + literal(v.get("reset")) + ");");
+        }
+        for (int index = 0; index < threads.size(); index++) {
+            Map<String, Object> v = threads.get(index).mValues;
+            out.println("        registry.thread(" + index + ", " + literal(v.get("states")) + ", "
+                    + literal(v.get("onSuccessState")) + ", " + literal(v.get("onErrorState")) + ", "
+                    + literal(v.get("onAbortState")) + ");");
+        }
+        out.println("    }");
+        out.println();
+
+        writeSwitch(out, "int entry(StateContext ctx, int handler, Context context)", contextName, entries, "context", true);
+        writeSwitch(out, "void exit(StateContext ctx, int handler, Context context)", contextName, exits, "context", false);
+        writeSwitch(out, "int event(StateContext ctx, int handler, Context context, Intent intent)", contextName, events, "context, intent", true);
+        writeSwitch(out, "int timer(StateContext ctx, int handler, Context context)", contextName, timers, "context", true);
+
+        out.println("    @Override");
+        out.println("    public StateContext.StateContextThread thread(StateContext ctx, int handler) {");
+        if (!threads.isEmpty()) {
+            out.println("        " + contextName + " c = (" + contextName + ") ctx;");
+            out.println("        switch (handler) {");
+            for (int index = 0; index < threads.size(); index++) {
+                out.println("            case " + index + ":");
+                out.println("                return c.new " + threads.get(index).mName + "();");
+            }
+            out.println("        }");
+        }
+        out.println("        throw new IllegalArgumentException(\"Unknown thread \" + handler);");
+        out.println("    }");
+        out.println("}");
+        out.close();
+    }
+
+    private void writeSwitch(PrintWriter out,
+                             String signature,
+                             String contextName,
+                             List<Handler> handlers,
+                             String arguments,
+                             boolean result) {
+        out.println("    @Override");
+        out.println("    public " + signature + " throws Exception {");
+        if (!handlers.isEmpty()) {
+            out.println("        " + contextName + " c = (" + contextName + ") ctx;");
+            out.println("        switch (handler) {");
+            for (int index = 0; index < handlers.size(); index++) {
+                Handler handler = handlers.get(index);
+                String call = "c." + handler.mName + "(" + arguments + ")";
+                out.println("            case " + index + ":");
+                if (!result) {
+                    out.println("                " + call + ";");
+                    out.println("                return;");
+                } else if (handler.mVoid) {
+                    out.println("                " + call + ";");
+                    out.println("                return StateContext.SAME_STATE;");
+                } else {
+                    out.println("                return result(" + call + ");");
+                }
+            }
+            out.println("        }");
+        }
+        out.println("        throw new IllegalArgumentException(\"Unknown handler \" + handler);");
+        out.println("    }");
+        out.println();
+    }
+}
@@ -6,35 +6,79 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.support.v4.content.LocalBroadcastManager;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * Routes broadcasts to handlers by action.
+ * <p>
+ * The routing table is copied on every change and published as a whole, so {@link #handle(Context, Intent)}
+ * takes no lock and allocates nothing. Each registration call installs at most one external and one
+ * local receiver, whose filter covers all actions of the call which no receiver covers yet.
+ */
 public class BroadcastManager {
 
     public interface Handler{
         void handle (Context ctx, Intent intent );
     }
 
-     private final Map< String , List< Handler >> mHandlers = new HashMap<>();
+    /**
+     * Actions a handler is registered for, see {@link #register(Context, List)}.
+     */
+    public static class Binding {
+        private final Set<String> mExternal;
+        private final Set<String> mLocal;
+        private final Handler mHandler;
 
-    private final Map < String , BroadcastReceiver > mExternalReceivers = new HashMap<>();
-    private final Map < String , BroadcastReceiver > mLocalReceivers = new HashMap<>();
+        public Binding(Set<String> external, Set<String> local, Handler handler) {
+            mExternal = external;
+            mLocal = local;
+            mHandler = handler;
+        }
+    }
+
+    private static class Receiver extends BroadcastReceiver {
+        private final BroadcastManager mManager;
+        private final Set<String> mActions;
+        private final boolean mLocal;
+
+        private Receiver(BroadcastManager manager, Set<String> actions, boolean local) {
+            mManager = manager;
+            mActions = actions;
+            mLocal = local;
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mManager.handle(context, intent);
+        }
+    }
+
+    private static final Handler[] NO_HANDLERS = new Handler[0];
+
+    private volatile Map<String, Handler[]> mRoutes = Collections.emptyMap();
+
+    // guarded by this, together with every change of mRoutes
+    private final List<Receiver> mReceivers = new ArrayList<>();
 
     public static BroadcastManager getInstance(Context ctx) throws Exception{
         return CoreApp.getSingleton(ctx, BroadcastManager.class);
     }
 
     public void handle (Context ctx, Intent intent){
-        if ( intent.getAction() == null){
+        String action = intent.getAction();
+        if ( action == null){
             return;
         }
-        List <Handler> handlers;
-        synchronized (mHandlers){
-            handlers = mHandlers.get(intent.getAction());
+        Handler[] handlers = mRoutes.get(action);
+        if ( handlers == null ){
+            return;
         }
         for ( Handler handler: handlers){
             handler.handle(ctx, intent);
@@ -42,99 +86,130 @@ public class BroadcastManager {
     }
 
     public void registerExternal (Context ctx, String external, Handler handler ){
-        Set < String > set = new HashSet<>();
-        set.add(external);
-        register(ctx, set, null, handler);
+        register(ctx, Collections.singleton(external), null, handler);
     }
 
     public void registerLocal (Context ctx, String local, Handler handler ){
-        Set < String > set = new HashSet<>();
-        set.add(local);
-        register(ctx, null, set, handler);
+        register(ctx, null, Collections.singleton(local), handler);
     }
 
     public void register (Context ctx, Set< String > external, Set <String > local, final Handler handler ){
-        Set < String > total = new HashSet<>();
-        if ( external != null )total.addAll(external);
-        if ( local != null ) total.addAll(local);
-        synchronized (mHandlers) {
-            for (String action : total) {
-                if ( !mHandlers.containsKey(action)){
-                    mHandlers.put(action, new LinkedList<Handler>());
-                }
-                if ( !mHandlers.get(action).contains(handler)){
-                    mHandlers.get(action).add(handler);
-                }
+        register(ctx, Collections.singletonList(new Binding(external, local, handler)));
+    }
+
+    /**
+     * Register all bindings with a single routing table update.
+     */
+    public synchronized void register (Context ctx, List<Binding> bindings){
+        Map<String, Handler[]> routes = new HashMap<>(mRoutes);
+        Set<String> external = new HashSet<>();
+        Set<String> local = new HashSet<>();
+        for (Binding binding : bindings) {
+            if (binding.mExternal != null) {
+                route(routes, binding.mExternal, binding.mHandler);
+                external.addAll(binding.mExternal);
             }
-        }
-        synchronized (mExternalReceivers){
-            for (String action : total) {
-                if ( !mExternalReceivers.containsKey(action)){
-                    BroadcastReceiver receiver = new BroadcastReceiver() {
-                        @Override
-                        public void onReceive(Context context, Intent intent) {
-                            handle(context, intent);
-                        }
-                    };
-                    if (external != null && external.contains(action)) {
-                        mExternalReceivers.put(action, receiver);
-                        IntentFilter filter = new IntentFilter();
-                        filter.addAction(action);
-                        ctx.registerReceiver(receiver, filter);
-                    }
-                    if (local != null && local.contains(action)){
-                        mLocalReceivers.put(action, receiver);
-                        IntentFilter filter = new IntentFilter();
-                        filter.addAction(action);
-                        LocalBroadcastManager.getInstance(ctx).registerReceiver(receiver, filter);
-                    }
-                }
+            if (binding.mLocal != null) {
+                route(routes, binding.mLocal, binding.mHandler);
+                local.addAll(binding.mLocal);
             }
         }
+        mRoutes = routes;
+        for (Receiver receiver : mReceivers) {
+            (receiver.mLocal ? local : external).removeAll(receiver.mActions);
+        }
+        if (!external.isEmpty()) {
+            Receiver receiver = new Receiver(this, external, false);
+            ctx.registerReceiver(receiver, filter(external));
+            mReceivers.add(receiver);
+        }
+        if (!local.isEmpty()) {
+            Receiver receiver = new Receiver(this, local, true);
+            LocalBroadcastManager.getInstance(ctx).registerReceiver(receiver, filter(local));
+            mReceivers.add(receiver);
+        }
     }
 
-    public void unregister (Context ctx, Handler handler){
-        Set < String > remove = new HashSet<>();
-        synchronized (mHandlers){
-            for ( Map.Entry < String , List < Handler > > entry: mHandlers.entrySet()){
-                if ( entry.getValue().remove(handler)){
-                    if ( entry.getValue().size() == 0 ) {
-                        remove.add(entry.getKey());
-                    }
+    private static void route(Map<String, Handler[]> routes, Set<String> actions, Handler handler) {
+        for (String action : actions) {
+            Handler[] handlers = routes.get(action);
+            if (handlers == null) {
+                handlers = NO_HANDLERS;
+            }
+            boolean present = false;
+            for (Handler registered : handlers) {
+                if (registered == handler) {
+                    present = true;
+                    break;
                 }
             }
-            for ( String action : remove ){
-                mHandlers.remove(action);
+            if (!present) {
+                Handler[] added = new Handler[handlers.length + 1];
+                System.arraycopy(handlers, 0, added, 0, handlers.length);
+                added[handlers.length] = handler;
+                routes.put(action, added);
             }
         }
-        synchronized (mExternalReceivers){
-            for ( String action : remove ){
-                BroadcastReceiver receiver = mExternalReceivers.get(action);
-                if ( receiver != null ){
-                    ctx.unregisterReceiver(receiver);
+    }
+
+    private static IntentFilter filter(Set<String> actions) {
+        IntentFilter filter = new IntentFilter();
+        for (String action : actions) {
+            filter.addAction(action);
+        }
+        return filter;
+    }
+
+    public synchronized void unregister (Context ctx, Handler handler){
+        Map<String, Handler[]> routes = new HashMap<>();
+        for ( Map.Entry < String , Handler[] > entry: mRoutes.entrySet()){
+            Handler[] handlers = entry.getValue();
+            int kept = 0;
+            for (Handler registered : handlers) {
+                if (registered != handler) {
+                    kept++;
                 }
             }
-        }
-        synchronized (mLocalReceivers){
-            for ( String action : remove ){
-                BroadcastReceiver receiver = mLocalReceivers.get(action);
-                if ( receiver != null ){
-                    LocalBroadcastManager.getInstance(ctx).unregisterReceiver(receiver);
+            if (kept == handlers.length) {
+                routes.put(entry.getKey(), handlers);
+            } else if (kept > 0) {
+                Handler[] remaining = new Handler[kept];
+                int index = 0;
+                for (Handler registered : handlers) {
+                    if (registered != handler) {
+                        remaining[index++] = registered;
+                    }
                 }
+                routes.put(entry.getKey(), remaining);
             }
         }
+        mRoutes = routes;
+        // a receiver goes once none of its actions is routed anymore
+        Iterator<Receiver> it = mReceivers.iterator();
+        while (it.hasNext()) {
+            Receiver receiver = it.next();
+            if (!Collections.disjoint(receiver.mActions, routes.keySet())) {
+                continue;
+            }
+            unregisterReceiver(ctx, receiver);
+            it.remove();
+        }
     }
 
-    public void unregisterAll(Context ctx){
-        mHandlers.clear();
-        for (Map.Entry < String , BroadcastReceiver > receiver : mExternalReceivers.entrySet() ){
-            ctx.unregisterReceiver(receiver.getValue());
+    private static void unregisterReceiver(Context ctx, Receiver receiver) {
+        if (receiver.mLocal) {
+            LocalBroadcastManager.getInstance(ctx).unregisterReceiver(receiver);
+        } else {
+            ctx.unregisterReceiver(receiver);
         }
-        for (Map.Entry < String , BroadcastReceiver > receiver : mLocalReceivers.entrySet() ){
-            LocalBroadcastManager.getInstance(ctx).unregisterReceiver(receiver.getValue());
+    }
+
+    public synchronized void unregisterAll(Context ctx){
+        mRoutes = Collections.emptyMap();
+        for (Receiver receiver : mReceivers) {
+            unregisterReceiver(ctx, receiver);
         }
-        mExternalReceivers.clear();
-        mLocalReceivers.clear();
+        mReceivers.clear();
     }
 
 }
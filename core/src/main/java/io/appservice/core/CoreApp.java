@@ -13,6 +13,8 @@ import java.util.UUID;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import io.appservice.core.statemachine.SQLiteStateContextStorage;
+import io.appservice.core.statemachine.StateContextStorage;
 import io.appservice.core.statemachine.StateMachineList;
 import io.appservice.core.statemachine.StateProcessQueue;
 import io.appservice.core.support.WorkerQueue;
@@ -85,6 +87,22 @@ public abstract class CoreApp extends Application {
 
     public abstract int getStorageVersion();
 
+    /**
+     * Number of threads running state machines in parallel lanes, 0 keeps every
+     * machine on the single worker queue.
+     */
+    public int getWorkerLanes() {
+        return 0;
+    }
+
+    /**
+     * Backend keeping the state machines, {@link io.appservice.core.statemachine.JournalStateContextStorage}
+     * trades the SQLite row updates for sequential appends.
+     */
+    public StateContextStorage createStorage(Context ctx) {
+        return new SQLiteStateContextStorage(ctx, getStorageVersion());
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -100,10 +118,11 @@ public abstract class CoreApp extends Application {
         Logger.init(getApplicationContext());
         try {
             mSMList = new StateMachineList(getBaseContext(),
-                    WorkerQueue.getInstance(getApplicationContext()), getStorageVersion());
+                    WorkerQueue.getInstance(getApplicationContext()), createStorage(getBaseContext()), getWorkerLanes());
             init(mSMList);
             mSMList.register(getApplicationContext());
             WorkerQueue.getInstance(getApplicationContext()).start();
+            mSMList.start();
             start();
         } catch (Exception e) {
             Logger.i(LOG_TAG, e.getMessage());
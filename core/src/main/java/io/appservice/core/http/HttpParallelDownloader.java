@@ -0,0 +1,212 @@
+package io.appservice.core.http;
+
+import android.content.Context;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import io.appservice.core.statemachine.StateContext;
+import io.appservice.core.support.TransferPool;
+import io.appservice.core.timer.Clock;
+import io.appservice.core.util.Logger;
+
+/**
+ * Downloads a set of files, each with its own {@link HttpRequestDownloader}. Up to a fixed number of
+ * files are fetched at once on the {@link TransferPool}, and at most a per-host limit of them from the
+ * same host. Files reported done by {@link #isDone(int)} are skipped. The first failure stops the other
+ * files and is rethrown, so aborts and errors end the set like a single download would.
+ */
+public abstract class HttpParallelDownloader implements StateContext.StateContextThread {
+
+    private static final String LOG_TAG = "IOAPP_HttpParallelDownloader";
+
+    private final int mConcurrency;
+    private final int mPerHost;
+
+    private Context mCtx;
+
+    // guarded by this
+    private HttpRequestDownloader mDownloaders[];
+    private String mHosts[];
+    private final List<Integer> mPending = new LinkedList<>();
+    private final Map<String, Integer> mHostLoad = new HashMap<>();
+    private final Map<Integer, HttpRequestDownloader> mActive = new HashMap<>();
+    private Exception mFailure;
+    private boolean mStopped;
+    private int mFiles;
+    private long mBytes;
+
+    private volatile long mElapsed;
+
+    public HttpParallelDownloader(int concurrency, int perHost) {
+        mConcurrency = concurrency;
+        mPerHost = perHost;
+    }
+
+    protected Context getContext() {
+        return mCtx;
+    }
+
+    protected abstract int getCount();
+
+    protected abstract boolean isDone(int index);
+
+    protected abstract HttpRequestDownloader getDownloader(int index) throws Exception;
+
+    /**
+     * Called on a download thread once the file at index is complete.
+     */
+    protected abstract void onDone(int index) throws Exception;
+
+    /**
+     * Called on a download thread with the failure which ends the set.
+     */
+    protected void onFailed(int index, Exception e) {
+    }
+
+    @Override
+    public void run(final Context ctx) throws Exception {
+        mCtx = ctx;
+        int workers;
+        synchronized (this) {
+            int count = getCount();
+            mDownloaders = new HttpRequestDownloader[count];
+            mHosts = new String[count];
+            mPending.clear();
+            mHostLoad.clear();
+            mActive.clear();
+            mFailure = null;
+            mFiles = 0;
+            mBytes = 0;
+            for (int index = 0; index < count; index++) {
+                if (isDone(index)) {
+                    continue;
+                }
+                mDownloaders[index] = getDownloader(index);
+                mHosts[index] = new URL(mDownloaders[index].getURL()).getHost();
+                mPending.add(index);
+            }
+            workers = Math.min(mConcurrency, mPending.size());
+        }
+        long start = Clock.get().elapsed();
+        TransferPool pool = TransferPool.getInstance(ctx);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            tasks.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    work(ctx);
+                }
+            }));
+        }
+        try {
+            pool.join(tasks);
+        } catch (InterruptedException e) {
+            stop();
+            throw new StateContext.StateContextThreadAborted();
+        }
+        mElapsed = Clock.get().elapsed() - start;
+        synchronized (this) {
+            Logger.i(LOG_TAG, "Downloaded " + mFiles + " files " + mBytes + " bytes in " + mElapsed + "ms, "
+                    + getThroughput() + " bytes/s");
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            if (mStopped) {
+                throw new StateContext.StateContextThreadAborted();
+            }
+        }
+    }
+
+    private void work(Context ctx) {
+        int index;
+        while ((index = next()) >= 0) {
+            HttpRequestDownloader downloader = mDownloaders[index];
+            try {
+                downloader.run(ctx);
+                onDone(index);
+                release(index, downloader, true);
+            } catch (Exception e) {
+                release(index, downloader, false);
+                fail(index, e);
+            } catch (Throwable e) {
+                // an error must end the set like a failure, the file is not done
+                release(index, downloader, false);
+                fail(index, new RuntimeException(e));
+            }
+        }
+    }
+
+    private synchronized int next() {
+        while (!mStopped && !mPending.isEmpty()) {
+            Iterator<Integer> it = mPending.iterator();
+            while (it.hasNext()) {
+                int index = it.next();
+                Integer load = mHostLoad.get(mHosts[index]);
+                if (load == null || load < mPerHost) {
+                    it.remove();
+                    mHostLoad.put(mHosts[index], load == null ? 1 : load + 1);
+                    mActive.put(index, mDownloaders[index]);
+                    return index;
+                }
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void release(int index, HttpRequestDownloader downloader, boolean done) {
+        mActive.remove(index);
+        mHostLoad.put(mHosts[index], mHostLoad.get(mHosts[index]) - 1);
+        mBytes += downloader.getReceived();
+        if (done) {
+            mFiles++;
+        }
+        notifyAll();
+    }
+
+    private void fail(int index, Exception e) {
+        synchronized (this) {
+            if (mFailure != null || mStopped) {
+                return;
+            }
+            mFailure = e;
+        }
+        Logger.i(LOG_TAG, "Download " + index + " failed " + e.getMessage());
+        onFailed(index, e);
+        stop();
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStopped = true;
+        for (HttpRequestDownloader downloader : mActive.values()) {
+            downloader.stop();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wall time of the last set in milliseconds.
+     */
+    public long getElapsed() {
+        return mElapsed;
+    }
+
+    /**
+     * Bytes per second over all files of the last set.
+     */
+    public synchronized long getThroughput() {
+        return mElapsed == 0 ? 0 : mBytes * 1000 / mElapsed;
+    }
+}
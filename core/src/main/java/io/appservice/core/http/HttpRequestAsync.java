@@ -6,14 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.SocketException;
 import java.net.URL;
-import java.security.cert.X509Certificate;
-
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 import io.appservice.core.statemachine.StateContext;
 import io.appservice.core.util.Logger;
@@ -35,7 +28,7 @@ public abstract class HttpRequestAsync implements StateContext.StateContextThrea
 
     private HttpURLConnection mCon;
 
-    protected static void copy(InputStream from, OutputStream to)
+    protected static long copy(InputStream from, OutputStream to)
             throws IOException {
         byte[] buf = new byte[BUF_SIZE];
         long total = 0;
@@ -47,6 +40,7 @@ public abstract class HttpRequestAsync implements StateContext.StateContextThrea
             to.write(buf, 0, r);
             total += r;
         }
+        return total;
     }
 
     public HttpRequestAsync() {
@@ -64,28 +58,8 @@ public abstract class HttpRequestAsync implements StateContext.StateContextThrea
             throw new StateContext.StateContextThreadAborted();
         }
         URL obj = new URL(getURL());
-        if (mInsecure) {
-            TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager() {
-                public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-                    return null;
-                }
-
-                public void checkClientTrusted(X509Certificate[] certs, String authType) {
-                }
-
-                public void checkServerTrusted(X509Certificate[] certs, String authType) {
-                }
-            }
-            };
-
-            SSLContext sc = SSLContext.getInstance("SSL");
-            sc.init(null, trustAllCerts, new java.security.SecureRandom());
-            HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-        }
         try {
-            mCon = (HttpURLConnection) obj.openConnection();
-            preprocess(mCon);
-            process(mCon);
+            execute(obj);
             postprocess();
         }catch (IOException e){
             Logger.i(LOG_TAG, "Connection closed");
@@ -94,6 +68,30 @@ public abstract class HttpRequestAsync implements StateContext.StateContextThrea
 
     }
 
+    /**
+     * The request on a single connection, see {@link #preprocess(HttpURLConnection)} and
+     * {@link #process(HttpURLConnection)}.
+     */
+    protected void execute(URL url) throws Exception {
+        HttpTransport transport = HttpTransport.getInstance(getContext());
+        mCon = transport.open(url, mInsecure);
+        try {
+            preprocess(mCon);
+            process(mCon);
+        } catch (Exception e) {
+            mCon.disconnect();
+            throw e;
+        }
+        transport.release(mCon);
+    }
+
+    /**
+     * A further connection to url with the trust policy of this request.
+     */
+    protected HttpURLConnection open(URL url) throws Exception {
+        return HttpTransport.getInstance(getContext()).open(url, mInsecure);
+    }
+
     @Override
     public void stop() {
         if ( mCon != null ){
@@ -1,23 +1,46 @@
 package io.appservice.core.http;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLException;
 
 import io.appservice.core.statemachine.StateContext;
+import io.appservice.core.util.Digest;
 import io.appservice.core.util.Logger;
 
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_PARTIAL;
 
+/**
+ * Downloads to {@link #getPath()}, continuing a partial file with a Range request. With a
+ * {@link #getDigestAlgorithm()} the file is hashed while it is written; the digest state is kept in
+ * a sidecar file next to it, so resuming never reads the downloaded part again, and a file which
+ * already has the {@link #getExpectedDigest()} is not requested at all.
+ */
 public abstract class HttpRequestDownloader extends HttpRequestAsync {
 
     private static final String LOG_TAG = "IOAPP_HttpRequestDownloader";
 
+    private static final String DIGEST_SIDECAR = ".digest";
+    private static final int BUF_SIZE = 0x10000;
+    // digest state is written after this many bytes
+    private static final long DIGEST_CHECKPOINT = 0x400000;
+
+    private final AtomicLong mReceived = new AtomicLong();
+
+    private volatile Digest mDigest;
+
     public HttpRequestDownloader() {
     }
 
@@ -25,6 +48,24 @@ public abstract class HttpRequestDownloader extends HttpRequestAsync {
         super(insecure);
     }
 
+    @Override
+    protected void execute(URL url) throws Exception {
+        File file = new File(getPath());
+        restoreDigest(file.length());
+        if (isComplete(file)) {
+            Logger.i(LOG_TAG, "Already downloaded " + file);
+            return;
+        }
+        stream(url);
+    }
+
+    /**
+     * Download on a single connection, without looking at the file first.
+     */
+    protected void stream(URL url) throws Exception {
+        super.execute(url);
+    }
+
     @Override
     public void preprocess(HttpURLConnection con) throws Exception {
         File file = new File(getPath());
@@ -44,14 +85,174 @@ public abstract class HttpRequestDownloader extends HttpRequestAsync {
         }
         if (response == HTTP_OK ||
             response == HTTP_PARTIAL) {
+            if (response == HTTP_OK) {
+                resetDigest();
+            }
             OutputStream os = new FileOutputStream(getPath(), response == HTTP_PARTIAL);
-            copy(con.getInputStream(), os);
-            os.close();
+            try {
+                mReceived.addAndGet(mDigest != null ? copy(con.getInputStream(), os, mDigest) : copy(con.getInputStream(), os));
+            } finally {
+                os.close();
+                saveDigest();
+            }
         } else {
             Logger.i(LOG_TAG, "Server responded with " + response);
             throw new RuntimeException("Server response code=" + response);
         }
     }
 
+    private long copy(InputStream from, OutputStream to, Digest digest) throws Exception {
+        byte buf[] = new byte[BUF_SIZE];
+        long total = 0;
+        long unsaved = 0;
+        while (true) {
+            int r = from.read(buf);
+            if (r == -1) {
+                break;
+            }
+            to.write(buf, 0, r);
+            digest.update(buf, 0, r);
+            total += r;
+            unsaved += r;
+            if (unsaved >= DIGEST_CHECKPOINT) {
+                saveDigest();
+                unsaved = 0;
+            }
+        }
+        return total;
+    }
+
     public abstract String getPath() throws Exception;
+
+    /**
+     * {@link Digest} algorithm to hash the file with while downloading, null for none.
+     */
+    protected String getDigestAlgorithm() throws Exception {
+        return null;
+    }
+
+    /**
+     * Hex digest the complete file has, null if unknown.
+     */
+    protected String getExpectedDigest() throws Exception {
+        return null;
+    }
+
+    /**
+     * Hex digest of the file as far as it is downloaded, null without a digest algorithm.
+     */
+    public String getDigest() {
+        Digest digest = mDigest;
+        return digest != null ? digest.hex() : null;
+    }
+
+    protected Digest getDigestState() {
+        return mDigest;
+    }
+
+    protected boolean isComplete(File file) throws Exception {
+        String expected = getExpectedDigest();
+        Digest digest = mDigest;
+        return digest != null && expected != null && file.exists()
+                && digest.getLength() == file.length() && expected.equalsIgnoreCase(digest.hex());
+    }
+
+    /**
+     * Digest of the first covered bytes of the file. What the digest in memory or in the sidecar does
+     * not cover yet is read from the file.
+     */
+    protected void restoreDigest(long covered) throws Exception {
+        String algorithm = getDigestAlgorithm();
+        if (algorithm == null) {
+            return;
+        }
+        File file = new File(getPath());
+        Digest digest = mDigest;
+        if (digest == null || digest.getLength() > covered) {
+            digest = loadDigest(new File(file.getPath() + DIGEST_SIDECAR));
+        }
+        if (digest == null || !digest.getAlgorithm().equalsIgnoreCase(algorithm) || digest.getLength() > covered) {
+            digest = Digest.create(algorithm);
+        }
+        if (digest.getLength() < covered) {
+            Logger.i(LOG_TAG, "Hashing " + (covered - digest.getLength()) + " bytes of " + file);
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(digest.getLength());
+                byte buf[] = new byte[BUF_SIZE];
+                while (digest.getLength() < covered) {
+                    int r = raf.read(buf, 0, (int) Math.min(buf.length, covered - digest.getLength()));
+                    if (r == -1) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                    digest.update(buf, 0, r);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        mDigest = digest;
+    }
+
+    private static Digest loadDigest(File sidecar) {
+        if (!sidecar.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(sidecar));
+            try {
+                return Digest.restore(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Logger.w(LOG_TAG, "Could not restore " + sidecar + " " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Start hashing over, the file is written from its beginning.
+     */
+    protected void resetDigest() throws Exception {
+        String algorithm = getDigestAlgorithm();
+        if (algorithm != null) {
+            mDigest = Digest.create(algorithm);
+        }
+    }
+
+    /**
+     * Replace the sidecar with the digest state; it must not cover more than is written to the file.
+     */
+    protected void saveDigest() throws Exception {
+        saveDigest(mDigest);
+    }
+
+    protected void saveDigest(Digest digest) throws Exception {
+        if (digest == null) {
+            return;
+        }
+        File sidecar = new File(getPath() + DIGEST_SIDECAR);
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            digest.save(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(sidecar)) {
+            throw new IOException("Could not write " + sidecar);
+        }
+    }
+
+    /**
+     * Bytes written to the file by this downloader.
+     */
+    public long getReceived() {
+        return mReceived.get();
+    }
+
+    protected void addReceived(long bytes) {
+        mReceived.addAndGet(bytes);
+    }
 }
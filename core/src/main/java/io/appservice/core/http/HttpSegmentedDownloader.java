@@ -0,0 +1,480 @@
+package io.appservice.core.http;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import io.appservice.core.statemachine.StateContext;
+import io.appservice.core.support.TransferPool;
+import io.appservice.core.util.Digest;
+import io.appservice.core.util.Logger;
+
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+
+/**
+ * Downloads large files as several byte ranges at once, each on its own connection, written in place
+ * into the preallocated file. Progress of every range is kept in a sidecar file next to the download,
+ * so a later run continues each range where it stopped. The digest follows the data written without
+ * gaps from the beginning, reading back only what other ranges wrote ahead of it. The first request
+ * asks for the whole rest of the file; servers which ignore Range, and files below the minimum size,
+ * are streamed from its response by {@link HttpRequestDownloader}, larger files take it as their first
+ * range. The ranges run on the {@link TransferPool}.
+ */
+public abstract class HttpSegmentedDownloader extends HttpRequestDownloader {
+
+    private static final String LOG_TAG = "IOAPP_HttpSegmentedDownloader";
+
+    private static final String SIDECAR = ".segments";
+    private static final int SIDECAR_VERSION = 1;
+    private static final int BUF_SIZE = 0x10000;
+    // progress is written after this many bytes of a range
+    private static final long CHECKPOINT = 0x400000;
+
+    private final int mSegments;
+    private final long mMinSize;
+
+    // guarded by this
+    private final List<HttpURLConnection> mConnections = new ArrayList<>();
+    private boolean mStopped;
+    private Exception mFailure;
+    // the server reported another size than the ranges were split for
+    private boolean mResized;
+
+    private long mTotal;
+    // per range: start, end (exclusive) and the next position to write, guarded by this
+    private long mStart[];
+    private long mEnd[];
+    private long mPosition[];
+    // a segment is hashing up to the frontier, guarded by this
+    private boolean mHashing;
+
+    // guards updates of the digest against checkpoints copying it
+    private final Object mDigestLock = new Object();
+    private final Object mCheckpointLock = new Object();
+
+    public HttpSegmentedDownloader(int segments, long minSize) {
+        mSegments = segments;
+        mMinSize = minSize;
+    }
+
+    public HttpSegmentedDownloader(boolean insecure, int segments, long minSize) {
+        super(insecure);
+        mSegments = segments;
+        mMinSize = minSize;
+    }
+
+    @Override
+    protected void execute(URL url) throws Exception {
+        File file = new File(getPath());
+        File sidecar = new File(file.getPath() + SIDECAR);
+        if (restore(sidecar) && file.length() == mTotal) {
+            // the size is known from the sidecar, the ranges go on where they stopped
+            resume(url, null, file, sidecar);
+            return;
+        }
+        if (sidecar.exists()) {
+            // ranges written ahead leave holes, start over
+            Logger.w(LOG_TAG, "Discarding ranges of " + file);
+            sidecar.delete();
+            file.delete();
+            resetDigest();
+        }
+        // no ranges in flight, the file is contiguous
+        restoreDigest(file.length());
+        if (isComplete(file)) {
+            Logger.i(LOG_TAG, "Already downloaded " + file);
+            return;
+        }
+        // the first request asks for everything left, its response tells whether to split
+        long prefix = file.length();
+        HttpURLConnection con = open(url);
+        if (!register(con)) {
+            throw new StateContext.StateContextThreadAborted();
+        }
+        try {
+            con.setRequestProperty("Range", "bytes=" + prefix + "-");
+            long total = con.getResponseCode() == HTTP_PARTIAL ? parseTotal(con.getHeaderField("Content-Range")) : -1;
+            if (total < mMinSize) {
+                // small file, or no ranges: a single stream on this connection
+                process(con);
+                HttpTransport.getInstance(getContext()).release(con);
+                return;
+            }
+            mTotal = total;
+            split(prefix);
+            checkpoint(sidecar, null);
+            // the first range continues on this connection
+            resume(url, con, file, sidecar);
+        } catch (Exception e) {
+            con.disconnect();
+            throw e;
+        } finally {
+            unregister(con);
+        }
+    }
+
+    private void resume(URL url, HttpURLConnection first, File file, File sidecar) throws Exception {
+        restoreDigest(frontier());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(mTotal);
+            fetch(url, first, raf.getChannel(), sidecar);
+        } catch (Exception e) {
+            if (isResized()) {
+                // the ranges belong to another file now
+                sidecar.delete();
+                file.delete();
+            }
+            throw e;
+        } finally {
+            raf.close();
+        }
+        if (!isFetched()) {
+            // keep the sidecar, the next run continues the ranges
+            throw new IOException("Ranges of " + file + " incomplete");
+        }
+        sidecar.delete();
+    }
+
+    private static long parseTotal(String range) {
+        // bytes 0-0/12345
+        if (range == null) {
+            return -1;
+        }
+        int slash = range.lastIndexOf('/');
+        if (slash < 0 || range.endsWith("*")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private synchronized void split(long prefix) {
+        long remaining = mTotal - prefix;
+        int segments = (int) Math.max(1, Math.min(mSegments, remaining / BUF_SIZE));
+        mStart = new long[segments];
+        mEnd = new long[segments];
+        mPosition = new long[segments];
+        long size = remaining / segments;
+        for (int i = 0; i < segments; i++) {
+            mStart[i] = prefix + i * size;
+            mEnd[i] = i == segments - 1 ? mTotal : mStart[i] + size;
+            mPosition[i] = mStart[i];
+        }
+    }
+
+    private synchronized boolean restore(File sidecar) {
+        if (!sidecar.exists()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(sidecar));
+            try {
+                if (in.readInt() != SIDECAR_VERSION) {
+                    return false;
+                }
+                mTotal = in.readLong();
+                int segments = in.readInt();
+                mStart = new long[segments];
+                mEnd = new long[segments];
+                mPosition = new long[segments];
+                for (int i = 0; i < segments; i++) {
+                    mStart[i] = in.readLong();
+                    mEnd[i] = in.readLong();
+                    mPosition[i] = in.readLong();
+                }
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Logger.w(LOG_TAG, "Could not restore " + sidecar + " " + e.getMessage());
+            return false;
+        }
+    }
+
+    private synchronized boolean isResized() {
+        return mResized;
+    }
+
+    private synchronized boolean isFetched() {
+        for (int i = 0; i < mStart.length; i++) {
+            if (mPosition[i] != mEnd[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * End of the data written without gaps from the beginning of the file.
+     */
+    private synchronized long frontier() {
+        long frontier = mStart[0];
+        for (int i = 0; i < mStart.length && frontier >= mStart[i]; i++) {
+            frontier = Math.max(frontier, mPosition[i]);
+        }
+        return frontier;
+    }
+
+    /**
+     * Hash the bytes just written at position when they continue the digest, then whatever the
+     * frontier has moved past since from the file. Runs on one segment at a time, which has claimed
+     * the digest, and outside the monitor, so the other segments go on writing meanwhile.
+     */
+    private void follow(FileChannel channel, byte buf[], long position, int len) throws IOException {
+        Digest digest = getDigestState();
+        boolean idle = false;
+        try {
+            synchronized (mDigestLock) {
+                if (position == digest.getLength()) {
+                    digest.update(buf, 0, len);
+                }
+            }
+            ByteBuffer bb = null;
+            while (true) {
+                long frontier;
+                synchronized (this) {
+                    frontier = frontier();
+                    if (digest.getLength() >= frontier) {
+                        // segments moving the frontier from here on see the digest free
+                        mHashing = false;
+                        idle = true;
+                        return;
+                    }
+                }
+                if (bb == null) {
+                    bb = ByteBuffer.allocate(BUF_SIZE);
+                }
+                while (digest.getLength() < frontier) {
+                    bb.clear();
+                    bb.limit((int) Math.min(BUF_SIZE, frontier - digest.getLength()));
+                    int r = channel.read(bb, digest.getLength());
+                    if (r <= 0) {
+                        throw new IOException("Unexpected end of file at " + digest.getLength());
+                    }
+                    synchronized (mDigestLock) {
+                        digest.update(bb.array(), 0, r);
+                    }
+                }
+            }
+        } finally {
+            if (!idle) {
+                synchronized (this) {
+                    mHashing = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush written ranges and replace the sidecars, so recorded progress never runs ahead of the data.
+     * Digest and ranges are taken before the flush, segments go on writing while it runs.
+     */
+    private void checkpoint(File sidecar, FileChannel channel) throws Exception {
+        synchronized (mCheckpointLock) {
+            // the digest first, it never covers more than the ranges taken after it
+            Digest digest = getDigestState();
+            if (digest != null) {
+                synchronized (mDigestLock) {
+                    digest = digest.copy();
+                }
+            }
+            long start[];
+            long end[];
+            long position[];
+            synchronized (this) {
+                start = mStart.clone();
+                end = mEnd.clone();
+                position = mPosition.clone();
+            }
+            if (channel != null) {
+                channel.force(false);
+            }
+            saveDigest(digest);
+            File tmp = new File(sidecar.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                out.writeInt(SIDECAR_VERSION);
+                out.writeLong(mTotal);
+                out.writeInt(start.length);
+                for (int i = 0; i < start.length; i++) {
+                    out.writeLong(start[i]);
+                    out.writeLong(end[i]);
+                    out.writeLong(position[i]);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(sidecar)) {
+                throw new IOException("Could not write " + sidecar);
+            }
+        }
+    }
+
+    private void fetch(final URL url, final HttpURLConnection first, final FileChannel channel, final File sidecar)
+            throws Exception {
+        TransferPool pool = TransferPool.getInstance(getContext());
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < mStart.length; i++) {
+            final int segment = i;
+            synchronized (this) {
+                if (mPosition[segment] >= mEnd[segment]) {
+                    continue;
+                }
+            }
+            tasks.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetchSegment(url, segment == 0 ? first : null, channel, sidecar, segment);
+                    } catch (Exception e) {
+                        fail(e);
+                    } catch (Throwable e) {
+                        // an error must end the download like a failure, the range is not complete
+                        fail(new RuntimeException(e));
+                    }
+                }
+            }));
+        }
+        try {
+            pool.join(tasks);
+        } catch (InterruptedException e) {
+            stop();
+            throw new StateContext.StateContextThreadAborted();
+        }
+        checkpoint(sidecar, channel);
+        synchronized (this) {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            if (mStopped) {
+                throw new StateContext.StateContextThreadAborted();
+            }
+        }
+    }
+
+    /**
+     * Fetch a range on its own connection, or on first, whose response runs on past the range.
+     */
+    private void fetchSegment(URL url, HttpURLConnection first, FileChannel channel, File sidecar, int segment)
+            throws Exception {
+        long position;
+        long end;
+        synchronized (this) {
+            position = mPosition[segment];
+            end = mEnd[segment];
+        }
+        HttpURLConnection con = first;
+        if (con == null) {
+            con = open(url);
+            if (!register(con)) {
+                return;
+            }
+            con.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+        }
+        try {
+            int response = con.getResponseCode();
+            if (response != HTTP_PARTIAL) {
+                throw new RuntimeException("Server response code=" + response + " for range " + position);
+            }
+            if (parseTotal(con.getHeaderField("Content-Range")) != mTotal) {
+                synchronized (this) {
+                    mResized = true;
+                }
+                throw new IOException("Size of " + url + " changed");
+            }
+            InputStream in = con.getInputStream();
+            byte buf[] = new byte[BUF_SIZE];
+            long unsaved = 0;
+            while (position < end) {
+                int r = in.read(buf, 0, (int) Math.min(buf.length, end - position));
+                if (r == -1) {
+                    throw new IOException("Range " + segment + " ended at " + position);
+                }
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, r);
+                while (bb.hasRemaining()) {
+                    position += channel.write(bb, position);
+                }
+                addReceived(r);
+                unsaved += r;
+                boolean hash;
+                synchronized (this) {
+                    mPosition[segment] = position;
+                    // the segment which claims the digest hashes for all of them
+                    hash = getDigestState() != null && !mHashing;
+                    if (hash) {
+                        mHashing = true;
+                    }
+                }
+                if (hash) {
+                    follow(channel, buf, position - r, r);
+                }
+                if (unsaved >= CHECKPOINT) {
+                    checkpoint(sidecar, channel);
+                    unsaved = 0;
+                }
+            }
+            if (first == null) {
+                HttpTransport.getInstance(getContext()).release(con);
+            } else {
+                // the rest of the body belongs to the other ranges
+                con.disconnect();
+            }
+        } catch (Exception e) {
+            con.disconnect();
+            throw e;
+        } finally {
+            unregister(con);
+        }
+    }
+
+    private synchronized boolean register(HttpURLConnection con) {
+        if (mStopped) {
+            return false;
+        }
+        mConnections.add(con);
+        return true;
+    }
+
+    private synchronized void unregister(HttpURLConnection con) {
+        mConnections.remove(con);
+    }
+
+    private void fail(Exception e) {
+        synchronized (this) {
+            if (mFailure != null || mStopped) {
+                return;
+            }
+            mFailure = e;
+        }
+        Logger.i(LOG_TAG, "Segment failed " + e.getMessage());
+        stop();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        synchronized (this) {
+            mStopped = true;
+            for (HttpURLConnection con : mConnections) {
+                con.disconnect();
+            }
+        }
+    }
+}
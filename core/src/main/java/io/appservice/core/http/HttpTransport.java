@@ -0,0 +1,217 @@
+package io.appservice.core.http;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import io.appservice.core.CoreApp;
+import io.appservice.core.util.Logger;
+
+/**
+ * Connections of all {@link HttpRequestAsync} go through here. There is one socket factory per trust
+ * policy for the lifetime of the process, so the platform keeps pooled keep-alive connections and
+ * TLS sessions of earlier requests; responses have to be consumed with {@link #release(HttpURLConnection)}
+ * for their connection to be reused.
+ */
+public class HttpTransport {
+
+    private static final String LOG_TAG = "IOAPP_HttpTransport";
+
+    private static final int SESSION_CACHE_SIZE = 32;
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private volatile int mConnectTimeout = 15000;
+    private volatile int mReadTimeout = 30000;
+
+    private SSLSocketFactory mSecure;
+    private SSLSocketFactory mInsecure;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mHandshakes = new AtomicLong();
+    private final AtomicLong mHandshakeNanos = new AtomicLong();
+
+    private HttpTransport(Context ctx) {
+    }
+
+    public static HttpTransport getInstance(Context ctx) {
+        return CoreApp.getSingleton(ctx, HttpTransport.class);
+    }
+
+    /**
+     * Timeouts in milliseconds of new connections, 0 waits forever.
+     */
+    public void setTimeouts(int connect, int read) {
+        mConnectTimeout = connect;
+        mReadTimeout = read;
+    }
+
+    public HttpURLConnection open(URL url, boolean insecure) throws Exception {
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setConnectTimeout(mConnectTimeout);
+        con.setReadTimeout(mReadTimeout);
+        if (con instanceof HttpsURLConnection) {
+            HttpsURLConnection https = (HttpsURLConnection) con;
+            https.setSSLSocketFactory(getSocketFactory(insecure));
+        }
+        mRequests.incrementAndGet();
+        return con;
+    }
+
+    /**
+     * Consume what is left of a processed response, the body or for error codes the error body, which
+     * hands the connection back to the pool. A connection which fails to drain is disconnected.
+     */
+    public void release(HttpURLConnection con) {
+        InputStream in = null;
+        try {
+            in = con.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ? con.getErrorStream() : con.getInputStream();
+            if (in != null) {
+                byte buf[] = new byte[0x1000];
+                while (in.read(buf) != -1) {
+                    // drain
+                }
+            }
+        } catch (IOException e) {
+            // a broken connection is not pooled
+            con.disconnect();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private synchronized SSLSocketFactory getSocketFactory(boolean insecure) throws Exception {
+        if (insecure) {
+            if (mInsecure == null) {
+                TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager() {
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return new X509Certificate[0];
+                    }
+
+                    public void checkClientTrusted(X509Certificate[] certs, String authType) {
+                    }
+
+                    public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                    }
+                }
+                };
+                SSLContext sc = SSLContext.getInstance("TLS");
+                sc.init(null, trustAllCerts, new java.security.SecureRandom());
+                sc.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+                sc.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+                mInsecure = new MeteredSocketFactory(sc.getSocketFactory());
+            }
+            return mInsecure;
+        }
+        if (mSecure == null) {
+            mSecure = new MeteredSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+        }
+        return mSecure;
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * TLS handshakes, full and resumed; requests on a reused connection need none.
+     */
+    public long getHandshakeCount() {
+        return mHandshakes.get();
+    }
+
+    public long getAverageHandshakeMillis() {
+        long handshakes = mHandshakes.get();
+        return handshakes == 0 ? 0 : mHandshakeNanos.get() / handshakes / 1000000;
+    }
+
+    public void dump() {
+        Logger.i(LOG_TAG, "Requests " + mRequests.get() + " handshakes " + mHandshakes.get()
+                + " avg " + getAverageHandshakeMillis() + "ms");
+    }
+
+    /**
+     * Counts handshakes and the time from socket creation to handshake completion.
+     */
+    private class MeteredSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+
+        private MeteredSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        private Socket meter(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long start = System.nanoTime();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        mHandshakes.incrementAndGet();
+                        mHandshakeNanos.addAndGet(System.nanoTime() - start);
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return meter(mDelegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return meter(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return meter(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return meter(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return meter(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return meter(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,573 @@
+package io.appservice.core.statemachine;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.appservice.core.statemachine.annotations.StateField;
+import io.appservice.core.util.Logger;
+
+/**
+ * Change tracking, group commit and write-behind shared by the storage backends.
+ * A backend only reads the stored rows of a context and applies batches of writes atomically.
+ */
+public abstract class AbstractStateContextStorage implements StateContextStorage {
+
+    private static final String LOG_TAG = "IOAPP_StateContextStorage";
+
+    private Map<Class <? extends StateContext> , StateContextHolder> mContexts = new HashMap<>();
+    private FieldCodec mCodec = new JsonFieldCodec();
+    private Map<String, Snapshot> mPreloaded;
+
+    private long mGroupCommitWindow = 0;
+    private final Object mGroupLock = new Object();
+    private List<Write> mGroup = null;
+    private Thread mCommitter;
+    private long mGroupSerial = 0;
+    private long mCommittedSerial = 0;
+
+    private boolean mWriteBehind = false;
+    private final Map<String, Write> mPending = new LinkedHashMap<>();
+    private Thread mWriter;
+    private long mQueuedSerial = 0;
+    private long mWrittenSerial = 0;
+    private long mCoalesced = 0;
+
+    private long mCommits = 0;
+    private long mWrites = 0;
+
+    /**
+     * Read the stored rows of a context type.
+     */
+    protected abstract Snapshot read(String type) throws Exception;
+
+    /**
+     * Read the stored rows of all context types at once, null when the backend reads per type.
+     */
+    protected Map<String, Snapshot> readAll() throws Exception {
+        return null;
+    }
+
+    /**
+     * Apply the writes in order, either all of them or none.
+     */
+    protected abstract void write(List<Write> writes) throws Exception;
+
+    @Override
+    public <T extends StateContext> T load (Class <? extends StateContext > type){
+        StateContextHolder holder = new StateContextHolder(type, mCodec);
+        Snapshot snapshot;
+        try {
+            synchronized (mContexts) {
+                if (mPreloaded == null) {
+                    long start = System.currentTimeMillis();
+                    mPreloaded = readAll();
+                    if (mPreloaded == null) {
+                        mPreloaded = new HashMap<>();
+                    } else {
+                        Logger.i(LOG_TAG, "Preloaded " + mPreloaded.size() + " contexts in " + (System.currentTimeMillis() - start) + "ms");
+                    }
+                }
+                snapshot = mPreloaded.remove(type.getName());
+            }
+            if (snapshot == null) {
+                snapshot = read(type.getName());
+            }
+        } catch (Exception e) {
+            Logger.e(LOG_TAG, "Could not read " + type.getName() + " " + e.getMessage());
+            snapshot = null;
+        }
+        T context = holder.load(snapshot);
+        if ( context != null ){
+            synchronized (mContexts) {
+                mContexts.put(type, holder);
+            }
+        }
+        return context;
+    }
+
+    @Override
+    public void setFieldCodec(FieldCodec codec) {
+        mCodec = codec;
+    }
+
+    @Override
+    public void dump() {
+        for (StateContextHolder holder : mContexts.values()) {
+            synchronized (holder) {
+                Logger.i(LOG_TAG, "Fields of " + holder.mContextType.getSimpleName()
+                        + " encoded=" + holder.mEncodeCount
+                        + " bytes=" + holder.mEncodedBytes
+                        + " encodeUs=" + holder.mEncodeNanos / 1000
+                        + " decoded=" + holder.mDecodedBytes
+                        + " decodeUs=" + holder.mDecodeNanos / 1000);
+            }
+        }
+    }
+
+    @Override
+    public void setGroupCommitWindow(long window) {
+        mGroupCommitWindow = window;
+    }
+
+    @Override
+    public void setWriteBehind(boolean writeBehind) {
+        mWriteBehind = writeBehind;
+    }
+
+    @Override
+    public boolean barrier(StateContext context) {
+        synchronized (mPending) {
+            long serial = mQueuedSerial;
+            while (mWrittenSerial < serial) {
+                try {
+                    mPending.wait();
+                } catch (InterruptedException e) {
+                    Logger.w(LOG_TAG, "Barrier interrupted");
+                    return false;
+                }
+            }
+        }
+        StateContextHolder holder;
+        synchronized (mContexts) {
+            holder = mContexts.get(context.getClass());
+        }
+        if (holder == null) {
+            return true;
+        }
+        // a failed commit marks the holder until its next save queues the rewrite
+        synchronized (holder) {
+            return !holder.mInvalid;
+        }
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        synchronized (mPending) {
+            return mCoalesced;
+        }
+    }
+
+    @Override
+    public long getCommitCount() {
+        synchronized (this) {
+            return mCommits;
+        }
+    }
+
+    @Override
+    public long getWriteCount() {
+        synchronized (this) {
+            return mWrites;
+        }
+    }
+
+    @Override
+    public void save (StateContext context){
+        StateContextHolder holder;
+        synchronized (mContexts) {
+            holder = mContexts.get(context.getClass());
+        }
+        if ( holder == null ){
+            return;
+        }
+        List<Write> writes = new ArrayList<>();
+        synchronized (holder) {
+            holder.save(context, writes);
+        }
+        if (writes.isEmpty()) {
+            return;
+        }
+        if (mWriteBehind) {
+            enqueue(writes);
+        } else if (mGroupCommitWindow <= 0) {
+            commit(writes);
+        } else {
+            groupCommit(writes);
+        }
+    }
+
+    private void enqueue(List<Write> writes) {
+        synchronized (mPending) {
+            for (Write write : writes) {
+                if (write.mKind == Write.CLEAR) {
+                    Iterator<Write> pending = mPending.values().iterator();
+                    while (pending.hasNext()) {
+                        if (pending.next().mType.equals(write.mType)) {
+                            pending.remove();
+                            mCoalesced++;
+                        }
+                    }
+                }
+                String key = write.getKey();
+                if (mPending.remove(key) != null) {
+                    mCoalesced++;
+                }
+                mPending.put(key, write);
+            }
+            mQueuedSerial++;
+            if (mWriter == null) {
+                mWriter = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeBehind();
+                    }
+                }, "StateContextWriter");
+                mWriter.setDaemon(true);
+                mWriter.start();
+            }
+            mPending.notifyAll();
+        }
+    }
+
+    private void writeBehind() {
+        for (;;) {
+            List<Write> writes;
+            long serial;
+            synchronized (mPending) {
+                while (mPending.isEmpty()) {
+                    try {
+                        mPending.wait();
+                    } catch (InterruptedException e) {
+                        Logger.e(LOG_TAG, "Writer interrupted");
+                        return;
+                    }
+                }
+                writes = new ArrayList<>(mPending.values());
+                mPending.clear();
+                serial = mQueuedSerial;
+            }
+            commit(writes);
+            synchronized (mPending) {
+                // failed writes are kept track of by their holders
+                mWrittenSerial = serial;
+                mPending.notifyAll();
+            }
+        }
+    }
+
+    private void groupCommit(List<Write> writes) {
+        synchronized (mGroupLock) {
+            if (mGroup == null) {
+                mGroup = new ArrayList<>();
+            }
+            mGroup.addAll(writes);
+            // the group collected now is committed with the next serial
+            long serial = mGroupSerial + 1;
+            if (mCommitter == null) {
+                mCommitter = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        groupCommitter();
+                    }
+                }, "StateContextCommitter");
+                mCommitter.setDaemon(true);
+                mCommitter.start();
+            }
+            mGroupLock.notifyAll();
+            while (mCommittedSerial < serial) {
+                try {
+                    mGroupLock.wait();
+                } catch (InterruptedException e) {
+                    Logger.w(LOG_TAG, "Group commit wait interrupted");
+                    return;
+                }
+            }
+        }
+    }
+
+    private void groupCommitter() {
+        for (;;) {
+            synchronized (mGroupLock) {
+                while (mGroup == null) {
+                    try {
+                        mGroupLock.wait();
+                    } catch (InterruptedException e) {
+                        Logger.e(LOG_TAG, "Committer interrupted");
+                        return;
+                    }
+                }
+            }
+            // the window opens with the first save of a group, saves arriving meanwhile join it
+            try {
+                Thread.sleep(mGroupCommitWindow);
+            } catch (InterruptedException e) {
+                Logger.e(LOG_TAG, "Committer interrupted");
+                return;
+            }
+            List<Write> group;
+            long serial;
+            synchronized (mGroupLock) {
+                group = mGroup;
+                mGroup = null;
+                serial = ++mGroupSerial;
+            }
+            commit(group);
+            synchronized (mGroupLock) {
+                mCommittedSerial = serial;
+                mGroupLock.notifyAll();
+            }
+        }
+    }
+
+    private synchronized boolean commit(List<Write> writes) {
+        try {
+            write(writes);
+            mCommits++;
+            mWrites += writes.size();
+            return true;
+        } catch (Exception e) {
+            Logger.e(LOG_TAG, "Could not commit " + writes.size() + " writes " + e.getMessage());
+            invalidate(writes);
+            return false;
+        }
+    }
+
+    /**
+     * The holders of the failed writes have already taken them as stored, so the next save of
+     * each of their contexts writes it from scratch.
+     */
+    private void invalidate(List<Write> writes) {
+        Set<String> types = new HashSet<>();
+        for (Write write : writes) {
+            types.add(write.mType);
+        }
+        synchronized (mContexts) {
+            for (StateContextHolder holder : mContexts.values()) {
+                if (types.contains(holder.mContextType.getName())) {
+                    synchronized (holder) {
+                        holder.mInvalid = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Single row change produced by a holder, a null value removes the row.
+     */
+    protected static class Write {
+        static final int CONTEXT = 0;
+        static final int TIMER = 1;
+        static final int VALUE = 2;
+        static final int CLEAR = 3;
+
+        final int mKind;
+        final String mType;
+        final String mId;
+        final Object mValue;
+
+        Write(int kind, String type, String id, Object value) {
+            mKind = kind;
+            mType = type;
+            mId = id;
+            mValue = value;
+        }
+
+        private String getKey() {
+            return mKind + "|" + mType + "|" + mId;
+        }
+    }
+
+    /**
+     * Stored rows of a context, a null state means the context was never saved.
+     */
+    protected static class Snapshot {
+        Integer mState;
+        final Map<String, Long> mTimers = new HashMap<>();
+        final Map<String, Object> mValues = new LinkedHashMap<>();
+    }
+
+    private static class StateContextHolder {
+        private final FieldCodec mCodec;
+        private Map<String, Integer> mValues = new HashMap<>();
+        private List<Field> mFields = new ArrayList<>();
+        private Map<String, Field> mFieldsByName = new HashMap<>();
+        private Set<String> mTracked = new HashSet<>();
+        private Map<String, Long> mTimers = new HashMap<>();
+        private Class<? extends StateContext> mContextType;
+        // a commit of this context failed, the stored rows are unknown
+        private boolean mInvalid = false;
+
+        private long mEncodeCount = 0;
+        private long mEncodedBytes = 0;
+        private long mEncodeNanos = 0;
+        private long mDecodedBytes = 0;
+        private long mDecodeNanos = 0;
+
+        private StateContextHolder(Class<? extends StateContext> type, FieldCodec codec) {
+            mContextType = type;
+            mCodec = codec;
+        }
+
+        private static int sizeOf(Object stored) {
+            return stored instanceof byte[] ? ((byte[]) stored).length : ((String) stored).length();
+        }
+
+        private Object encode(Field field, Object value) throws Exception {
+            long start = System.nanoTime();
+            Object stored = mCodec.encode(field, value);
+            mEncodeNanos += System.nanoTime() - start;
+            mEncodeCount++;
+            mEncodedBytes += sizeOf(stored);
+            return stored;
+        }
+
+        /**
+         * Tracked values are mutable objects, other threads may change them holding their monitor.
+         */
+        private Object encode(Field field, Object value, boolean tracked) throws Exception {
+            if (tracked && value != null) {
+                synchronized (value) {
+                    return encode(field, value);
+                }
+            }
+            return encode(field, value);
+        }
+
+        private int getHashCode(Object value) {
+            if (value == null) {
+                return 0;
+            }
+            return value.hashCode();
+        }
+
+        private void save(StateContext context, List<Write> writes) {
+            String type = mContextType.getName();
+            if (mInvalid) {
+                mInvalid = false;
+                mValues.clear();
+                mTimers.clear();
+                writes.add(new Write(Write.CLEAR, type, null, null));
+            }
+            //save context
+            writes.add(new Write(Write.CONTEXT, type, null, context.mCurrentState));
+            //save timers
+            {
+                for (Map.Entry<String, Long> timer : context.mTimers.entrySet()) {
+                    if (!timer.getValue().equals(mTimers.get(timer.getKey()))) {
+                        writes.add(new Write(Write.TIMER, type, timer.getKey(), timer.getValue()));
+                        mTimers.put(timer.getKey(), timer.getValue());
+                    }
+                }
+                List < String > tm_remove = null;
+                for (String timer_id : mTimers.keySet()) {
+                    if (!context.mTimers.containsKey(timer_id)) {
+                        writes.add(new Write(Write.TIMER, type, timer_id, null));
+                        if ( tm_remove == null ){
+                            tm_remove = new ArrayList<>();
+                        }
+                        tm_remove.add(timer_id);
+                    }
+                }
+                if ( tm_remove != null ){
+                    for ( String tm: tm_remove){
+                        mTimers.remove(tm);
+                    }
+                }
+            }
+            //save values
+            {
+                Set<String> dirty = context.takeDirty();
+                try {
+                    for (Field field : mFields) {
+                        // tracked fields are skipped unless marked dirty
+                        if (mTracked.contains(field.getName())
+                                && mValues.containsKey(field.getName())
+                                && (dirty == null || !dirty.contains(field.getName()))) {
+                            continue;
+                        }
+                        boolean tracked = mTracked.contains(field.getName());
+                        Object value = field.get(context);
+                        int hashCode = tracked ? 0 : getHashCode(value);
+                        if (mValues.containsKey(field.getName())) {
+                            if (value == null) {
+                                mValues.remove(field.getName());
+                                Logger.d(LOG_TAG, "Removed field " + context.getClass().getName() + " " + field.getName());
+                                writes.add(new Write(Write.VALUE, type, field.getName(), null));
+                            } else if (tracked || !mValues.get(field.getName()).equals(hashCode)) {
+                                //update if not match
+                                writes.add(new Write(Write.VALUE, type, field.getName(), encode(field, value, tracked)));
+                                Logger.d(LOG_TAG, "Update field " + context.getClass().getName() + " " + field.getName() + " old=" + mValues.get(field.getName()) + " new=" + value);
+                                mValues.put(field.getName(), hashCode);
+                            }
+                        } else {
+                            writes.add(new Write(Write.VALUE, type, field.getName(), encode(field, value, tracked)));
+                            Logger.d(LOG_TAG, "Insert field " + context.getClass().getName() + " " + field.getName() + " new=" + value);
+                            mValues.put(field.getName(), hashCode);
+                        }
+                    }
+                } catch (Exception e) {
+                    writes.clear();
+                    writes.add(new Write(Write.CLEAR, type, null, null));
+                    mValues.clear();
+                    mTimers.clear();
+                }
+            }
+        }
+
+        private <T extends StateContext> T load(Snapshot snapshot) {
+            // fields of the base classes too, StateContext keeps the backoff attempts
+            for (Class<?> type = mContextType; type != null && StateContext.class.isAssignableFrom(type); type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    StateField annotation = field.getAnnotation(StateField.class);
+                    if (annotation != null && !mFieldsByName.containsKey(field.getName())) {
+                        field.setAccessible(true);
+                        mFields.add(field);
+                        mFieldsByName.put(field.getName(), field);
+                        if (annotation.tracked()) {
+                            mTracked.add(field.getName());
+                        }
+                    }
+                }
+            }
+
+            T state_ctx;
+            try {
+                state_ctx = (T)mContextType.newInstance();
+            } catch (Exception e) {
+                Logger.e(LOG_TAG, "Could not create context " + e.getMessage());
+                return null;
+            }
+            if (snapshot == null || snapshot.mState == null) {
+                return state_ctx;
+            }
+            state_ctx.mCurrentState = snapshot.mState;
+            for (Map.Entry<String, Long> timer : snapshot.mTimers.entrySet()) {
+                mTimers.put(timer.getKey(), timer.getValue());
+                state_ctx.mTimers.put(timer.getKey(), timer.getValue());
+            }
+            for (Map.Entry<String, Object> value : snapshot.mValues.entrySet()) {
+                String field_name = value.getKey();
+                Object field_value = value.getValue();
+                Field field = mFieldsByName.get(field_name);
+                if (field == null) {
+                    Logger.w(LOG_TAG, "Skipped stored field " + mContextType.getName() + " " + field_name);
+                    continue;
+                }
+                try {
+                    long start = System.nanoTime();
+                    Object field_object = mCodec.decode(field, field_value);
+                    mDecodeNanos += System.nanoTime() - start;
+                    mDecodedBytes += sizeOf(field_value);
+                    field.set(state_ctx, field_object);
+                    Logger.d(LOG_TAG, "Loaded field " + mContextType.getName() + " " + field_name + "=" + field_object);
+                    if (mCodec.needsRewrite(field_value)) {
+                        // written again in the current format on the next save
+                        continue;
+                    }
+                    mValues.put(field_name, mTracked.contains(field_name) ? 0 : getHashCode(field_object));
+                } catch (Exception e) {
+                    Logger.e(LOG_TAG, "Could not set field " + field_name + " - " + e.getMessage());
+                }
+            }
+            return state_ctx;
+        }
+    }
+}
@@ -0,0 +1,620 @@
+package io.appservice.core.statemachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.appservice.core.util.Logger;
+
+/**
+ * Compact tagged binary encoding of field values.
+ * <p>
+ * Values are written along their declared types, objects as named fields, so fields may be
+ * added or removed between versions like with JSON. Names are written once per value and
+ * referenced afterwards, values above {@link #DEFLATE_THRESHOLD} bytes are deflated.
+ * Types which can not be described this way (polymorphic or platform classes) fall back to
+ * JSON, which is also how rows written by {@link JsonFieldCodec} are read.
+ */
+public class BinaryFieldCodec implements FieldCodec {
+
+    private static final String LOG_TAG = "IOAPP_BinaryFieldCodec";
+
+    private static final int VERSION = 1;
+    private static final int FLAG_DEFLATE = 1;
+    private static final int DEFLATE_THRESHOLD = 512;
+    private static final int MAX_DEPTH = 32;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_VARINT = 3;
+    private static final int TAG_FLOAT = 4;
+    private static final int TAG_DOUBLE = 5;
+    private static final int TAG_STRING = 6;
+    private static final int TAG_ARRAY = 7;
+    private static final int TAG_MAP = 8;
+    private static final int TAG_OBJECT = 9;
+
+    private static final Map<Class<?>, Field[]> sSchemas = new HashMap<>();
+    private static final Map<Class<?>, Constructor<?>> sConstructors = new HashMap<>();
+    private static Object sUnsafe;
+    private static Method sAllocateInstance;
+
+    private final JsonFieldCodec mJson = new JsonFieldCodec();
+
+    private static class UnsupportedTypeException extends Exception {
+        private UnsupportedTypeException(String message) {
+            super(message);
+        }
+    }
+
+    @Override
+    public Object encode(Field field, Object value) throws Exception {
+        try {
+            return encode(field.getGenericType(), value);
+        } catch (UnsupportedTypeException e) {
+            Logger.w(LOG_TAG, "Storing " + field.getName() + " as JSON, " + e.getMessage());
+            return mJson.encode(field, value);
+        }
+    }
+
+    @Override
+    public Object decode(Field field, Object stored) throws Exception {
+        if (stored instanceof byte[]) {
+            return decode(field.getGenericType(), (byte[]) stored);
+        }
+        return mJson.decode(field, stored);
+    }
+
+    @Override
+    public boolean needsRewrite(Object stored) {
+        return !(stored instanceof byte[]);
+    }
+
+    private byte[] encode(Type type, Object value) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        new Writer(out).write(type, value, 0);
+        out.flush();
+        byte[] body = bytes.toByteArray();
+        int flags = 0;
+        if (body.length > DEFLATE_THRESHOLD) {
+            byte[] deflated = deflate(body);
+            if (deflated.length < body.length) {
+                body = deflated;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+        byte[] stored = new byte[body.length + 2];
+        stored[0] = VERSION;
+        stored[1] = (byte) flags;
+        System.arraycopy(body, 0, stored, 2, body.length);
+        return stored;
+    }
+
+    private Object decode(Type type, byte[] stored) throws Exception {
+        if (stored.length < 2 || stored[0] != VERSION) {
+            throw new IOException("Unsupported field encoding");
+        }
+        byte[] body = new byte[stored.length - 2];
+        System.arraycopy(stored, 2, body, 0, body.length);
+        if ((stored[1] & FLAG_DEFLATE) != 0) {
+            body = inflate(body);
+        }
+        return new Reader(new DataInputStream(new ByteArrayInputStream(body))).read(type, 0);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+        byte[] buffer = new byte[4096];
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated field value");
+                }
+                out.write(buffer, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static Class<?> rawType(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        }
+        if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        }
+        if (type instanceof GenericArrayType) {
+            return Array.newInstance(rawType(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+        }
+        if (type instanceof WildcardType) {
+            return rawType(((WildcardType) type).getUpperBounds()[0]);
+        }
+        return Object.class;
+    }
+
+    private static Type typeArgument(Type type, int index) {
+        if (type instanceof ParameterizedType) {
+            Type args[] = ((ParameterizedType) type).getActualTypeArguments();
+            if (index < args.length) {
+                return args[index];
+            }
+        }
+        return Object.class;
+    }
+
+    private static Type componentType(Type type) {
+        if (type instanceof GenericArrayType) {
+            return ((GenericArrayType) type).getGenericComponentType();
+        }
+        Class<?> raw = rawType(type);
+        return raw.isArray() ? raw.getComponentType() : Object.class;
+    }
+
+    // plain application classes only, platform classes keep their state in ways we can not see
+    private static boolean isObject(Class<?> raw) {
+        if (raw.isInterface() || raw.isPrimitive() || Modifier.isAbstract(raw.getModifiers())) {
+            return false;
+        }
+        String name = raw.getName();
+        return !name.startsWith("java.") && !name.startsWith("javax.") && !name.startsWith("android.");
+    }
+
+    private static Field[] schema(Class<?> type) {
+        synchronized (sSchemas) {
+            Field[] fields = sSchemas.get(type);
+            if (fields == null) {
+                List<Field> list = new ArrayList<>();
+                for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        int modifiers = field.getModifiers();
+                        if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                            continue;
+                        }
+                        field.setAccessible(true);
+                        list.add(field);
+                    }
+                }
+                fields = list.toArray(new Field[list.size()]);
+                sSchemas.put(type, fields);
+            }
+            return fields;
+        }
+    }
+
+    private static Object newInstance(Class<?> type) throws Exception {
+        Constructor<?> constructor;
+        synchronized (sConstructors) {
+            if (!sConstructors.containsKey(type)) {
+                try {
+                    constructor = type.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                } catch (NoSuchMethodException e) {
+                    constructor = null;
+                }
+                sConstructors.put(type, constructor);
+            }
+            constructor = sConstructors.get(type);
+        }
+        if (constructor != null) {
+            return constructor.newInstance();
+        }
+        // inner classes and classes without a default constructor, as Gson does
+        synchronized (sConstructors) {
+            if (sAllocateInstance == null) {
+                Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+                Field instance = unsafe.getDeclaredField("theUnsafe");
+                instance.setAccessible(true);
+                sUnsafe = instance.get(null);
+                sAllocateInstance = unsafe.getMethod("allocateInstance", Class.class);
+            }
+        }
+        return sAllocateInstance.invoke(sUnsafe, type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<Object> newCollection(Class<?> raw) throws Exception {
+        if (!raw.isInterface() && !Modifier.isAbstract(raw.getModifiers())) {
+            return (Collection<Object>) newInstance(raw);
+        }
+        if (raw.isAssignableFrom(ArrayList.class)) {
+            return new ArrayList<>();
+        }
+        if (SortedSet.class.isAssignableFrom(raw)) {
+            return new TreeSet<>();
+        }
+        if (Set.class.isAssignableFrom(raw)) {
+            return new LinkedHashSet<>();
+        }
+        if (Queue.class.isAssignableFrom(raw)) {
+            return new ArrayDeque<>();
+        }
+        throw new IOException("Can not create " + raw.getName());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Object> newMap(Class<?> raw) throws Exception {
+        if (!raw.isInterface() && !Modifier.isAbstract(raw.getModifiers())) {
+            return (Map<Object, Object>) newInstance(raw);
+        }
+        if (SortedMap.class.isAssignableFrom(raw)) {
+            return new TreeMap<>();
+        }
+        return new LinkedHashMap<>();
+    }
+
+    private static class Writer {
+        private final DataOutputStream mOut;
+        private final Map<String, Integer> mNames = new HashMap<>();
+
+        private Writer(DataOutputStream out) {
+            mOut = out;
+        }
+
+        private void write(Type type, Object value, int depth) throws Exception {
+            if (depth > MAX_DEPTH) {
+                throw new UnsupportedTypeException("nested too deep");
+            }
+            if (value == null) {
+                mOut.writeByte(TAG_NULL);
+            } else if (value instanceof Boolean) {
+                mOut.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                mOut.writeByte(TAG_VARINT);
+                writeVarLong(zigzag(((Number) value).longValue()));
+            } else if (value instanceof Character) {
+                mOut.writeByte(TAG_VARINT);
+                writeVarLong((Character) value);
+            } else if (value instanceof Float) {
+                mOut.writeByte(TAG_FLOAT);
+                mOut.writeFloat((Float) value);
+            } else if (value instanceof Double) {
+                mOut.writeByte(TAG_DOUBLE);
+                mOut.writeDouble((Double) value);
+            } else if (value instanceof String) {
+                mOut.writeByte(TAG_STRING);
+                writeString((String) value);
+            } else if (value instanceof Enum) {
+                mOut.writeByte(TAG_STRING);
+                writeString(((Enum<?>) value).name());
+            } else if (value.getClass().isArray()) {
+                Type component = componentType(type);
+                int length = Array.getLength(value);
+                mOut.writeByte(TAG_ARRAY);
+                writeVarLong(length);
+                for (int index = 0; index < length; index++) {
+                    write(component, Array.get(value, index), depth + 1);
+                }
+            } else if (value instanceof Collection) {
+                Type element = typeArgument(type, 0);
+                Collection<?> collection = (Collection<?>) value;
+                mOut.writeByte(TAG_ARRAY);
+                writeVarLong(collection.size());
+                for (Object item : collection) {
+                    write(element, item, depth + 1);
+                }
+            } else if (value instanceof Map) {
+                Type key = typeArgument(type, 0);
+                Type item = typeArgument(type, 1);
+                Map<?, ?> map = (Map<?, ?>) value;
+                mOut.writeByte(TAG_MAP);
+                writeVarLong(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    write(key, entry.getKey(), depth + 1);
+                    write(item, entry.getValue(), depth + 1);
+                }
+            } else {
+                Class<?> raw = rawType(type);
+                if (!isObject(raw) || !raw.isInstance(value)) {
+                    throw new UnsupportedTypeException("can not encode " + value.getClass().getName() + " as " + raw.getName());
+                }
+                Field[] fields = schema(raw);
+                mOut.writeByte(TAG_OBJECT);
+                writeVarLong(fields.length);
+                for (Field field : fields) {
+                    writeName(field.getName());
+                    write(field.getGenericType(), field.get(value), depth + 1);
+                }
+            }
+        }
+
+        private void writeName(String name) throws IOException {
+            Integer index = mNames.get(name);
+            if (index != null) {
+                writeVarLong(index + 1);
+                return;
+            }
+            writeVarLong(0);
+            writeString(name);
+            mNames.put(name, mNames.size());
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes("UTF-8");
+            writeVarLong(bytes.length);
+            mOut.write(bytes);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                mOut.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mOut.writeByte((int) value);
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    private static class Reader {
+        private final DataInputStream mIn;
+        private final List<String> mNames = new ArrayList<>();
+
+        private Reader(DataInputStream in) {
+            mIn = in;
+        }
+
+        private Object read(Type type, int depth) throws Exception {
+            if (depth > MAX_DEPTH) {
+                throw new IOException("Field value nested too deep");
+            }
+            Class<?> raw = rawType(type);
+            int tag = mIn.readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return raw.isPrimitive() ? primitive(raw, 0) : null;
+                case TAG_FALSE:
+                case TAG_TRUE:
+                    return tag == TAG_TRUE;
+                case TAG_VARINT: {
+                    long value = readVarLong();
+                    if (raw == char.class || raw == Character.class) {
+                        return (char) value;
+                    }
+                    return number(raw, unzigzag(value));
+                }
+                case TAG_FLOAT:
+                    return number(raw, mIn.readFloat());
+                case TAG_DOUBLE:
+                    return number(raw, mIn.readDouble());
+                case TAG_STRING: {
+                    String value = readString();
+                    if (raw.isEnum()) {
+                        for (Object constant : raw.getEnumConstants()) {
+                            if (((Enum<?>) constant).name().equals(value)) {
+                                return constant;
+                            }
+                        }
+                        return null;
+                    }
+                    return value;
+                }
+                case TAG_ARRAY: {
+                    int length = (int) readVarLong();
+                    if (raw.isArray()) {
+                        Type component = componentType(type);
+                        Object array = Array.newInstance(rawType(component), length);
+                        for (int index = 0; index < length; index++) {
+                            Array.set(array, index, read(component, depth + 1));
+                        }
+                        return array;
+                    }
+                    Type element = typeArgument(type, 0);
+                    Collection<Object> collection = newCollection(raw);
+                    for (int index = 0; index < length; index++) {
+                        collection.add(read(element, depth + 1));
+                    }
+                    return collection;
+                }
+                case TAG_MAP: {
+                    int size = (int) readVarLong();
+                    Type key = typeArgument(type, 0);
+                    Type item = typeArgument(type, 1);
+                    Map<Object, Object> map = newMap(raw);
+                    for (int index = 0; index < size; index++) {
+                        Object k = read(key, depth + 1);
+                        map.put(k, read(item, depth + 1));
+                    }
+                    return map;
+                }
+                case TAG_OBJECT: {
+                    int count = (int) readVarLong();
+                    if (!isObject(raw)) {
+                        throw new IOException("Can not decode object as " + raw.getName());
+                    }
+                    Object object = newInstance(raw);
+                    Field[] fields = schema(raw);
+                    for (int index = 0; index < count; index++) {
+                        Field field = find(fields, readName());
+                        if (field == null) {
+                            // removed since the value was written
+                            skip(depth + 1);
+                            continue;
+                        }
+                        field.set(object, read(field.getGenericType(), depth + 1));
+                    }
+                    return object;
+                }
+                default:
+                    throw new IOException("Invalid tag " + tag);
+            }
+        }
+
+        private void skip(int depth) throws Exception {
+            if (depth > MAX_DEPTH) {
+                throw new IOException("Field value nested too deep");
+            }
+            int tag = mIn.readByte();
+            switch (tag) {
+                case TAG_NULL:
+                case TAG_FALSE:
+                case TAG_TRUE:
+                    break;
+                case TAG_VARINT:
+                    readVarLong();
+                    break;
+                case TAG_FLOAT:
+                    mIn.readFloat();
+                    break;
+                case TAG_DOUBLE:
+                    mIn.readDouble();
+                    break;
+                case TAG_STRING:
+                    readString();
+                    break;
+                case TAG_ARRAY:
+                    for (long index = readVarLong(); index > 0; index--) {
+                        skip(depth + 1);
+                    }
+                    break;
+                case TAG_MAP:
+                    for (long index = readVarLong(); index > 0; index--) {
+                        skip(depth + 1);
+                        skip(depth + 1);
+                    }
+                    break;
+                case TAG_OBJECT:
+                    for (long index = readVarLong(); index > 0; index--) {
+                        readName();
+                        skip(depth + 1);
+                    }
+                    break;
+                default:
+                    throw new IOException("Invalid tag " + tag);
+            }
+        }
+
+        private static Field find(Field[] fields, String name) {
+            for (Field field : fields) {
+                if (field.getName().equals(name)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+
+        private static Object number(Class<?> raw, long value) {
+            return raw.isPrimitive() || Number.class.isAssignableFrom(raw) ? primitive(raw, value) : Long.valueOf(value);
+        }
+
+        private static Object number(Class<?> raw, double value) {
+            if (raw == float.class || raw == Float.class) {
+                return (float) value;
+            }
+            if (raw == double.class || raw == Double.class || !(raw.isPrimitive() || Number.class.isAssignableFrom(raw))) {
+                return value;
+            }
+            return primitive(raw, (long) value);
+        }
+
+        private static Object primitive(Class<?> raw, long value) {
+            if (raw == int.class || raw == Integer.class) {
+                return (int) value;
+            } else if (raw == short.class || raw == Short.class) {
+                return (short) value;
+            } else if (raw == byte.class || raw == Byte.class) {
+                return (byte) value;
+            } else if (raw == char.class) {
+                return (char) value;
+            } else if (raw == boolean.class) {
+                return value != 0;
+            } else if (raw == float.class || raw == Float.class) {
+                return (float) value;
+            } else if (raw == double.class || raw == Double.class) {
+                return (double) value;
+            }
+            return value;
+        }
+
+        private String readName() throws IOException {
+            int index = (int) readVarLong();
+            if (index > 0) {
+                if (index > mNames.size()) {
+                    throw new IOException("Invalid name reference");
+                }
+                return mNames.get(index - 1);
+            }
+            String name = readString();
+            mNames.add(name);
+            return name;
+        }
+
+        private String readString() throws IOException {
+            int length = (int) readVarLong();
+            if (length < 0 || length > mIn.available()) {
+                throw new IOException("Invalid string length");
+            }
+            byte[] bytes = new byte[length];
+            mIn.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = mIn.readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid varint");
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package io.appservice.core.statemachine;
+
+import java.lang.reflect.Field;
+
+/**
+ * Converts {@link io.appservice.core.statemachine.annotations.StateField} values to their stored form and back.
+ * Stored values are either a {@code String} or a {@code byte[]}.
+ */
+public interface FieldCodec {
+
+    Object encode(Field field, Object value) throws Exception;
+
+    Object decode(Field field, Object stored) throws Exception;
+
+    /**
+     * Whether a stored value was written in an older format and should be written again.
+     */
+    boolean needsRewrite(Object stored);
+}
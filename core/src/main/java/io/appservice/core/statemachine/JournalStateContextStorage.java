@@ -0,0 +1,392 @@
+package io.appservice.core.statemachine;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import io.appservice.core.util.Logger;
+
+/**
+ * Append-only storage backend.
+ * <p>
+ * Every commit appends one record {@code [length][crc32][writes]} to the journal and syncs it,
+ * the stored rows are kept in memory. When the journal grows beyond {@link #COMPACT_SIZE} the
+ * rows are written to a new snapshot, which replaces the old one by rename, and the journal is
+ * truncated once the directory holding the rename is synced; a snapshot which might not survive a
+ * power loss never replaces the journal. Loading replays the snapshot and then the journal up to the
+ * first incomplete or corrupted record, where the journal is cut. Replaying a journal over a snapshot
+ * which already contains it yields the same rows, so a crash between rename and truncate is harmless.
+ */
+public class JournalStateContextStorage extends AbstractStateContextStorage {
+
+    private static final String LOG_TAG = "IOAPP_JournalStorage";
+
+    private static final String DIRECTORY = "StateContextJournal";
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+    private static final long COMPACT_SIZE = 256 * 1024;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_LONG = 1;
+    private static final byte TAG_STRING = 2;
+    private static final byte TAG_BYTES = 3;
+
+    private final File mSnapshotFile;
+    private final File mJournalFile;
+    private FileChannel mJournal;
+    private final Map<String, Snapshot> mImage = new HashMap<>();
+    private long mCompactions = 0;
+
+    public JournalStateContextStorage(Context context, int version) {
+        this(new File(context.getFilesDir(), DIRECTORY), version);
+    }
+
+    JournalStateContextStorage(File dir, int version) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Logger.e(LOG_TAG, "Could not create " + dir);
+        }
+        String prefix = "v" + version + ".";
+        mSnapshotFile = new File(dir, prefix + "snapshot");
+        mJournalFile = new File(dir, prefix + "journal");
+        // a new version starts from scratch, like the SQLite backend does on upgrade
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().startsWith(prefix)) {
+                    file.delete();
+                }
+            }
+        }
+        if (mSnapshotFile.exists()) {
+            try {
+                FileInputStream in = new FileInputStream(mSnapshotFile);
+                try {
+                    FileChannel channel = in.getChannel();
+                    if (replay(channel) < channel.size()) {
+                        Logger.e(LOG_TAG, "Snapshot " + mSnapshotFile + " is corrupted");
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Logger.e(LOG_TAG, "Could not read snapshot " + e.getMessage());
+            }
+        }
+        try {
+            mJournal = new RandomAccessFile(mJournalFile, "rw").getChannel();
+            long size = mJournal.size();
+            long valid = replay(mJournal);
+            if (valid < size) {
+                Logger.w(LOG_TAG, "Journal cut at " + valid + " of " + size + " bytes");
+                mJournal.truncate(valid);
+                mJournal.force(true);
+            }
+            mJournal.position(valid);
+        } catch (IOException e) {
+            Logger.e(LOG_TAG, "Could not open journal " + e.getMessage());
+            mJournal = null;
+        }
+    }
+
+    public long getCompactionCount() {
+        synchronized (this) {
+            return mCompactions;
+        }
+    }
+
+    @Override
+    protected Snapshot read(String type) {
+        Snapshot snapshot = new Snapshot();
+        synchronized (mImage) {
+            Snapshot stored = mImage.get(type);
+            if (stored != null) {
+                snapshot.mState = stored.mState;
+                snapshot.mTimers.putAll(stored.mTimers);
+                snapshot.mValues.putAll(stored.mValues);
+            }
+        }
+        return snapshot;
+    }
+
+    @Override
+    protected void write(List<Write> writes) throws IOException {
+        if (mJournal == null) {
+            throw new IOException("Journal is not open");
+        }
+        long position = mJournal.position();
+        try {
+            append(mJournal, encode(writes));
+            mJournal.force(false);
+        } catch (IOException e) {
+            // drop the partial record, replay would stop there anyway
+            mJournal.truncate(position);
+            throw e;
+        }
+        apply(writes);
+        if (mJournal.size() > COMPACT_SIZE) {
+            compact();
+        }
+    }
+
+    // package-private, tests compact at a chosen point to reproduce crashes around it
+    void compact() {
+        File tmp = new File(mSnapshotFile.getPath() + ".tmp");
+        try {
+            List<Write> rows = new ArrayList<>();
+            synchronized (mImage) {
+                for (Map.Entry<String, Snapshot> entry : mImage.entrySet()) {
+                    String type = entry.getKey();
+                    Snapshot snapshot = entry.getValue();
+                    if (snapshot.mState != null) {
+                        rows.add(new Write(Write.CONTEXT, type, null, snapshot.mState));
+                    }
+                    for (Map.Entry<String, Long> timer : snapshot.mTimers.entrySet()) {
+                        rows.add(new Write(Write.TIMER, type, timer.getKey(), timer.getValue()));
+                    }
+                    for (Map.Entry<String, Object> value : snapshot.mValues.entrySet()) {
+                        rows.add(new Write(Write.VALUE, type, value.getKey(), value.getValue()));
+                    }
+                }
+            }
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                append(out.getChannel(), encode(rows));
+                out.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mSnapshotFile)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            // the journal is kept if the rename may not be durable yet
+            syncDirectory(mSnapshotFile.getParentFile());
+            mJournal.truncate(0);
+            mJournal.force(true);
+            mCompactions++;
+            Logger.i(LOG_TAG, "Compacted journal into " + rows.size() + " rows");
+        } catch (IOException e) {
+            Logger.e(LOG_TAG, "Could not compact journal " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Flush the entries of dir, a rename is durable only once its directory is.
+     */
+    private static void syncDirectory(File dir) throws IOException {
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+        } catch (ErrnoException e) {
+            throw new IOException("Could not sync " + dir + " " + e.getMessage());
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException ignore) {
+                }
+            }
+        }
+    }
+
+    private void apply(List<Write> writes) {
+        synchronized (mImage) {
+            for (Write write : writes) {
+                if (write.mKind == Write.CLEAR) {
+                    mImage.remove(write.mType);
+                    continue;
+                }
+                Snapshot snapshot = mImage.get(write.mType);
+                if (snapshot == null) {
+                    snapshot = new Snapshot();
+                    mImage.put(write.mType, snapshot);
+                }
+                switch (write.mKind) {
+                    case Write.CONTEXT:
+                        snapshot.mState = ((Number) write.mValue).intValue();
+                        break;
+                    case Write.TIMER:
+                        if (write.mValue == null) {
+                            snapshot.mTimers.remove(write.mId);
+                        } else {
+                            snapshot.mTimers.put(write.mId, ((Number) write.mValue).longValue());
+                        }
+                        break;
+                    case Write.VALUE:
+                        if (write.mValue == null) {
+                            snapshot.mValues.remove(write.mId);
+                        } else {
+                            snapshot.mValues.put(write.mId, write.mValue);
+                        }
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply all valid records of the channel and return the offset behind the last one.
+     */
+    private long replay(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length < 0 || length > MAX_RECORD || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + HEADER_SIZE);
+            CRC32 check = new CRC32();
+            check.update(payload.array(), 0, length);
+            if ((int) check.getValue() != crc) {
+                break;
+            }
+            List<Write> writes;
+            try {
+                writes = decode(payload.array());
+            } catch (IOException e) {
+                break;
+            }
+            apply(writes);
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static void append(FileChannel channel, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    private static byte[] encode(List<Write> writes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(writes.size());
+        for (Write write : writes) {
+            out.writeByte(write.mKind);
+            writeString(out, write.mType);
+            writeString(out, write.mId);
+            if (write.mValue == null) {
+                out.writeByte(TAG_NULL);
+            } else if (write.mValue instanceof String) {
+                out.writeByte(TAG_STRING);
+                writeString(out, (String) write.mValue);
+            } else if (write.mValue instanceof byte[]) {
+                byte[] value = (byte[]) write.mValue;
+                out.writeByte(TAG_BYTES);
+                out.writeInt(value.length);
+                out.write(value);
+            } else {
+                out.writeByte(TAG_LONG);
+                out.writeLong(((Number) write.mValue).longValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<Write> decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid record");
+        }
+        List<Write> writes = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            int kind = in.readByte();
+            String type = readString(in);
+            String id = readString(in);
+            Object value;
+            switch (in.readByte()) {
+                case TAG_NULL:
+                    value = null;
+                    break;
+                case TAG_LONG:
+                    value = in.readLong();
+                    break;
+                case TAG_STRING:
+                    value = readString(in);
+                    break;
+                case TAG_BYTES:
+                    value = readBytes(in);
+                    break;
+                default:
+                    throw new IOException("Invalid value tag");
+            }
+            writes.add(new Write(kind, type, id, value));
+        }
+        return writes;
+    }
+
+    // length prefixed UTF-8, writeUTF is limited to 64k
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, "UTF-8");
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("Invalid length");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
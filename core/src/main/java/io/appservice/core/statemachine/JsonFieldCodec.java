@@ -0,0 +1,32 @@
+package io.appservice.core.statemachine;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.lang.reflect.Field;
+
+/**
+ * Stores field values as Gson JSON text, the original storage format.
+ */
+public class JsonFieldCodec implements FieldCodec {
+
+    private static final Gson GSON = new GsonBuilder().create();
+
+    @Override
+    public Object encode(Field field, Object value) {
+        return GSON.toJson(value);
+    }
+
+    @Override
+    public Object decode(Field field, Object stored) throws Exception {
+        if (stored instanceof byte[]) {
+            return new BinaryFieldCodec().decode(field, stored);
+        }
+        return GSON.fromJson((String) stored, field.getGenericType());
+    }
+
+    @Override
+    public boolean needsRewrite(Object stored) {
+        return stored instanceof byte[];
+    }
+}
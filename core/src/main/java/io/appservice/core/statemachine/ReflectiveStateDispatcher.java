@@ -0,0 +1,135 @@
+package io.appservice.core.statemachine;
+
+import android.content.Context;
+import android.content.Intent;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.appservice.core.statemachine.annotations.StateContextSettings;
+import io.appservice.core.statemachine.annotations.StateEntry;
+import io.appservice.core.statemachine.annotations.StateEvent;
+import io.appservice.core.statemachine.annotations.StateExit;
+import io.appservice.core.statemachine.annotations.StateThread;
+import io.appservice.core.statemachine.annotations.StateTimer;
+import io.appservice.core.util.Logger;
+
+class ReflectiveStateDispatcher implements StateDispatcher {
+
+    private static final String LOG_TAG = "IOAPP_ReflectiveStateDispatcher";
+
+    private final Class<? extends StateContext> mContextType;
+    private final List<Method> mEntries = new ArrayList<>();
+    private final List<Method> mExits = new ArrayList<>();
+    private final List<Method> mEvents = new ArrayList<>();
+    private final List<Method> mTimers = new ArrayList<>();
+    private final List<Constructor<?>> mThreads = new ArrayList<>();
+
+    ReflectiveStateDispatcher(Class<? extends StateContext> contextType) {
+        mContextType = contextType;
+    }
+
+    private static int result(Object state) {
+        if (state == null) {
+            return StateContext.SAME_STATE;
+        }
+        return (Integer) state;
+    }
+
+    @Override
+    public void describe(Registry registry) throws Exception {
+        if (mContextType.isAnnotationPresent(StateContextSettings.class)) {
+            StateContextSettings settings = mContextType.getAnnotation(StateContextSettings.class);
+            if (settings != null) {
+                registry.settings(settings.initial(), settings.recover(), settings.crash(), settings.store());
+            }
+        }
+        Method[] methods = mContextType.getDeclaredMethods();
+        for (Method method : methods) {
+            if (method.isAnnotationPresent(StateEntry.class)) {
+                StateEntry entry = method.getAnnotation(StateEntry.class);
+                if (entry == null) {
+                    continue;
+                }
+                method.setAccessible(true);
+                mEntries.add(method);
+                registry.entry(mEntries.size() - 1, entry.states(), entry.foreground(), entry.store(), entry.durable());
+            } else if (method.isAnnotationPresent(StateExit.class)) {
+                StateExit exit = method.getAnnotation(StateExit.class);
+                if (exit == null) {
+                    continue;
+                }
+                method.setAccessible(true);
+                mExits.add(method);
+                registry.exit(mExits.size() - 1, exit.states());
+            } else if (method.isAnnotationPresent(StateEvent.class)) {
+                StateEvent event = method.getAnnotation(StateEvent.class);
+                if (event == null) {
+                    continue;
+                }
+                method.setAccessible(true);
+                mEvents.add(method);
+                registry.event(mEvents.size() - 1, event.states(), event.id(), event.external(), event.coalesce());
+            } else if (method.isAnnotationPresent(StateTimer.class)) {
+                StateTimer timer = method.getAnnotation(StateTimer.class);
+                if (timer == null) {
+                    continue;
+                }
+                method.setAccessible(true);
+                String id = timer.id();
+                if (id.length() == 0) {
+                    id = method.getName();
+                }
+                mTimers.add(method);
+                registry.timer(mTimers.size() - 1, timer.states(), id, timer.timeout(), timer.slack(),
+                        timer.factor(), timer.max(), timer.jitter(), timer.reset());
+            }
+        }
+        Class<?> innerClasses[] = mContextType.getDeclaredClasses();
+        for (Class<?> declC : innerClasses) {
+            if (!declC.isAnnotationPresent(StateThread.class)) {
+                continue;
+            }
+            if (!StateContext.StateContextThread.class.isAssignableFrom(declC)) {
+                Logger.e(LOG_TAG, declC.getName() + " is not a StateContextThread");
+                continue;
+            }
+            StateThread thread = declC.getAnnotation(StateThread.class);
+            Constructor<?> c = declC.getDeclaredConstructor(mContextType);
+            c.setAccessible(true);
+            mThreads.add(c);
+            registry.thread(mThreads.size() - 1,
+                    thread.states(),
+                    thread.onSuccessState(),
+                    thread.onErrorState(),
+                    thread.onAbortState());
+        }
+    }
+
+    @Override
+    public int entry(StateContext ctx, int handler, Context context) throws Exception {
+        return result(mEntries.get(handler).invoke(ctx, context));
+    }
+
+    @Override
+    public void exit(StateContext ctx, int handler, Context context) throws Exception {
+        mExits.get(handler).invoke(ctx, context);
+    }
+
+    @Override
+    public int event(StateContext ctx, int handler, Context context, Intent intent) throws Exception {
+        return result(mEvents.get(handler).invoke(ctx, context, intent));
+    }
+
+    @Override
+    public int timer(StateContext ctx, int handler, Context context) throws Exception {
+        return result(mTimers.get(handler).invoke(ctx, context));
+    }
+
+    @Override
+    public StateContext.StateContextThread thread(StateContext ctx, int handler) throws Exception {
+        return (StateContext.StateContextThread) mThreads.get(handler).newInstance(ctx);
+    }
+}
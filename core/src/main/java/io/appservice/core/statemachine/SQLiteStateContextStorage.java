@@ -0,0 +1,231 @@
+package io.appservice.core.statemachine;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SQLiteStateContextStorage extends AbstractStateContextStorage {
+
+    private static final String DATABASE_NAME = "StateContextStorage.db";
+
+    private static final String TABLE_CONTEXT = "context";
+    private static final String TABLE_TIMER = "timer";
+    private static final String TABLE_VALUE = "value";
+
+    private static final String COLUMN_TYPE = "type";
+    private static final String COLUMN_STATE = "state";
+    private static final String COLUMN_TIMESTAMP = "timestamp";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_VALUE = "value";
+
+    private static final String CREATE_DATABASE_SQL[] = {
+            "CREATE TABLE " + TABLE_CONTEXT + " (type TEXT PRIMARY KEY, state INTEGER NOT NULL, timestamp INTEGER64 NOT NULL);\n",
+            "CREATE TABLE " + TABLE_TIMER + " (type TEXT, id TEXT NOT NULL, timestamp INTEGER NOT NULL);\n",
+            "CREATE TABLE " + TABLE_VALUE + " (type TEXT, id TEXT NOT NULL, value TEXT);"
+    };
+
+    private static final String DROP_DATABASE_SQL[] = {
+            "DROP TABLE " + TABLE_CONTEXT + ";\n",
+            "DROP TABLE " + TABLE_TIMER + ";\n",
+            "DROP TABLE " + TABLE_VALUE + ";"
+    };
+
+    private SQLiteDatabase mDB;
+
+    private SQLiteStatement mUpdateContext;
+    private SQLiteStatement mInsertContext;
+    private SQLiteStatement mUpdateTimer;
+    private SQLiteStatement mInsertTimer;
+    private SQLiteStatement mDeleteTimer;
+    private SQLiteStatement mUpdateValue;
+    private SQLiteStatement mInsertValue;
+    private SQLiteStatement mDeleteValue;
+    private SQLiteStatement mClear[];
+
+    private static class OpenHelper extends SQLiteOpenHelper {
+
+        private OpenHelper(Context context, int version) {
+            super(context, DATABASE_NAME, null, version);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            for (String sql : CREATE_DATABASE_SQL) {
+                db.execSQL(sql);
+            }
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if ( oldVersion != newVersion ) {
+                for (String sql : DROP_DATABASE_SQL) {
+                    db.execSQL(sql);
+                }
+                onCreate(db);
+            }
+        }
+    }
+
+    public SQLiteStateContextStorage(Context context, int version) {
+        mDB = new OpenHelper(context, version).getWritableDatabase();
+        mUpdateContext = mDB.compileStatement("UPDATE " + TABLE_CONTEXT + " SET " + COLUMN_STATE + "=? WHERE " + COLUMN_TYPE + "=?");
+        mInsertContext = mDB.compileStatement("INSERT INTO " + TABLE_CONTEXT + " (" + COLUMN_STATE + ", " + COLUMN_TYPE + ", " + COLUMN_TIMESTAMP + ") VALUES (?, ?, 0)");
+        mUpdateTimer = mDB.compileStatement("UPDATE " + TABLE_TIMER + " SET " + COLUMN_TIMESTAMP + "=? WHERE " + COLUMN_TYPE + "=? AND " + COLUMN_ID + "=?");
+        mInsertTimer = mDB.compileStatement("INSERT INTO " + TABLE_TIMER + " (" + COLUMN_TIMESTAMP + ", " + COLUMN_TYPE + ", " + COLUMN_ID + ") VALUES (?, ?, ?)");
+        mDeleteTimer = mDB.compileStatement("DELETE FROM " + TABLE_TIMER + " WHERE " + COLUMN_TYPE + "=? AND " + COLUMN_ID + "=?");
+        mUpdateValue = mDB.compileStatement("UPDATE " + TABLE_VALUE + " SET " + COLUMN_VALUE + "=? WHERE " + COLUMN_TYPE + "=? AND " + COLUMN_ID + "=?");
+        mInsertValue = mDB.compileStatement("INSERT INTO " + TABLE_VALUE + " (" + COLUMN_VALUE + ", " + COLUMN_TYPE + ", " + COLUMN_ID + ") VALUES (?, ?, ?)");
+        mDeleteValue = mDB.compileStatement("DELETE FROM " + TABLE_VALUE + " WHERE " + COLUMN_TYPE + "=? AND " + COLUMN_ID + "=?");
+        mClear = new SQLiteStatement[]{
+                mDB.compileStatement("DELETE FROM " + TABLE_CONTEXT + " WHERE " + COLUMN_TYPE + "=?"),
+                mDB.compileStatement("DELETE FROM " + TABLE_TIMER + " WHERE " + COLUMN_TYPE + "=?"),
+                mDB.compileStatement("DELETE FROM " + TABLE_VALUE + " WHERE " + COLUMN_TYPE + "=?")
+        };
+    }
+
+    @Override
+    protected Snapshot read(String type) {
+        Snapshot snapshot = query(COLUMN_TYPE + "=?", new String[]{type}).get(type);
+        return snapshot != null ? snapshot : new Snapshot();
+    }
+
+    @Override
+    protected Map<String, Snapshot> readAll() {
+        return query(null, null);
+    }
+
+    // one pass over each table, rows grouped by context type
+    private Map<String, Snapshot> query(String selection, String[] args) {
+        Map<String, Snapshot> snapshots = new HashMap<>();
+        Cursor context = mDB.query(TABLE_CONTEXT,
+                new String[]{COLUMN_TYPE, COLUMN_STATE},
+                selection,
+                args,
+                null,
+                null,
+                null);
+        while (context.moveToNext()) {
+            Snapshot snapshot = new Snapshot();
+            snapshot.mState = context.getInt(1);
+            snapshots.put(context.getString(0), snapshot);
+        }
+        context.close();
+        if (snapshots.isEmpty()) {
+            return snapshots;
+        }
+        Cursor timer = mDB.query(TABLE_TIMER,
+                new String[]{COLUMN_TYPE, COLUMN_ID, COLUMN_TIMESTAMP},
+                selection,
+                args,
+                null,
+                null,
+                null);
+        while (timer.moveToNext()) {
+            Snapshot snapshot = snapshots.get(timer.getString(0));
+            if (snapshot != null) {
+                snapshot.mTimers.put(timer.getString(1), timer.getLong(2));
+            }
+        }
+        timer.close();
+        Cursor value = mDB.query(TABLE_VALUE,
+                new String[]{COLUMN_TYPE, COLUMN_ID, COLUMN_VALUE},
+                selection,
+                args,
+                null,
+                null,
+                null);
+        while (value.moveToNext()) {
+            Snapshot snapshot = snapshots.get(value.getString(0));
+            if (snapshot == null) {
+                continue;
+            }
+            if (value.getType(2) == Cursor.FIELD_TYPE_BLOB) {
+                snapshot.mValues.put(value.getString(1), value.getBlob(2));
+            } else {
+                snapshot.mValues.put(value.getString(1), value.getString(2));
+            }
+        }
+        value.close();
+        return snapshots;
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof String) {
+            statement.bindString(index, (String) value);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindLong(index, ((Number) value).longValue());
+        }
+    }
+
+    private static int execute(SQLiteStatement statement, Object... args) {
+        statement.clearBindings();
+        for (int index = 0; index < args.length; index++) {
+            bind(statement, index + 1, args[index]);
+        }
+        return statement.executeUpdateDelete();
+    }
+
+    private static void upsert(SQLiteStatement update, SQLiteStatement insert, Write write) {
+        if (execute(update, write.mValue, write.mType, write.mId) == 0) {
+            executeInsert(insert, write);
+        }
+    }
+
+    private static void executeInsert(SQLiteStatement insert, Write write) {
+        insert.clearBindings();
+        bind(insert, 1, write.mValue);
+        bind(insert, 2, write.mType);
+        if (write.mId != null) {
+            bind(insert, 3, write.mId);
+        }
+        insert.executeInsert();
+    }
+
+    @Override
+    protected void write(List<Write> writes) {
+        mDB.beginTransactionNonExclusive();
+        try {
+            for (Write write : writes) {
+                switch (write.mKind) {
+                    case Write.CONTEXT:
+                        if (execute(mUpdateContext, write.mValue, write.mType) == 0) {
+                            executeInsert(mInsertContext, write);
+                        }
+                        break;
+                    case Write.TIMER:
+                        if (write.mValue == null) {
+                            execute(mDeleteTimer, write.mType, write.mId);
+                        } else {
+                            upsert(mUpdateTimer, mInsertTimer, write);
+                        }
+                        break;
+                    case Write.VALUE:
+                        if (write.mValue == null) {
+                            execute(mDeleteValue, write.mType, write.mId);
+                        } else {
+                            upsert(mUpdateValue, mInsertValue, write);
+                        }
+                        break;
+                    case Write.CLEAR:
+                        for (SQLiteStatement clear : mClear) {
+                            execute(clear, write.mType);
+                        }
+                        break;
+                }
+            }
+            mDB.setTransactionSuccessful();
+        } finally {
+            mDB.endTransaction();
+        }
+    }
+}
@@ -2,9 +2,7 @@ package io.appservice.core.statemachine;
 
 import android.content.Context;
 import android.content.Intent;
-import android.util.Pair;
 
-import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -15,22 +13,34 @@ public class State {
 
     private static final String LOG_TAG = "IOAPP_State";
 
-    private final Map<String, Pair<Method, Boolean>> mEventHandlers = new HashMap<>();
-    private Method mEntry = null;
-    private Method mExit = null;
+    private static class EventHandler {
+        private final int mHandler;
+        private final boolean mExternal;
+
+        private EventHandler(int handler, boolean external) {
+            mHandler = handler;
+            mExternal = external;
+        }
+    }
+
+    private final StateDispatcher mDispatcher;
+    private final Map<String, EventHandler> mEventHandlers = new HashMap<>();
+    private int mEntry = -1;
+    private int mExit = -1;
     private boolean mForeground = false;
     private boolean mStore = true;
+    private boolean mDurable = false;
 
 
-    protected State() {
-
+    protected State(StateDispatcher dispatcher) {
+        mDispatcher = dispatcher;
     }
 
-    protected void setEntry(Method entry) {
+    protected void setEntry(int entry) {
         this.mEntry = entry;
     }
 
-    protected void setExit(Method exit) {
+    protected void setExit(int exit) {
         this.mExit = exit;
     }
 
@@ -50,41 +60,46 @@ public class State {
         return mStore;
     }
 
-    protected void addEventHandler(String id, Boolean external, Method handler) {
-        mEventHandlers.put(id, new Pair<>(handler, external));
+    protected void setDurable(boolean state) {
+        mDurable = state;
     }
 
-    protected Integer entry(StateContext ctx, Context context) throws Exception {
+    protected boolean isDurable() {
+        return mDurable;
+    }
+
+    protected void addEventHandler(String id, boolean external, int handler) {
+        mEventHandlers.put(id, new EventHandler(handler, external));
+    }
+
+    protected int entry(StateContext ctx, Context context) throws Exception {
         ctx.setForeground(mForeground);
-        if (mEntry != null) {
-            return (Integer) mEntry.invoke(ctx, context);
+        if (mEntry != -1) {
+            return mDispatcher.entry(ctx, mEntry, context);
         }
         return StateContext.SAME_STATE;
     }
 
     protected void exit(StateContext ctx, Context context) throws Exception {
-        if (mExit != null) {
-            mExit.invoke(ctx, context);
+        if (mExit != -1) {
+            mDispatcher.exit(ctx, mExit, context);
         }
     }
 
 
-    protected Integer handle(StateContext context, Context ctx, Intent intent) throws Exception {
+    protected int handle(StateContext context, Context ctx, Intent intent) throws Exception {
         if (intent == null || intent.getAction() == null) {
             return StateContext.SAME_STATE;
         }
-        Method handler = null;
+        EventHandler handler;
         synchronized (mEventHandlers) {
-            Pair<Method, Boolean> hdl = mEventHandlers.get(intent.getAction());
-            if (hdl == null) {
-                hdl = mEventHandlers.get("*");
-            }
-            if (hdl != null) {
-                handler = hdl.first;
+            handler = mEventHandlers.get(intent.getAction());
+            if (handler == null) {
+                handler = mEventHandlers.get("*");
             }
         }
         if (handler != null) {
-            return (Integer) handler.invoke(context, ctx, intent);
+            return mDispatcher.event(context, handler.mHandler, ctx, intent);
         }else{
             Logger.e(LOG_TAG, "Unhandled event " + intent.getAction() + " in state " + context.getCurrentState() + " for " + context.getClass().getName());
         }
@@ -93,8 +108,8 @@ public class State {
 
     protected void getEvents(Set<String> external, Set<String> local) {
         if (mEventHandlers.size() > 0) {
-            for (Map.Entry<String, Pair<Method, Boolean>> event : mEventHandlers.entrySet()) {
-                if (event.getValue().second || event.getKey().startsWith("android.")) {
+            for (Map.Entry<String, EventHandler> event : mEventHandlers.entrySet()) {
+                if (event.getValue().mExternal || event.getKey().startsWith("android.")) {
                     external.add(event.getKey());
                 } else {
                     local.add(event.getKey());
@@ -3,11 +3,19 @@ package io.appservice.core.statemachine;
 import android.content.Context;
 import android.content.Intent;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Map;
+import java.util.Set;
 
+import io.appservice.core.statemachine.annotations.StateField;
+import io.appservice.core.timer.Clock;
 import io.appservice.core.timer.TimerManager;
+import io.appservice.core.util.Logger;
 
 
 public class StateContext {
@@ -17,6 +25,10 @@ public class StateContext {
     protected Integer mCurrentState = -1;
     public static final int SAME_STATE = -1;
     private StateEventHandler mHandler;
+    private final Set<String> mDirty = new HashSet<>();
+    // fired backoff timers per timer id, see StateTimer.factor
+    @StateField(tracked = true)
+    private Map<String, Integer> mAttempts = new HashMap<>();
 
     public Integer getCurrentState(){
         return mCurrentState;
@@ -63,7 +75,7 @@ public class StateContext {
     protected void startTimers(Context ctx) throws Exception{
         for ( Map.Entry<String, TimerDesc>desc : mTimerDescs.entrySet() ){
             if ( desc.getValue().isActive(mCurrentState) && desc.getValue().getTimeout() != Long.MAX_VALUE){
-                startTimer(ctx, desc.getKey(), desc.getValue().getTimeout());
+                startTimer(ctx, desc.getKey(), desc.getValue().getTimeout(getAttempts(desc.getKey())));
             }
         }
     }
@@ -78,17 +90,92 @@ public class StateContext {
         }
         TimerManager.getInstance(ctx).startTimer(getClass().getName(),
                 id,
-                System.currentTimeMillis() + timeout,
+                Clock.get().elapsed() + timeout,
+                desc.getSlack(),
                 new TimerScope(desc),
                 new TimerManager.Setter() {
                     @Override
                     public void set(String id, Long timestamp) {
-                        mTimers.put(id, timestamp);
+                        // stored deadlines have to survive a reboot, which resets the elapsed clock
+                        mTimers.put(id, Clock.get().toWall(timestamp));
                     }
                 });
         return true;
     }
 
+    /**
+     * Re-arm the stored timers of the current state at their stored deadlines, the timers which
+     * were due while the process was gone fire right away. Stored timers of other states are dropped.
+     */
+    protected void restoreTimers(Context ctx) {
+        Clock clock = Clock.get();
+        List<TimerManager.Request> requests = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> it = mTimers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> timer = it.next();
+            TimerDesc desc = mTimerDescs.get(timer.getKey());
+            if (desc == null || !desc.isActive(mCurrentState) || timer.getValue() == null) {
+                it.remove();
+                continue;
+            }
+            requests.add(new TimerManager.Request(timer.getKey(),
+                    clock.toElapsed(timer.getValue()),
+                    desc.getSlack(),
+                    new TimerScope(desc),
+                    null));
+        }
+        if (!requests.isEmpty()) {
+            Logger.i(LOG_TAG, "Restoring " + requests.size() + " timers of " + getClass().getName());
+            TimerManager.getInstance(ctx).startTimers(getClass().getName(), requests);
+        }
+    }
+
+    private int getAttempts(String id) {
+        Integer attempts = mAttempts.get(id);
+        return attempts == null ? 0 : attempts;
+    }
+
+    void countAttempt(TimerDesc desc) {
+        if (desc.isBackoff()) {
+            mAttempts.put(desc.getId(), getAttempts(desc.getId()) + 1);
+            markDirty("mAttempts");
+        }
+    }
+
+    void resetAttempts(int state) {
+        for (TimerDesc desc : mTimerDescs.values()) {
+            if (desc.isReset(state) && mAttempts.remove(desc.getId()) != null) {
+                markDirty("mAttempts");
+            }
+        }
+    }
+
+    /**
+     * Schedule a tracked {@link io.appservice.core.statemachine.annotations.StateField} to be written on the next save.
+     */
+    protected void markDirty(String field) {
+        synchronized (mDirty) {
+            mDirty.add(field);
+        }
+    }
+
+    boolean isDirty() {
+        synchronized (mDirty) {
+            return !mDirty.isEmpty();
+        }
+    }
+
+    Set<String> takeDirty() {
+        synchronized (mDirty) {
+            if (mDirty.isEmpty()) {
+                return null;
+            }
+            Set<String> dirty = new HashSet<>(mDirty);
+            mDirty.clear();
+            return dirty;
+        }
+    }
+
     protected boolean isForeground() {
         return mForeground;
     }
@@ -110,24 +197,36 @@ public class StateContext {
     }
 
     protected static class TimerDesc {
+        private static final Random sRandom = new Random();
         private int mStates[];
         private String mId;
-        private Method mMethod;
+        private int mHandler;
         private long mTimeout;
+        private long mSlack;
+        private double mFactor;
+        private long mMax;
+        private boolean mJitter;
+        private int mReset[];
 
-        protected TimerDesc(int states[], String id, Method method, long timeout) {
+        protected TimerDesc(int states[], String id, int handler, long timeout, long slack,
+                            double factor, long max, boolean jitter, int reset[]) {
             mStates = states;
             mId = id;
-            mMethod = method;
+            mHandler = handler;
             mTimeout = timeout;
+            mSlack = slack;
+            mFactor = factor;
+            mMax = max;
+            mJitter = jitter;
+            mReset = reset;
         }
 
         public String getId() {
             return mId;
         }
 
-        public Method getHandler() {
-            return mMethod;
+        public int getHandler() {
+            return mHandler;
         }
 
         public boolean isActive(int stateId) {
@@ -142,6 +241,38 @@ public class StateContext {
         long getTimeout() {
             return mTimeout;
         }
+
+        long getSlack() {
+            return mSlack;
+        }
+
+        boolean isBackoff() {
+            return mFactor != 1 || mJitter;
+        }
+
+        boolean isReset(int stateId) {
+            for (int state : mReset) {
+                if (state == stateId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Timeout after the given number of attempts.
+         */
+        long getTimeout(int attempts) {
+            double timeout = mTimeout;
+            for (int attempt = 0; attempt < attempts && timeout < mMax; attempt++) {
+                timeout *= mFactor;
+            }
+            long capped = (long) Math.min(timeout, (double) mMax);
+            if (mJitter) {
+                capped = (long) (sRandom.nextDouble() * capped);
+            }
+            return capped;
+        }
     }
 
     public void pushEvent(Context ctx, Intent intent) {
@@ -0,0 +1,44 @@
+package io.appservice.core.statemachine;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Typed dispatch table of a {@link StateContext} subclass.
+ * <p>
+ * Implementations are generated at compile time by the state annotation processor as
+ * {@code <ContextName>_StateDispatcher} in the package of the context. When no generated
+ * dispatcher exists {@link StateMachine} falls back to a reflective one.
+ * Handlers are addressed by an index per kind, as announced in {@link #describe(Registry)}.
+ */
+public interface StateDispatcher {
+
+    String SUFFIX = "_StateDispatcher";
+
+    interface Registry {
+        void settings(int initial, int recover, int crash, boolean store);
+
+        void entry(int handler, int[] states, boolean foreground, boolean store, boolean durable);
+
+        void exit(int handler, int[] states);
+
+        void event(int handler, int[] states, String id, boolean external, long coalesce);
+
+        void timer(int handler, int[] states, String id, long timeout, long slack,
+                   double factor, long max, boolean jitter, int[] reset);
+
+        void thread(int handler, int[] states, int onSuccessState, int onErrorState, int onAbortState);
+    }
+
+    void describe(Registry registry) throws Exception;
+
+    int entry(StateContext ctx, int handler, Context context) throws Exception;
+
+    void exit(StateContext ctx, int handler, Context context) throws Exception;
+
+    int event(StateContext ctx, int handler, Context context, Intent intent) throws Exception;
+
+    int timer(StateContext ctx, int handler, Context context) throws Exception;
+
+    StateContext.StateContextThread thread(StateContext ctx, int handler) throws Exception;
+}
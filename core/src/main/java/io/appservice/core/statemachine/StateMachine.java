@@ -3,24 +3,26 @@ package io.appservice.core.statemachine;
 import android.content.Context;
 import android.content.Intent;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.appservice.core.BroadcastManager;
+import io.appservice.core.support.StateThreadPool;
+import io.appservice.core.timer.Clock;
 import io.appservice.core.timer.TimerManager;
-import io.appservice.core.statemachine.annotations.StateContextSettings;
-import io.appservice.core.statemachine.annotations.StateEntry;
-import io.appservice.core.statemachine.annotations.StateEvent;
-import io.appservice.core.statemachine.annotations.StateExit;
-import io.appservice.core.statemachine.annotations.StateThread;
-import io.appservice.core.statemachine.annotations.StateTimer;
 import io.appservice.core.util.Logger;
 
 @SuppressWarnings("unused")
@@ -29,6 +31,7 @@ public class StateMachine {
     private Map<Integer, State> mStateMap = new HashMap<>();
 
     private StateContext mContext;
+    private StateDispatcher mDispatcher;
     private StateContextStorage mStorage;
     private StateProcessQueue mQueue;
 
@@ -52,22 +55,26 @@ public class StateMachine {
         private static final int FAILED = 2;
         private static final int ABORTED = 3;
         private ThreadDesc mDesc;
+        private ThreadDesc.Run mRun;
         private int mResult;
         private Context mCtx;
 
-        private ThreadFinishedTask(Context ctx, ThreadDesc desc, int result) {
+        private ThreadFinishedTask(Context ctx, ThreadDesc desc, ThreadDesc.Run run, int result) {
             mCtx = ctx;
             mDesc = desc;
+            mRun = run;
             mResult = result;
         }
 
         @Override
         public void run() {
-            try {
-                mDesc.mThread.join();
-            } catch (Exception e) {
-                Logger.i(LOG_TAG, "Exception during thread shutdown wait " + e.getMessage());
+            if (mDesc.mRun != mRun) {
+                // stopped meanwhile, the result belongs to a run which is gone
+                return;
             }
+            // before the transition, which may start this thread again when run inline
+            mDesc.mState = ThreadState.Finished;
+            mDesc.mRun = null;
             if (mDesc.isActive(mContext.mCurrentState)) {
                 if (mResult == SUCCESS) {
                     if (mDesc.mOnSuccessState != -1) {
@@ -83,29 +90,113 @@ public class StateMachine {
                     }
                 }
             }
-            mDesc.mState = ThreadState.Finished;
-            mDesc.mThreadBody = null;
         }
     }
 
     protected class ThreadDesc {
+        private static final long STOP_TIMEOUT = 5000;
+
         private int mStates[];
-        private Class<? extends StateContext.StateContextThread> mThreadType;
+        private int mHandler;
         private int mOnSuccessState;
         private int mOnErrorState;
         private int mOnAbortState;
-        private Thread mThread;
-        private StateContext.StateContextThread mThreadBody;
+        private Run mRun;
+
+        private volatile ThreadState mState = ThreadState.Idle;
+
+        /**
+         * One execution of the body on the pool.
+         */
+        private class Run implements Runnable {
+            private final Context mCtx;
+            private final StateContext.StateContextThread mBody;
+            // claimed by whoever comes first, the pool thread or a stop before it started
+            private final AtomicBoolean mClaimed = new AtomicBoolean();
+            private final CountDownLatch mDone = new CountDownLatch(1);
+            private volatile Future<?> mFuture;
+            // guarded by this
+            private boolean mFinished;
+            private boolean mAbandoned;
+
+            private Run(Context ctx, StateContext.StateContextThread body) {
+                mCtx = ctx;
+                mBody = body;
+            }
+
+            @Override
+            public void run() {
+                if (!mClaimed.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    Logger.i(LOG_TAG, "Thread " + mBody.getClass().getName() + " running");
+                    int result = ThreadFinishedTask.SUCCESS;
+                    try {
+                        mBody.run(mCtx);
+                    } catch (StateContext.StateContextThreadAborted aborted) {
+                        result = ThreadFinishedTask.ABORTED;
+                        Logger.w(LOG_TAG, "Thread " + mBody.getClass().getName() + " aborted");
+                    } catch (Throwable e) {
+                        // the pool's future would swallow an Error, the state must still leave Running
+                        result = ThreadFinishedTask.FAILED;
+                        Logger.w(LOG_TAG, "Thread " + mBody.getClass().getName() + " exception " + e);
+                    }
+                    Logger.d(LOG_TAG, "Thread " + mBody.getClass().getName() + " stopped");
+                    if (mState == ThreadState.Running) {
+                        mQueue.push(0, new ThreadFinishedTask(mCtx, ThreadDesc.this, this, result));
+                        Logger.d(LOG_TAG, "Thread finished with result " + result);
+                    }
+                } finally {
+                    mDone.countDown();
+                    synchronized (this) {
+                        mFinished = true;
+                        if (mAbandoned) {
+                            StateThreadPool.getInstance(mCtx).reclaimed(mBody.getClass().getName());
+                        }
+                    }
+                }
+            }
 
-        private ThreadState mState = ThreadState.Idle;
+            /**
+             * The body missed its stop deadline, the pool counts it until it returns.
+             */
+            private synchronized void abandon() {
+                if (!mFinished) {
+                    mAbandoned = true;
+                    StateThreadPool.getInstance(mCtx).abandoned(mBody.getClass().getName());
+                }
+            }
+
+            /**
+             * Ask the body to stop, interrupt it and wait up to the deadline.
+             */
+            private boolean stop(long timeout) {
+                mBody.stop();
+                if (mClaimed.compareAndSet(false, true)) {
+                    // never started, nothing to wait for
+                    mDone.countDown();
+                }
+                Future<?> future = mFuture;
+                if (future != null) {
+                    future.cancel(true);
+                }
+                try {
+                    return mDone.await(timeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
 
         private ThreadDesc(int states[],
-                           Class<? extends StateContext.StateContextThread> thread,
+                           int handler,
                            int onSuccessState,
                            int onErrorState,
                            int onAbortState) {
             mStates = states;
-            mThreadType = thread;
+            mHandler = handler;
             mOnSuccessState = onSuccessState;
             mOnErrorState = onErrorState;
             mOnAbortState = onAbortState;
@@ -127,38 +218,18 @@ public class StateMachine {
             if (mState != ThreadState.Idle) {
                 return;
             }
+            Run run = null;
             try {
-
-                Constructor c = mThreadType.getDeclaredConstructor(mContext.getClass());
-                c.setAccessible(true);
-                mThreadBody = (StateContext.StateContextThread) c.newInstance(mContext);
-                final ThreadDesc desc = this;
+                run = new Run(ctx, mDispatcher.thread(mContext, mHandler));
+                mRun = run;
                 mState = ThreadState.Running;
-                mThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Logger.i(LOG_TAG, "Thread " + mThreadBody.getClass().getName() + " running");
-                        int result = ThreadFinishedTask.SUCCESS;
-                        try {
-                            mThreadBody.run(ctx);
-                        } catch (StateContext.StateContextThreadAborted aborted) {
-                            result = ThreadFinishedTask.ABORTED;
-                            Logger.w(LOG_TAG, "Thread " + mThreadBody.getClass().getName() + " aborted");
-                        } catch (Exception e) {
-                            result = ThreadFinishedTask.FAILED;
-                            Logger.w(LOG_TAG, "Thread " + mThreadBody.getClass().getName() + " exception " + e.getMessage());
-                        }
-                        Logger.d(LOG_TAG, "Thread " + mThreadBody.getClass().getName() + " stopped");
-                        if (mState == ThreadState.Running) {
-                            mQueue.push(0, new ThreadFinishedTask(ctx, desc, result));
-                            Logger.d(LOG_TAG, "Thread finished with result " + result);
-                        }
-                        mState = ThreadState.Finished;
-                    }
-                });
-                mThread.start();
+                run.mFuture = StateThreadPool.getInstance(ctx).submit(run);
             } catch (Exception e) {
                 Logger.e(LOG_TAG, "Could not start thread " + e.getMessage());
+                if (run != null) {
+                    // rejected by the pool, the state gets a failure rather than waiting for nothing
+                    mQueue.push(0, new ThreadFinishedTask(ctx, this, run, ThreadFinishedTask.FAILED));
+                }
             }
         }
 
@@ -166,40 +237,82 @@ public class StateMachine {
             if (isActive(state)) {
                 return;
             }
-            if (mState == ThreadState.Running) {
+            Run run = mRun;
+            if (mState == ThreadState.Running && run != null) {
                 mState = ThreadState.Terminate;
-                if (mThreadBody != null) mThreadBody.stop();
-                try {
-                    mThread.join();
-                } catch (Exception ignore) {
-
+                long start = System.nanoTime();
+                boolean done = run.stop(STOP_TIMEOUT);
+                if (!done) {
+                    Logger.w(LOG_TAG, "Thread " + run.mBody.getClass().getName() + " did not stop within " + STOP_TIMEOUT + "ms");
+                    run.abandon();
                 }
+                StateThreadPool.getInstance(run.mCtx).stopped(System.nanoTime() - start, !done);
             }
+            mRun = null;
             mState = ThreadState.Idle;
         }
 
     }
 
     public void save(boolean store) {
+        save(store, false);
+    }
+
+    /**
+     * @return false if durable and the save could not be committed
+     */
+    private boolean save(boolean store, boolean durable) {
         if (mStorage == null) {
-            return;
+            return true;
         }
         if (!store) {
             Logger.d(LOG_TAG, mContext.getClass().getName() + " state store false");
-            return;
+            return true;
         }
         if (!mStore) {
             Logger.d(LOG_TAG, mContext.getClass().getName() + " store settings disabled");
-            return;
+            return true;
         }
         mStorage.save(mContext);
+        return !durable || mStorage.barrier(mContext);
     }
 
     private List<ThreadDesc> mThreads = new ArrayList<>();
     private boolean mStore = true;
     private int mInitialState = 0;
     private int mRestoreState = -1;
+    private boolean mRestoreTimers = false;
     private int mCrashState = -1;
+    // transitions queued but not entered yet, events arriving meanwhile wait in mDeferred,
+    // written by the queue thread only
+    private volatile int mTransitions = 0;
+    // transitions run inline by changeState, 0 queues every transition
+    private int mMaxChainDepth = 0;
+    private volatile long mChained = 0;
+    private static final int NONE = Integer.MIN_VALUE;
+    // action to the states handling it, built in init
+    private final Map<String, BitSet> mAccepting = new HashMap<>();
+    private final BitSet mAcceptingAny = new BitSet();
+    private final AtomicLong mDropped = new AtomicLong();
+    // per action with StateEvent.coalesce, built in init
+    private final Map<String, Coalescer> mCoalescers = new HashMap<>();
+    private final AtomicLong mMerged = new AtomicLong();
+
+    /**
+     * At most one queued event per action, which is pushed no earlier than the window after
+     * the previous one was handled.
+     */
+    private static class Coalescer {
+        private long mWindow;
+        private HandleEventTask mPending;
+        private long mLast = Long.MIN_VALUE;
+
+        private Coalescer(long window) {
+            mWindow = window;
+        }
+    }
+    private final ArrayDeque<Runnable> mDeferred = new ArrayDeque<>();
+    private boolean mDraining = false;
 
     protected boolean doStore() {
         return mStore;
@@ -213,112 +326,104 @@ public class StateMachine {
         return mRestoreState;
     }
 
+    private static StateDispatcher createDispatcher(Class<? extends StateContext> contextType) {
+        try {
+            Class<?> generated = Class.forName(contextType.getName() + StateDispatcher.SUFFIX,
+                    true,
+                    contextType.getClassLoader());
+            Logger.d(LOG_TAG, "Using generated dispatcher for " + contextType.getName());
+            return (StateDispatcher) generated.newInstance();
+        } catch (ClassNotFoundException e) {
+            Logger.d(LOG_TAG, "Using reflective dispatcher for " + contextType.getName());
+        } catch (Exception e) {
+            Logger.e(LOG_TAG, "Could not create dispatcher for " + contextType.getName() + " " + e.getMessage());
+        }
+        return new ReflectiveStateDispatcher(contextType);
+    }
+
+    private State getState(int id, boolean foreground) {
+        State state = mStateMap.get(id);
+        if (state == null) {
+            state = new State(mDispatcher);
+            state.setForeground(foreground);
+            mStateMap.put(id, state);
+        }
+        return state;
+    }
+
     public void init(Context ctx,
                      StateProcessQueue queue,
                      StateContextStorage storage,
                      Class<? extends StateContext> contextType) throws Exception {
         mQueue = queue;
         mStorage = storage;
-        List <StateContext.TimerDesc > timerDescs = new LinkedList<>();
-        if (contextType.isAnnotationPresent(StateContextSettings.class)) {
-            StateContextSettings settings = contextType.getAnnotation(StateContextSettings.class);
-            if (settings != null) {
-                mInitialState = settings.initial();
-                mRestoreState = settings.recover();
-                mStore = settings.store();
-                mCrashState = settings.crash();
-            }
-        }
-        Method[] methods = contextType.getDeclaredMethods();
-        for (Method method : methods) {
-            if (method.isAnnotationPresent(StateEntry.class)) {
-
-                StateEntry entry = method.getAnnotation(StateEntry.class);
-                if (entry == null) {
-                    continue;
-                }
-                method.setAccessible(true);
-                for (int a_state : entry.states()) {
-                    State state = mStateMap.get(a_state);
-                    if (state == null) {
-                        state = new State();
-                        mStateMap.put(a_state, state);
-                    }
-                    state.setEntry(method);
-                    state.setForeground(entry.foreground());
-                    state.setStore(entry.store());
-                }
+        mDispatcher = createDispatcher(contextType);
+        final List <StateContext.TimerDesc > timerDescs = new LinkedList<>();
+        mDispatcher.describe(new StateDispatcher.Registry() {
+            @Override
+            public void settings(int initial, int recover, int crash, boolean store) {
+                mInitialState = initial;
+                mRestoreState = recover;
+                mStore = store;
+                mCrashState = crash;
+            }
 
-            } else if (method.isAnnotationPresent(StateExit.class)) {
-                StateExit exit = method.getAnnotation(StateExit.class);
-                if (exit == null) {
-                    continue;
-                }
-                method.setAccessible(true);
-                for (int a_state : exit.states()) {
-                    State state = mStateMap.get(a_state);
-                    if (state == null) {
-                        state = new State();
-                        mStateMap.put(a_state, state);
-                    }
-                    state.setExit(method);
+            @Override
+            public void entry(int handler, int[] states, boolean foreground, boolean store, boolean durable) {
+                for (int a_state : states) {
+                    State state = getState(a_state, false);
+                    state.setEntry(handler);
+                    state.setForeground(foreground);
+                    state.setStore(store);
+                    state.setDurable(durable);
                 }
-            } else if (method.isAnnotationPresent(StateEvent.class)) {
-                StateEvent event = method.getAnnotation(StateEvent.class);
-                if (event == null) {
-                    continue;
+            }
+
+            @Override
+            public void exit(int handler, int[] states) {
+                for (int a_state : states) {
+                    getState(a_state, false).setExit(handler);
                 }
-                method.setAccessible(true);
-                for (int a_state : event.states()) {
-                    State state = mStateMap.get(a_state);
-                    if (state == null) {
-                        state = new State();
-                        mStateMap.put(a_state, state);
-                    }
-                    state.addEventHandler(event.id(), event.external(), method);
+            }
+
+            @Override
+            public void event(int handler, int[] states, String id, boolean external, long coalesce) {
+                for (int a_state : states) {
+                    getState(a_state, false).addEventHandler(id, external, handler);
                 }
-            } else if (method.isAnnotationPresent(StateTimer.class)) {
-                StateTimer timer = method.getAnnotation(StateTimer.class);
-                method.setAccessible(true);
-                if (timer != null) {
-                    String id = timer.id();
-                    if (id.length() == 0) {
-                        id = method.getName();
-                    }
-                    for (int a_state : timer.states()) {
-                        State state = mStateMap.get(a_state);
-                        if (state == null) {
-                            state = new State();
-                            mStateMap.put(a_state, state);
-                        }
+                if (coalesce > 0) {
+                    Coalescer coalescer = mCoalescers.get(id);
+                    if (coalescer == null) {
+                        mCoalescers.put(id, new Coalescer(coalesce));
+                    } else {
+                        coalescer.mWindow = Math.max(coalescer.mWindow, coalesce);
                     }
-                    timerDescs.add(new StateContext.TimerDesc(timer.states(), id, method, timer.timeout()));
                 }
             }
-        }
-        Class<?> innerClasses[] = contextType.getDeclaredClasses();
-        for (Class<?> declC : innerClasses) {
-            if (declC.isAnnotationPresent(StateThread.class)) {
-                StateThread thread = declC.getAnnotation(StateThread.class);
-                for (int a_state : thread.states()) {
-                    State state = mStateMap.get(a_state);
-                    if (state == null) {
-                        state = new State();
-                        state.setForeground(true);
-                        mStateMap.put(a_state, state);
-                    }
+
+            @Override
+            public void timer(int handler, int[] states, String id, long timeout, long slack,
+                              double factor, long max, boolean jitter, int[] reset) {
+                for (int a_state : states) {
+                    getState(a_state, false);
                 }
-                if (StateContext.StateContextThread.class.isAssignableFrom(declC)) {
-                    mThreads.add(
-                            new ThreadDesc(
-                                    thread.states(),
-                                    (Class<? extends StateContext.StateContextThread>) declC,
-                                    thread.onSuccessState(),
-                                    thread.onErrorState(),
-                                    thread.onAbortState() == -1 ? thread.onErrorState() : thread.onAbortState()));
+                timerDescs.add(new StateContext.TimerDesc(states, id, handler, timeout, slack, factor, max, jitter, reset));
+            }
+
+            @Override
+            public void thread(int handler, int[] states, int onSuccessState, int onErrorState, int onAbortState) {
+                for (int a_state : states) {
+                    getState(a_state, true);
                 }
+                mThreads.add(
+                        new ThreadDesc(
+                                states,
+                                handler,
+                                onSuccessState,
+                                onErrorState,
+                                onAbortState == -1 ? onErrorState : onAbortState));
             }
-        }
+        });
         if (mStorage != null) {
             mContext = mStorage.load(contextType);
         } else {
@@ -327,19 +432,20 @@ public class StateMachine {
         for (StateContext.TimerDesc timerDesc : timerDescs ){
             mContext.addTimerDesc(timerDesc);
         }
+        buildAccepting();
         mContext.init(ctx);
         mContext.setHandler(new StateContext.StateEventHandler() {
             @Override
             public void pushEvent(Context ctx, Intent intent) {
-                mQueue.push(1, new HandleEventTask(ctx, intent));
+                pushEvent(ctx, intent);
             }
         });
         if (mContext.mCurrentState == -1) {
-            mQueue.push(0, new EnterStateTask(mInitialState,
-                    ctx));
+            pushEnter(mInitialState, ctx);
         } else {
             int recover_state = mRestoreState == -1 ? mContext.mCurrentState : mRestoreState;
-            mQueue.push(0, new EnterStateTask(recover_state, ctx));
+            mRestoreTimers = recover_state == mContext.mCurrentState;
+            pushEnter(recover_state, ctx);
         }
     }
 
@@ -355,33 +461,62 @@ public class StateMachine {
 
         @Override
         public void run() {
-            Logger.d(LOG_TAG, "Enter new state " + mNewState + " - " + mContext.getClass().getName());
-            State state = mStateMap.get(mNewState);
-            if (state != null) {
-                try {
-                    mContext.mCurrentState = mNewState;
-                    mContext.setForeground(state.isForeground());
-                    Integer new_state = state.entry(mContext, mCtx);
-                    if (new_state != StateContext.SAME_STATE) {
-                        changeState(mCtx, new_state);
-                    } else {
-                        mContext.startTimers(mCtx);
-                        for (ThreadDesc thread : mThreads) {
-                            thread.start(mCtx, mNewState);
-                        }
-                        save(state.doStore());
-                    }
-                } catch (Exception e) {
-                    Logger.e(LOG_TAG, "Exception in entry to state " + mNewState + " in context " + mContext.getClass().getName());
-                    if (mCrashState != -1) {
-                        Logger.e(LOG_TAG, "Change state to crash handling state");
-                        changeState(mCtx, mCrashState);
-                    }
+            int next = NONE;
+            try {
+                next = enterState(mCtx, mNewState);
+            } finally {
+                mTransitions--;
+            }
+            try {
+                if (next != NONE) {
+                    changeState(mCtx, next);
+                }
+            } finally {
+                runDeferred();
+            }
+        }
+    }
+
+    /**
+     * Enter the state, run its entry handler and, if it stays, its timers and threads.
+     * @return the state the entry handler moves on to, {@link #NONE} if it stays
+     */
+    private int enterState(Context ctx, int newState) {
+        Logger.d(LOG_TAG, "Enter new state " + newState + " - " + mContext.getClass().getName());
+        State state = mStateMap.get(newState);
+        if (state != null) {
+            try {
+                mContext.mCurrentState = newState;
+                mContext.setForeground(state.isForeground());
+                mContext.resetAttempts(newState);
+                if (mRestoreTimers) {
+                    // before startTimers, which would arm them with their full timeout again
+                    mRestoreTimers = false;
+                    mContext.restoreTimers(ctx);
+                }
+                int new_state = state.entry(mContext, ctx);
+                if (new_state != StateContext.SAME_STATE) {
+                    return new_state;
+                }
+                mContext.startTimers(ctx);
+                if (!save(state.doStore(), state.isDurable())) {
+                    // handled like a failed entry, threads of the state are not started
+                    throw new IllegalStateException("State " + newState + " is not durable");
+                }
+                for (ThreadDesc thread : mThreads) {
+                    thread.start(ctx, newState);
+                }
+            } catch (Exception e) {
+                Logger.e(LOG_TAG, "Exception in entry to state " + newState + " in context " + mContext.getClass().getName());
+                if (mCrashState != -1) {
+                    Logger.e(LOG_TAG, "Change state to crash handling state");
+                    queueState(ctx, mCrashState);
                 }
-            } else {
-                Logger.e(LOG_TAG, "State not found " + mNewState + " in context " + mContext.getClass().getName());
             }
+        } else {
+            Logger.e(LOG_TAG, "State not found " + newState + " in context " + mContext.getClass().getName());
         }
+        return NONE;
     }
 
     private class ExitStateTask implements Runnable {
@@ -396,54 +531,231 @@ public class StateMachine {
 
         @Override
         public void run() {
-            Logger.d(LOG_TAG, "Exit state " + mContext.mCurrentState + " - " + mContext.getClass().getName());
-            State state = mStateMap.get(mContext.mCurrentState);
-            if (state != null) {
-                try {
+            exitState(mCtx, mNewState);
+        }
+    }
 
-                    for (ThreadDesc thread : mThreads) {
-                        thread.stop(mNewState);
-                    }
-                    state.exit(mContext, mCtx);
-                    mContext.mCurrentState = mNewState;
-                    TimerManager.getInstance(mCtx).validate(mContext.getClass().getName());
-                } catch (Exception e) {
-                    Logger.e(LOG_TAG, "Exception in exit state " + mContext.mCurrentState + " in context " + mContext.getClass().getName());
-                    if (mCrashState != -1) {
-                        Logger.e(LOG_TAG, "Change state to crash handling state");
-                        changeState(mCtx, mCrashState);
-                    }
+    private void exitState(Context ctx, int newState) {
+        Logger.d(LOG_TAG, "Exit state " + mContext.mCurrentState + " - " + mContext.getClass().getName());
+        State state = mStateMap.get(mContext.mCurrentState);
+        if (state != null) {
+            try {
+
+                for (ThreadDesc thread : mThreads) {
+                    thread.stop(newState);
+                }
+                state.exit(mContext, ctx);
+                mContext.mCurrentState = newState;
+                TimerManager.getInstance(ctx).validate(mContext.getClass().getName());
+            } catch (Exception e) {
+                Logger.e(LOG_TAG, "Exception in exit state " + mContext.mCurrentState + " in context " + mContext.getClass().getName());
+                if (mCrashState != -1) {
+                    Logger.e(LOG_TAG, "Change state to crash handling state");
+                    queueState(ctx, mCrashState);
                 }
-            } else {
-                Logger.e(LOG_TAG, "State not found " + mNewState + " in context " + mContext.getClass().getName());
             }
+        } else {
+            Logger.e(LOG_TAG, "State not found " + newState + " in context " + mContext.getClass().getName());
         }
     }
 
     private void changeState(Context ctx, int newState) {
+        if (mMaxChainDepth > 0 && mTransitions == 0) {
+            runChain(ctx, newState);
+        } else {
+            queueState(ctx, newState);
+        }
+    }
+
+    private void queueState(Context ctx, int newState) {
         if ( mContext.mCurrentState != -1 ){
             mQueue.push(0,new ExitStateTask(newState, ctx));
         }
-        mQueue.push(0,new EnterStateTask(newState, ctx));
+        pushEnter(newState, ctx);
+    }
+
+    /**
+     * Run the transition and those its entry handlers return right away, up to mMaxChainDepth
+     * of them, the rest continues through the queue. Only the state the chain stops in is saved.
+     */
+    private void runChain(Context ctx, int newState) {
+        // events arriving meanwhile are queued for the state the chain ends in
+        mTransitions++;
+        int next = newState;
+        int depth = 0;
+        try {
+            while (next != NONE && depth < mMaxChainDepth) {
+                if (mContext.mCurrentState != -1) {
+                    exitState(ctx, next);
+                }
+                next = enterState(ctx, next);
+                depth++;
+            }
+        } finally {
+            mTransitions--;
+        }
+        mChained += depth;
+        if (next != NONE) {
+            queueState(ctx, next);
+        }
+    }
+
+    public void setMaxChainDepth(int depth) {
+        mMaxChainDepth = depth;
+    }
+
+    /**
+     * Transitions run inline instead of through the queue.
+     */
+    public long getChainedCount() {
+        return mChained;
+    }
+
+    private void buildAccepting() {
+        for (Map.Entry<Integer, State> state : mStateMap.entrySet()) {
+            if (state.getKey() < 0) {
+                continue;
+            }
+            Set<String> actions = new HashSet<>();
+            state.getValue().getEvents(actions, actions);
+            for (String action : actions) {
+                if (action.equals("*")) {
+                    mAcceptingAny.set(state.getKey());
+                    continue;
+                }
+                BitSet states = mAccepting.get(action);
+                if (states == null) {
+                    states = new BitSet();
+                    mAccepting.put(action, states);
+                }
+                states.set(state.getKey());
+            }
+        }
+    }
+
+    /**
+     * Whether the current state handles the event. While a transition is queued the event
+     * waits for the next state, so it is accepted.
+     */
+    private boolean accepts(Intent intent) {
+        if (mTransitions > 0) {
+            return true;
+        }
+        int state = mContext.mCurrentState;
+        if (state < 0 || mAcceptingAny.get(state)) {
+            return true;
+        }
+        String action = intent.getAction();
+        BitSet states = action != null ? mAccepting.get(action) : null;
+        return states != null && states.get(state);
+    }
+
+    private void pushEvent(Context ctx, Intent intent) {
+        if (!accepts(intent)) {
+            mDropped.incrementAndGet();
+            return;
+        }
+        Coalescer coalescer = intent.getAction() != null ? mCoalescers.get(intent.getAction()) : null;
+        if (coalescer == null) {
+            mQueue.push(1, new HandleEventTask(ctx, intent, null));
+            return;
+        }
+        synchronized (coalescer) {
+            if (coalescer.mPending != null) {
+                coalescer.mPending.mIntent = intent;
+                mMerged.incrementAndGet();
+                return;
+            }
+            HandleEventTask task = new HandleEventTask(ctx, intent, coalescer);
+            coalescer.mPending = task;
+            long due = coalescer.mLast == Long.MIN_VALUE ? 0 : coalescer.mLast + coalescer.mWindow;
+            if (due > Clock.get().elapsed()) {
+                mQueue.pushAt(due, 1, task);
+            } else {
+                mQueue.push(1, task);
+            }
+        }
+    }
+
+    /**
+     * Events merged into a queued event of the same action, see StateEvent.coalesce.
+     */
+    public long getMergedEventCount() {
+        return mMerged.get();
+    }
+
+    /**
+     * Events dropped before queueing because the current state does not handle them.
+     */
+    public long getDroppedEventCount() {
+        return mDropped.get();
+    }
+
+    private void pushEnter(int newState, Context ctx) {
+        mTransitions++;
+        mQueue.push(0, new EnterStateTask(newState, ctx));
+    }
+
+    /**
+     * The queue may serve an event ahead of a queued transition to prevent starvation,
+     * such events are kept until the transition has entered its state.
+     */
+    private boolean defer(Runnable task) {
+        if (mDraining || (mTransitions == 0 && mDeferred.isEmpty())) {
+            return false;
+        }
+        mDeferred.add(task);
+        return true;
+    }
+
+    private void runDeferred() {
+        if (mDraining) {
+            return;
+        }
+        mDraining = true;
+        try {
+            while (mTransitions == 0 && !mDeferred.isEmpty()) {
+                mDeferred.poll().run();
+            }
+        } finally {
+            mDraining = false;
+        }
     }
 
     private class HandleEventTask implements Runnable {
         private Context mCtx;
+        // replaced by later events while queued, guarded by mCoalescer if set
         private Intent mIntent;
+        private final Coalescer mCoalescer;
 
-        private HandleEventTask(Context ctx, Intent intent) {
+        private HandleEventTask(Context ctx, Intent intent, Coalescer coalescer) {
             mCtx = ctx;
             mIntent = intent;
+            mCoalescer = coalescer;
         }
 
         @Override
         public void run() {
+            if (defer(this)) {
+                return;
+            }
+            Intent intent = mIntent;
+            if (mCoalescer != null) {
+                synchronized (mCoalescer) {
+                    mCoalescer.mPending = null;
+                    mCoalescer.mLast = Clock.get().elapsed();
+                    intent = mIntent;
+                }
+            }
             State state = mStateMap.get(mContext.mCurrentState);
             if (state != null) {
                 try {
-                    Integer new_state = state.handle(mContext, mCtx, mIntent);
+                    int new_state = state.handle(mContext, mCtx, intent);
                     if (new_state != StateContext.SAME_STATE) {
                         changeState(mCtx, new_state);
+                    } else if (mContext.isDirty()) {
+                        // tracked fields changed without a transition
+                        save(state.doStore());
                     }
                 } catch (Exception e) {
                     Logger.e(LOG_TAG, "Exception in event handler " + mContext.mCurrentState + " in context " + mContext.getClass().getName());
@@ -470,22 +782,30 @@ public class StateMachine {
 
     public void handle(Context ctx,
                        Intent intent) {
-        mQueue.push(1,new HandleEventTask(ctx, intent));
+        pushEvent(ctx, intent);
     }
 
     public void register(Context ctx) throws Exception {
+        BroadcastManager.getInstance(ctx).register(ctx, Collections.singletonList(getBinding()));
+        registerTimers(ctx);
+    }
+
+    BroadcastManager.Binding getBinding() {
         Set<String> external = new HashSet<>();
         Set<String> local = new HashSet<>();
         for (Map.Entry<Integer, State> state : mStateMap.entrySet()) {
             state.getValue().getEvents(external, local);
         }
-        BroadcastManager.getInstance(ctx).register(ctx, external, local,
+        return new BroadcastManager.Binding(external, local,
                 new BroadcastManager.Handler() {
                     @Override
                     public void handle(Context ctx, Intent intent) {
-                        mQueue.push(1,new HandleEventTask(ctx, intent));
+                        pushEvent(ctx, intent);
                     }
                 });
+    }
+
+    void registerTimers(Context ctx) {
         TimerManager.getInstance(ctx).registerHandler(mContext.getClass().getName(),
                 new TimerManager.Handler() {
                     @Override
@@ -520,12 +840,18 @@ public class StateMachine {
 
         @Override
         public void run() {
+            if (defer(this)) {
+                return;
+            }
+            // fired, a restore must not fire it again
+            mContext.mTimers.remove(mTimer);
             StateContext.TimerDesc desc = mContext.getTimerDesc(mTimer);
             if ( desc != null ) {
                 if (desc.isActive(mContext.mCurrentState)) {
                     Logger.d(LOG_TAG, "Firing timer " + desc.getId());
+                    mContext.countAttempt(desc);
                     try {
-                        Integer next_state = (Integer) desc.getHandler().invoke(mContext, mCtx);
+                        int next_state = mDispatcher.timer(mContext, desc.getHandler(), mCtx);
                         if (next_state != StateContext.SAME_STATE) {
                             changeState(mCtx, next_state);
                         }
@@ -6,6 +6,8 @@ import android.content.Intent;
 import java.util.ArrayList;
 import java.util.List;
 
+import io.appservice.core.BroadcastManager;
+import io.appservice.core.support.WorkerLanes;
 import io.appservice.core.util.Logger;
 
 public class StateMachineList {
@@ -15,24 +17,104 @@ public class StateMachineList {
     private List<StateMachine> mMachines = new ArrayList<>();
     private StateProcessQueue mQueue;
     private StateContextStorage mStorage;
+    private WorkerLanes mLanes;
     private Context mCtx;
+    private int mMaxChainDepth = 0;
 
     public StateMachineList(Context ctx, StateProcessQueue queue, int version) {
+        this(ctx, queue, version, 0);
+    }
+
+    /**
+     * @param lanes number of pool threads running one serial lane per machine,
+     *              0 runs every machine on the queue itself
+     */
+    public StateMachineList(Context ctx, StateProcessQueue queue, int version, int lanes) {
+        this(ctx, queue, new SQLiteStateContextStorage(ctx, version), lanes);
+    }
+
+    public StateMachineList(Context ctx, StateProcessQueue queue, StateContextStorage storage, int lanes) {
         mCtx = ctx;
-        mStorage = new StateContextStorage(ctx, version);
+        mStorage = storage;
         mQueue = queue;
+        if (lanes > 0) {
+            mLanes = new WorkerLanes(queue, lanes);
+        }
+    }
+
+    /**
+     * Commit saves of all machines arriving within the window together, 0 commits every save.
+     * Only with lanes, on a single queue no other save can arrive while one waits.
+     */
+    public void setGroupCommitWindow(long window) {
+        if (mLanes == null && window > 0) {
+            Logger.w(LOG_TAG, "Group commit needs worker lanes, window ignored");
+            return;
+        }
+        mStorage.setGroupCommitWindow(window);
+    }
+
+    /**
+     * Persist machine state on a background writer, see {@link StateContextStorage#setWriteBehind(boolean)}.
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        mStorage.setWriteBehind(writeBehind);
+    }
+
+    /**
+     * Codec of persisted fields, has to be set before machines are added.
+     */
+    public void setFieldCodec(FieldCodec codec) {
+        mStorage.setFieldCodec(codec);
+    }
+
+    /**
+     * Run transitions returned by handlers inline, up to depth in a row, 0 queues every transition.
+     * Has to be set before machines are added.
+     */
+    public void setMaxChainDepth(int depth) {
+        mMaxChainDepth = depth;
+    }
+
+    public StateContextStorage getStorage() {
+        return mStorage;
+    }
+
+    public WorkerLanes getLanes() {
+        return mLanes;
     }
 
     public void add(Class<? extends StateContext> context) {
         try {
             StateMachine sm = new StateMachine();
-            sm.init(mCtx, mQueue, mStorage, context);
+            sm.setMaxChainDepth(mMaxChainDepth);
+            StateProcessQueue queue = mQueue;
+            if (mLanes != null) {
+                queue = mLanes.create(context.getSimpleName());
+            }
+            sm.init(mCtx, queue, mStorage, context);
             mMachines.add(sm);
         } catch (Exception e) {
             Logger.i(LOG_TAG, "Could not add context " + context.getName());
         }
     }
 
+    public long getDroppedEventCount() {
+        long dropped = 0;
+        for (StateMachine sm : mMachines) {
+            dropped += sm.getDroppedEventCount();
+        }
+        return dropped;
+    }
+
+    public long getMergedEventCount() {
+        long merged = 0;
+        for (StateMachine sm : mMachines) {
+            merged += sm.getMergedEventCount();
+        }
+        return merged;
+    }
+
     public boolean isForeground() {
         for (StateMachine sm : mMachines) {
             if (sm.isForeground()) {
@@ -43,8 +125,20 @@ public class StateMachineList {
     }
 
     public void register(Context ctx) throws Exception{
+        // one routing update and receiver for the actions of all machines
+        List<BroadcastManager.Binding> bindings = new ArrayList<>();
+        for (StateMachine sm : mMachines) {
+            bindings.add(sm.getBinding());
+        }
+        BroadcastManager.getInstance(ctx).register(ctx, bindings);
         for (StateMachine sm : mMachines) {
-            sm.register(ctx);
+            sm.registerTimers(ctx);
+        }
+    }
+
+    public void start() {
+        if (mLanes != null) {
+            mLanes.start();
         }
     }
 }
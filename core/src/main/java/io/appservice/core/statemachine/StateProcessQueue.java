@@ -1,5 +1,20 @@
 package io.appservice.core.statemachine;
 
 public interface StateProcessQueue {
+    /**
+     * Number of priorities, 0 is served first: state transitions use 0, events and timers 1.
+     */
+    int PRIORITIES = 2;
+
     void push(int priority, Runnable task);
+
+    /**
+     * Push the task once {@link io.appservice.core.timer.Clock#elapsed()} reaches the deadline.
+     */
+    void pushAt(long deadline, int priority, Runnable task);
+
+    /**
+     * Drop a task pushed with {@link #pushAt(long, int, Runnable)} which is not due yet.
+     */
+    void cancel(Runnable task);
 }
@@ -11,5 +11,7 @@ public @interface StateEntry {
     int [] states();
     boolean foreground () default false;
     boolean store () default true;
+    // wait until the state has been written when storage runs write-behind
+    boolean durable () default false;
 }
 
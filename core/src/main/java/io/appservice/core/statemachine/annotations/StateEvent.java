@@ -11,6 +11,11 @@ public @interface StateEvent {
     int [] states();
     String id();
     boolean external() default false;
+    /**
+     * Minimum spacing in milliseconds between two handled events of this action, zero handles
+     * each event. Events arriving meanwhile are merged, the latest one is handled.
+     */
+    long coalesce() default 0;
 
 }
 
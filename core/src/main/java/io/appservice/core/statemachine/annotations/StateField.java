@@ -9,5 +9,7 @@ import java.lang.reflect.Type;
 @Retention(RetentionPolicy.RUNTIME)
 @Target({ElementType.FIELD})
 public @interface StateField {
-
+    // written only after StateContext.markDirty(name), instead of comparing hash codes;
+    // encoded holding the value's monitor, so other threads may change it under that lock
+    boolean tracked () default false;
 }
@@ -11,4 +11,21 @@ public @interface StateTimer {
     int [] states();
     String id() default "";
     long timeout() default Long.MAX_VALUE;
+    /**
+     * Milliseconds the timer may fire late, so it can share a wakeup with other timers.
+     */
+    long slack() default 0;
+    /**
+     * Backoff, each time the timer fires the next timeout is multiplied by factor, up to max.
+     */
+    double factor() default 1;
+    long max() default Long.MAX_VALUE;
+    /**
+     * Full jitter, the timeout is drawn uniformly between zero and the backoff timeout.
+     */
+    boolean jitter() default false;
+    /**
+     * States which reset the backoff to the first attempt.
+     */
+    int [] reset() default {};
 }
@@ -0,0 +1,235 @@
+package io.appservice.core.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.appservice.core.util.Logger;
+
+/**
+ * Files kept by the digest of their content, up to a size quota. Least recently used files go first
+ * when the quota is exceeded. A file is checked out to its user by moving it, which pins its entry
+ * until {@link #publish(String, File)} brings it back or {@link #release(String)} gives it up, so
+ * files of requests in flight are never evicted. Files enter the directory under a temporary name and
+ * are renamed into place, a crash leaves no partial entry behind.
+ */
+public class ContentCache {
+
+    private static final String LOG_TAG = "IOAPP_ContentCache";
+
+    private static final String TMP = ".tmp";
+    private static final int BUF_SIZE = 0x10000;
+
+    private static class Entry {
+        private long mSize;
+        // checkouts not published or released yet, the file is out of the directory while > 0
+        private int mRefs;
+
+        private Entry(long size) {
+            mSize = size;
+        }
+    }
+
+    private final File mDir;
+    private final long mQuota;
+
+    // in access order, guarded by this
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /**
+     * Recovers the entries in dir, files of earlier runs keep their last access order.
+     */
+    public ContentCache(File dir, long quota) {
+        mDir = dir;
+        mQuota = quota;
+        mDir.mkdirs();
+        File files[] = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TMP) || !isKey(file.getName())) {
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), new Entry(file.length()));
+            mSize += file.length();
+        }
+        Logger.i(LOG_TAG, "Recovered " + mEntries.size() + " files " + mSize + " bytes");
+    }
+
+    /**
+     * Keys are an algorithm name and a hex digest, anything else could leave the directory.
+     */
+    public static String key(String algorithm, String digest) {
+        String key = (algorithm + "-" + digest).toLowerCase();
+        return isKey(key) ? key : null;
+    }
+
+    private static boolean isKey(String name) {
+        int dash = name.indexOf('-');
+        if (dash <= 0 || dash == name.length() - 1) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move the file of key to target and pin its entry. False on a miss, or if the file is checked
+     * out already.
+     */
+    public synchronized boolean checkout(String key, File target) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.mRefs > 0) {
+            mMisses++;
+            return false;
+        }
+        File file = new File(mDir, key);
+        if (!file.renameTo(target)) {
+            Logger.w(LOG_TAG, "Could not check out " + key);
+            mEntries.remove(key);
+            mSize -= entry.mSize;
+            file.delete();
+            mMisses++;
+            return false;
+        }
+        entry.mRefs++;
+        mSize -= entry.mSize;
+        mHits++;
+        return true;
+    }
+
+    /**
+     * Move file into the cache under key and drop a checkout of key. A checked out file which changed
+     * its size, or content the cache has already, is deleted instead.
+     */
+    public synchronized boolean publish(String key, File file) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.mRefs > 0) {
+            entry.mRefs--;
+            if (file.length() != entry.mSize) {
+                Logger.w(LOG_TAG, "Checked out " + key + " changed, dropped");
+                mEntries.remove(key);
+                file.delete();
+                return false;
+            }
+        } else if (entry != null) {
+            file.delete();
+            return true;
+        }
+        File target = new File(mDir, key);
+        File tmp = new File(mDir, key + TMP);
+        mDir.mkdirs();
+        try {
+            if (!file.renameTo(tmp)) {
+                // not on the same file system
+                copy(file, tmp);
+                file.delete();
+            }
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            Logger.w(LOG_TAG, "Could not publish " + key + " " + e.getMessage());
+            tmp.delete();
+            mEntries.remove(key);
+            return false;
+        }
+        target.setLastModified(System.currentTimeMillis());
+        if (entry == null) {
+            entry = new Entry(target.length());
+            mEntries.put(key, entry);
+        }
+        mSize += entry.mSize;
+        evict();
+        return true;
+    }
+
+    /**
+     * Drop a checkout of key whose file does not come back.
+     */
+    public synchronized void release(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.mRefs > 0 && --entry.mRefs == 0) {
+            mEntries.remove(key);
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSize > mQuota && it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (entry.getValue().mRefs > 0) {
+                continue;
+            }
+            new File(mDir, entry.getKey()).delete();
+            mSize -= entry.getValue().mSize;
+            mEvictions++;
+            it.remove();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte buf[] = new byte[BUF_SIZE];
+                int r;
+                while ((r = in.read(buf)) != -1) {
+                    out.write(buf, 0, r);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Bytes of the files in the directory, checked out files excluded.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized void dump() {
+        Logger.i(LOG_TAG, "Files " + mEntries.size() + " bytes " + mSize + " of " + mQuota
+                + " hits " + mHits + " misses " + mMisses + " evictions " + mEvictions);
+    }
+}
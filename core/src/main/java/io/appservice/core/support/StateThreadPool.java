@@ -0,0 +1,141 @@
+package io.appservice.core.support;
+
+import android.content.Context;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.appservice.core.CoreApp;
+import io.appservice.core.util.Logger;
+
+/**
+ * Bounded pool running {@link io.appservice.core.statemachine.annotations.StateThread} bodies.
+ * Idle threads exit after {@link #KEEP_ALIVE} ms, bodies beyond {@link #MAX_THREADS} wait for a free thread,
+ * up to {@link #MAX_QUEUED} of them; further bodies are rejected. Bodies which did not stop within their
+ * deadline are counted as abandoned until they return, they keep their thread meanwhile.
+ */
+public class StateThreadPool {
+
+    private static final String LOG_TAG = "IOAPP_StateThreadPool";
+
+    private static final int MAX_THREADS = 6;
+    private static final long KEEP_ALIVE = 30000;
+    private static final int MAX_QUEUED = 64;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final AtomicInteger mCreated = new AtomicInteger();
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mStops = new AtomicLong();
+    private final AtomicLong mStopNanos = new AtomicLong();
+    private final AtomicLong mStopTimeouts = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicInteger mAbandoned = new AtomicInteger();
+
+    private StateThreadPool(Context ctx) {
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS,
+                MAX_THREADS,
+                KEEP_ALIVE,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "StateThread-" + mCreated.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        mRejected.incrementAndGet();
+                        Logger.e(LOG_TAG, "Body rejected, active " + executor.getActiveCount()
+                                + " queued " + executor.getQueue().size() + " abandoned " + mAbandoned.get());
+                        throw new RejectedExecutionException("State thread pool is full");
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static StateThreadPool getInstance(Context ctx) {
+        return CoreApp.getSingleton(ctx, StateThreadPool.class);
+    }
+
+    public Future<?> submit(Runnable body) {
+        mSubmitted.incrementAndGet();
+        return mExecutor.submit(body);
+    }
+
+    /**
+     * Record how long stopping a body took and whether it missed its deadline.
+     */
+    public void stopped(long nanos, boolean timedOut) {
+        mStops.incrementAndGet();
+        mStopNanos.addAndGet(nanos);
+        if (timedOut) {
+            mStopTimeouts.incrementAndGet();
+        }
+    }
+
+    /**
+     * A body did not stop within its deadline and holds its thread until it returns.
+     */
+    public void abandoned(String name) {
+        int abandoned = mAbandoned.incrementAndGet();
+        Logger.w(LOG_TAG, "Abandoned " + name + ", " + abandoned + " of " + MAX_THREADS + " threads held");
+    }
+
+    /**
+     * An abandoned body has returned its thread.
+     */
+    public void reclaimed(String name) {
+        int abandoned = mAbandoned.decrementAndGet();
+        Logger.i(LOG_TAG, "Abandoned " + name + " returned, " + abandoned + " threads held");
+    }
+
+    public int getCreatedThreadCount() {
+        return mCreated.get();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    public long getStopTimeoutCount() {
+        return mStopTimeouts.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * Bodies past their stop deadline which still run.
+     */
+    public int getAbandonedCount() {
+        return mAbandoned.get();
+    }
+
+    /**
+     * Average stop latency in microseconds.
+     */
+    public long getAverageStopMicros() {
+        long stops = mStops.get();
+        return stops == 0 ? 0 : mStopNanos.get() / stops / 1000;
+    }
+
+    public void dump() {
+        Logger.i(LOG_TAG, "Threads created " + mCreated.get() + " active " + mExecutor.getActiveCount()
+                + " queued " + mExecutor.getQueue().size() + " bodies " + mSubmitted.get()
+                + " stops " + mStops.get() + " avg " + getAverageStopMicros() + "us timeouts " + mStopTimeouts.get()
+                + " abandoned " + mAbandoned.get() + " rejected " + mRejected.get());
+    }
+}
@@ -0,0 +1,103 @@
+package io.appservice.core.support;
+
+import android.content.Context;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.appservice.core.CoreApp;
+import io.appservice.core.util.Logger;
+
+/**
+ * Bounded pool running the connections of parallel and segmented downloads. Tasks never wait in a
+ * queue: beyond {@link #MAX_THREADS} they run on the thread submitting them. A download waiting for
+ * its files or ranges therefore never holds the threads they need, and nested downloads cannot
+ * deadlock the pool, they only get less parallel.
+ */
+public class TransferPool {
+
+    private static final String LOG_TAG = "IOAPP_TransferPool";
+
+    private static final int MAX_THREADS = 8;
+    private static final long KEEP_ALIVE = 30000;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final AtomicInteger mCreated = new AtomicInteger();
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mInline = new AtomicLong();
+
+    private TransferPool(Context ctx) {
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS,
+                MAX_THREADS,
+                KEEP_ALIVE,
+                TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Transfer-" + mCreated.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        // all threads busy, the submitter does the work itself
+                        mInline.incrementAndGet();
+                        runnable.run();
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static TransferPool getInstance(Context ctx) {
+        return CoreApp.getSingleton(ctx, TransferPool.class);
+    }
+
+    /**
+     * Run task on a free thread, or on the calling one before returning if there is none.
+     */
+    public Future<?> submit(Runnable task) {
+        mSubmitted.incrementAndGet();
+        return mExecutor.submit(task);
+    }
+
+    /**
+     * Wait for all tasks; they handle their failures themselves.
+     */
+    public void join(List<Future<?>> tasks) throws InterruptedException {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                Logger.e(LOG_TAG, "Transfer failed " + e.getCause());
+            }
+        }
+    }
+
+    public int getCreatedThreadCount() {
+        return mCreated.get();
+    }
+
+    /**
+     * Tasks which found no free thread and ran on their submitter.
+     */
+    public long getInlineCount() {
+        return mInline.get();
+    }
+
+    public void dump() {
+        Logger.i(LOG_TAG, "Threads created " + mCreated.get() + " active " + mExecutor.getActiveCount()
+                + " tasks " + mSubmitted.get() + " inline " + mInline.get());
+    }
+}
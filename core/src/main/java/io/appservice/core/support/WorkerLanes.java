@@ -0,0 +1,267 @@
+package io.appservice.core.support;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.appservice.core.statemachine.StateProcessQueue;
+import io.appservice.core.util.Logger;
+
+/**
+ * Shared bounded pool running one serial lane per state machine.
+ * <p>
+ * Tasks of a lane run one after another in priority order, a waiting lower priority is served
+ * after {@link WorkerQueue#STARVATION_BOUND} tasks of higher ones. Every machine keeps
+ * run-to-completion semantics, while independent machines run on different threads.
+ * While a lane is busy it holds a deadline which never comes on the anchor queue, which keeps
+ * the worker service (and its wake lock) alive; the lane cancels it when it drains, which wakes
+ * the anchor's consumer to let it stop. The consumer is never blocked or polled by a lane, it
+ * goes on serving the deadlines of all machines.
+ */
+public class WorkerLanes {
+
+    private static final String LOG_TAG = "IOAPP_WorkerLanes";
+
+    private static final int MAX_BATCH = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // deadline of the hold of a busy lane, it is cancelled rather than reached
+    private static final long HOLD = Long.MAX_VALUE;
+
+    private final StateProcessQueue mAnchor;
+    private final ThreadPoolExecutor mExecutor;
+    private final List<Lane> mLanes = new CopyOnWriteArrayList<>();
+    private volatile boolean mStarted = false;
+
+    public WorkerLanes(StateProcessQueue anchor, int threads) {
+        mAnchor = anchor;
+        final AtomicInteger index = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threads,
+                threads,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "WorkerLane-" + index.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public Lane create(String name) {
+        Lane lane = new Lane(name);
+        mLanes.add(lane);
+        return lane;
+    }
+
+    /**
+     * Tasks pushed before start are kept until the machines have registered their handlers.
+     */
+    public void start() {
+        mStarted = true;
+        for (Lane lane : mLanes) {
+            lane.schedule();
+        }
+    }
+
+    public List<Lane> getLanes() {
+        return mLanes;
+    }
+
+    public void dump() {
+        for (Lane lane : mLanes) {
+            Logger.i(LOG_TAG, "Lane " + lane.getName()
+                    + " depth=" + lane.getDepth()
+                    + " max=" + lane.getMaxDepth()
+                    + " processed=" + lane.getProcessed()
+                    + " promoted=" + lane.getPromoted());
+        }
+    }
+
+    public class Lane implements StateProcessQueue {
+        private final String mName;
+        private final Vector<Queue<Runnable>> mQueue = new Vector<>();
+        private boolean mScheduled = false;
+        private int mDepth = 0;
+        private int mMaxDepth = 0;
+        private long mProcessed = 0;
+        // tasks of higher priorities served while each priority waited
+        private final int mSkipped[] = new int[PRIORITIES];
+        private long mPromoted = 0;
+
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private final Runnable mBusy = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        private Lane(String name) {
+            mName = name;
+            for (int priority = 0; priority < PRIORITIES; priority++) {
+                mQueue.add(new ArrayDeque<Runnable>());
+            }
+        }
+
+        @Override
+        public void push(int priority, Runnable task) {
+            synchronized (mQueue) {
+                mQueue.get(priority).add(task);
+                mDepth++;
+                if (mDepth > mMaxDepth) {
+                    mMaxDepth = mDepth;
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void pushAt(long deadline, int priority, Runnable task) {
+            // the anchor keeps the deadlines, the task joins this lane when due
+            mAnchor.pushAt(deadline, priority, new Forward(priority, task));
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            mAnchor.cancel(new Forward(0, task));
+        }
+
+        private class Forward implements Runnable {
+            private final int mPriority;
+            private final Runnable mTask;
+
+            private Forward(int priority, Runnable task) {
+                mPriority = priority;
+                mTask = task;
+            }
+
+            @Override
+            public void run() {
+                push(mPriority, mTask);
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                return other instanceof Forward && ((Forward) other).mTask.equals(mTask);
+            }
+
+            @Override
+            public int hashCode() {
+                return mTask.hashCode();
+            }
+        }
+
+        private void schedule() {
+            synchronized (mQueue) {
+                if (mScheduled || !mStarted || mDepth == 0) {
+                    return;
+                }
+                mScheduled = true;
+                // under the lock, a drain finding the lane empty cancels it
+                mAnchor.pushAt(HOLD, 0, mBusy);
+            }
+            mExecutor.execute(mDrain);
+        }
+
+        private Runnable poll() {
+            for (int priority = PRIORITIES - 1; priority > 0; priority--) {
+                if (mSkipped[priority] >= WorkerQueue.STARVATION_BOUND) {
+                    mSkipped[priority] = 0;
+                    Runnable task = mQueue.get(priority).poll();
+                    if (task != null) {
+                        mPromoted++;
+                        mDepth--;
+                        return task;
+                    }
+                }
+            }
+            for (int priority = 0; priority < PRIORITIES; priority++) {
+                Runnable task = mQueue.get(priority).poll();
+                if (task != null) {
+                    mSkipped[priority] = 0;
+                    for (int lower = priority + 1; lower < PRIORITIES; lower++) {
+                        if (mQueue.get(lower).isEmpty()) {
+                            mSkipped[lower] = 0;
+                        } else {
+                            mSkipped[lower]++;
+                        }
+                    }
+                    mDepth--;
+                    return task;
+                }
+            }
+            return null;
+        }
+
+        private void drain() {
+            for (int count = 0; count < MAX_BATCH; count++) {
+                Runnable task;
+                synchronized (mQueue) {
+                    task = poll();
+                    if (task == null) {
+                        mScheduled = false;
+                        // the worker service may stop right away
+                        mAnchor.cancel(mBusy);
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    // an error must not leave the lane scheduled with nobody draining it
+                    Logger.e(LOG_TAG, "Lane " + mName + " task exception " + e);
+                }
+                synchronized (mQueue) {
+                    mProcessed++;
+                }
+            }
+            // give other lanes a chance before continuing
+            mExecutor.execute(mDrain);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getDepth() {
+            synchronized (mQueue) {
+                return mDepth;
+            }
+        }
+
+        public int getMaxDepth() {
+            synchronized (mQueue) {
+                return mMaxDepth;
+            }
+        }
+
+        public long getProcessed() {
+            synchronized (mQueue) {
+                return mProcessed;
+            }
+        }
+
+        /**
+         * Tasks served ahead of higher priorities because they waited too long.
+         */
+        public long getPromoted() {
+            synchronized (mQueue) {
+                return mPromoted;
+            }
+        }
+    }
+}
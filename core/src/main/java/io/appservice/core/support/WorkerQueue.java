@@ -3,15 +3,19 @@ package io.appservice.core.support;
 import android.content.Context;
 import android.content.Intent;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
 import java.util.Queue;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import io.appservice.core.CoreApp;
 import io.appservice.core.statemachine.StateProcessQueue;
+import io.appservice.core.timer.Clock;
 import io.appservice.core.timer.TimerManager;
 import io.appservice.core.util.Logger;
 
@@ -33,12 +37,51 @@ public class WorkerQueue implements StateProcessQueue {
 
     private AtomicReference<State> mState = new AtomicReference<>(State.Idle);
 
-    private final Vector<Queue<Runnable>> mQueue = new Vector<>();
+    /**
+     * A waiting lower priority is served after this many tasks of higher priorities, here and on
+     * the {@link WorkerLanes}.
+     */
+    static final int STARVATION_BOUND = 8;
+
+    @SuppressWarnings("unchecked")
+    private final Queue<Runnable> mQueue[] = new Queue[PRIORITIES];
+    private final AtomicInteger mSize = new AtomicInteger();
+    private volatile Thread mConsumer;
+    // consumer thread only
+    private final int mSkipped[] = new int[PRIORITIES];
+    // written by the consumer thread only, read by anyone
+    private volatile long mPromoted = 0;
+
+    private final PriorityQueue<Delayed> mDelayed = new PriorityQueue<>();
+    private long mDelayedSerial = 0;
+
+    private static class Delayed implements Comparable<Delayed> {
+        private final long mDeadline;
+        private final long mSerial;
+        private final int mPriority;
+        private final Runnable mTask;
+
+        private Delayed(long deadline, long serial, int priority, Runnable task) {
+            mDeadline = deadline;
+            mSerial = serial;
+            mPriority = priority;
+            mTask = task;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (mDeadline != other.mDeadline) {
+                return mDeadline < other.mDeadline ? -1 : 1;
+            }
+            return mSerial < other.mSerial ? -1 : (mSerial == other.mSerial ? 0 : 1);
+        }
+    }
 
     private WorkerQueue(Context ctx){
         mCtx = ctx;
-        mQueue.add(new ArrayDeque<Runnable>());
-        mQueue.add(new ArrayDeque<Runnable>());
+        for (int priority = 0; priority < PRIORITIES; priority++) {
+            mQueue[priority] = new ConcurrentLinkedQueue<>();
+        }
     }
 
     public static WorkerQueue getInstance(Context ctx){
@@ -47,63 +90,145 @@ public class WorkerQueue implements StateProcessQueue {
 
     @Override
     public void push(int priority, Runnable task) {
-        synchronized (mQueue){
-            Queue<Runnable> queue = mQueue.get(priority);
-            queue.add(task);
-            if ( mState.get() == State.Idle ){
-                return;
-            }
-            if ( mState.compareAndSet(State.Active, State.Start)){
-                WorkerService.enqueueWork(mCtx, WorkerService.class, 6396, new Intent());
-            }else{
-                mQueue.notify();
-            }
+        mQueue[priority].add(task);
+        mSize.incrementAndGet();
+        wakeup();
+    }
+
+    @Override
+    public void pushAt(long deadline, int priority, Runnable task) {
+        synchronized (mDelayed) {
+            mDelayed.add(new Delayed(deadline, mDelayedSerial++, priority, task));
         }
+        wakeup();
     }
 
-    private void enqueueStop(Stop runnable){
-        synchronized (mQueue) {
-            Queue<Runnable> queue = mQueue.get(0);
-            if (queue == null) {
-                queue = new ArrayDeque<>();
-                mQueue.add(0, queue);
+    @Override
+    public void cancel(Runnable task) {
+        boolean removed = false;
+        synchronized (mDelayed) {
+            Iterator<Delayed> delayed = mDelayed.iterator();
+            while (delayed.hasNext()) {
+                if (delayed.next().mTask.equals(task)) {
+                    delayed.remove();
+                    removed = true;
+                }
             }
-            queue.add(runnable);
-            mQueue.notify();
         }
+        if (removed) {
+            // the consumer may wait for this deadline, or only stay for it
+            LockSupport.unpark(mConsumer);
+        }
+    }
+
+    /**
+     * Whether the worker service is processing, so delayed tasks fire without starting it.
+     */
+    public boolean isRunning() {
+        State state = mState.get();
+        return state == State.Start || state == State.Process;
+    }
+
+    private void wakeup() {
+        if ( mState.get() == State.Idle ){
+            return;
+        }
+        if ( mState.compareAndSet(State.Active, State.Start)){
+            WorkerService.enqueueWork(mCtx, WorkerService.class, 6396, new Intent());
+        }else{
+            LockSupport.unpark(mConsumer);
+        }
+    }
+
+    private void enqueueStop(Stop runnable){
+        push(0, runnable);
     }
 
     private boolean isEmpty(){
-        synchronized (mQueue){
-            for ( Queue<Runnable> deque: mQueue){
-                if ( deque.size() > 0 ){
-                    return false;
+        if (mSize.get() != 0) {
+            return false;
+        }
+        synchronized (mDelayed) {
+            return mDelayed.isEmpty();
+        }
+    }
+
+    /**
+     * Move due delayed tasks to their queues.
+     * @return milliseconds until the next deadline, -1 if nothing is delayed
+     */
+    private long promoteDue() {
+        long now = Clock.get().elapsed();
+        synchronized (mDelayed) {
+            for (;;) {
+                Delayed head = mDelayed.peek();
+                if (head == null) {
+                    return -1;
                 }
+                if (head.mDeadline > now) {
+                    return head.mDeadline - now;
+                }
+                mDelayed.poll();
+                mQueue[head.mPriority].add(head.mTask);
+                mSize.incrementAndGet();
             }
         }
-        return true;
     }
 
-    private Runnable getTask(CoreApp app){
-        for (;;) {
-            synchronized (mQueue) {
-                if (isEmpty() &&
-                        !app.getSM().isForeground()) {
-                    return null;
-                }
-                if (isEmpty()) {
-                    try {
-                        mQueue.wait();
-                    } catch (Exception e) {
-                        Logger.e(LOG_TAG, "Wait interrupted " + e.getMessage());
-                        return null;
-                    }
+    /**
+     * Number of tasks served ahead of higher priorities because they waited too long.
+     */
+    public long getPromotedCount() {
+        return mPromoted;
+    }
+
+    private Runnable poll() {
+        for (int priority = PRIORITIES - 1; priority > 0; priority--) {
+            if (mSkipped[priority] >= STARVATION_BOUND) {
+                mSkipped[priority] = 0;
+                Runnable task = mQueue[priority].poll();
+                if (task != null) {
+                    mPromoted++;
+                    mSize.decrementAndGet();
+                    return task;
                 }
-                for (int index = 0 ; index < mQueue.size(); index ++) {
-                    if (mQueue.get(index).size() > 0) {
-                        return mQueue.get(index).poll();
+            }
+        }
+        for (int priority = 0; priority < PRIORITIES; priority++) {
+            Runnable task = mQueue[priority].poll();
+            if (task != null) {
+                mSkipped[priority] = 0;
+                for (int lower = priority + 1; lower < PRIORITIES; lower++) {
+                    if (mQueue[lower].isEmpty()) {
+                        mSkipped[lower] = 0;
+                    } else {
+                        mSkipped[lower]++;
                     }
                 }
+                mSize.decrementAndGet();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private Runnable getTask(CoreApp app){
+        for (;;) {
+            long delay = promoteDue();
+            Runnable task = poll();
+            if (task != null) {
+                return task;
+            }
+            if (delay >= 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(delay));
+            } else if (!app.getSM().isForeground()) {
+                return null;
+            } else {
+                LockSupport.park(this);
+            }
+            if (Thread.interrupted()) {
+                Logger.e(LOG_TAG, "Wait interrupted");
+                return null;
             }
         }
     }
@@ -113,26 +238,25 @@ public class WorkerQueue implements StateProcessQueue {
     }
 
     public void start(){
-        synchronized (mQueue){
-            if ( !isEmpty() ){
-                mState.set(State.Start);
-                WorkerService.enqueueWork(mCtx, WorkerService.class, 6396, new Intent());
-            }else{
-                mState.set(State.Active);
-            }
+        mState.set(State.Active);
+        if ( !isEmpty() && mState.compareAndSet(State.Active, State.Start) ){
+            WorkerService.enqueueWork(mCtx, WorkerService.class, 6396, new Intent());
         }
         TimerManager.getInstance(mCtx).registerHandler(TIMER_HANDLER_ID, new TimerManager.Handler() {
             @Override
             public void handle(Context ctx, String id) {
-                synchronized (mQueue){
-                    enqueueStop(null);
-                }
+                enqueueStop(new Stop() {
+                    @Override
+                    public void run() {
+                    }
+                });
             }
         });
     }
 
     protected void foregroundRun(){
         Logger.w(LOG_TAG, "Enter foreground");
+        mConsumer = Thread.currentThread();
         mState.set(State.Process);
         CoreApp app = CoreApp.getIntance(mCtx);
         TimerManager mgr = TimerManager.getInstance(mCtx);
@@ -151,17 +275,17 @@ public class WorkerQueue implements StateProcessQueue {
                 runnable.run();
             }
         }
-        boolean reschedule = CoreApp.getIntance(mCtx).getSM().isForeground();
-        synchronized (mQueue){
-            if ( !isEmpty() ){
-                reschedule = true;
-            }
-        }
+        mConsumer = null;
+        boolean reschedule = CoreApp.getIntance(mCtx).getSM().isForeground() || !isEmpty();
         if (reschedule){
             mState.set(State.Start);
             WorkerService.enqueueWork(mCtx, WorkerService.class, 6396, new Intent());
         }else{
             mState.set(State.Active);
+            // a push may have seen Process after the queue was found empty
+            if ( !isEmpty() && mState.compareAndSet(State.Active, State.Start) ){
+                WorkerService.enqueueWork(mCtx, WorkerService.class, 6396, new Intent());
+            }
         }
         //mgr.stopTimer(TIMER_HANDLER_ID, TIMER_ID);
         if ( stopRunnable != null ){
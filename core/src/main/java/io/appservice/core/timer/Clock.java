@@ -0,0 +1,52 @@
+package io.appservice.core.timer;
+
+import android.os.SystemClock;
+
+/**
+ * Time base of all timers. Deadlines are scheduled on the monotonic {@link #elapsed()} clock,
+ * which does not jump when the wall clock is set; only deadlines which are persisted are
+ * converted to wall clock time. Replace the instance with {@link #set(Clock)} to drive timers
+ * from a virtual clock.
+ */
+public abstract class Clock {
+
+    private static volatile Clock sInstance = new Device();
+
+    public static Clock get() {
+        return sInstance;
+    }
+
+    public static void set(Clock clock) {
+        sInstance = clock != null ? clock : new Device();
+    }
+
+    /**
+     * Monotonic milliseconds, including time spent in deep sleep.
+     */
+    public abstract long elapsed();
+
+    /**
+     * Wall clock milliseconds.
+     */
+    public abstract long wall();
+
+    public long toWall(long elapsed) {
+        return elapsed - elapsed() + wall();
+    }
+
+    public long toElapsed(long wall) {
+        return wall - wall() + elapsed();
+    }
+
+    private static class Device extends Clock {
+        @Override
+        public long elapsed() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public long wall() {
+            return System.currentTimeMillis();
+        }
+    }
+}
@@ -46,7 +46,7 @@ public class TimerLong implements Timer {
     @Override
     public void start(Long timestamp, Runnable runnable) {
         synchronized (this) {
-            Long delta = timestamp - System.currentTimeMillis();
+            Long delta = timestamp - Clock.get().elapsed();
             if (delta < MIN_BACKGROUND_TIMEOUT) {
                 return;
             }
@@ -55,14 +55,14 @@ public class TimerLong implements Timer {
             }
             mCurrent = timestamp;
             mRunnable = runnable;
-            long timeout = timestamp - System.currentTimeMillis();
+            long timeout = timestamp - Clock.get().elapsed();
             if (timeout <= 0) {
                 Intent intent = new Intent(mCtx, BroadcastIntent.class);
                 intent.setAction(ALARM_ACTION);
                 LocalBroadcastManager.getInstance(mCtx).sendBroadcast(intent);
                 return;
             }
-            Logger.i(LOG_TAG, "startLong timeout=" + (timestamp - System.currentTimeMillis()));
+            Logger.i(LOG_TAG, "startLong timeout=" + (timestamp - Clock.get().elapsed()));
             Intent intent = new Intent(mCtx, BroadcastIntent.class);
             intent.setAction(ALARM_ACTION);
             AlarmManager am = (AlarmManager) mCtx.getSystemService(ALARM_SERVICE);
@@ -74,7 +74,7 @@ public class TimerLong implements Timer {
                 am.cancel(pendingIntent);
             }
             pendingIntent = PendingIntent.getBroadcast(mCtx, RC, intent, 0);
-            am.set(AlarmManager.RTC_WAKEUP, timestamp, pendingIntent);
+            am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, timestamp, pendingIntent);
         }
 
     }
@@ -103,7 +103,7 @@ public class TimerLong implements Timer {
     @Override
     public void dump(){
         if ( mCurrent != Long.MAX_VALUE ){
-            Logger.i(LOG_TAG, "Timer long fire in " + (mCurrent - System.currentTimeMillis()) + "ms");
+            Logger.i(LOG_TAG, "Timer long fire in " + (mCurrent - Clock.get().elapsed()) + "ms");
         }else{
             Logger.i(LOG_TAG, "Timer long is not running");
         }
@@ -1,18 +1,24 @@
 package io.appservice.core.timer;
 
 import android.content.Context;
-import android.util.Pair;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import io.appservice.core.CoreApp;
 import io.appservice.core.util.Logger;
 
 import static io.appservice.core.timer.TimerLong.MIN_BACKGROUND_TIMEOUT;
 
+/**
+ * Timers of all handlers are kept in min-heaps indexed by (handler, id), only the head is armed
+ * on {@link TimerShort} or {@link TimerLong}. A timer with slack may fire up to slack milliseconds
+ * late, so timers with overlapping windows are fired by a single wakeup.
+ * Timestamps are {@link Clock#elapsed()} milliseconds.
+ */
 public class TimerManager {
 
     public interface Handler {
@@ -27,157 +33,283 @@ public class TimerManager {
         void set(String id, Long timestamp);
     }
 
+    public static class Request {
+        private final String mId;
+        private final long mTimestamp;
+        private final long mSlack;
+        private final Scope mScope;
+        private final Setter mSetter;
+
+        public Request(String id, long timestamp, long slack, Scope scope, Setter setter) {
+            mId = id;
+            mTimestamp = timestamp;
+            mSlack = slack;
+            mScope = scope;
+            mSetter = setter;
+        }
+    }
+
     private Context mCtx;
 
     private static final String LOG_TAG = "IOAPP_TimerManager";
 
     private final Map<String, TimerHandler> mHandlers = new HashMap<>();
 
+    // due order and latest firing order of the same entries
+    private final Heap mDue = new Heap(Heap.DUE);
+    private final Heap mLatest = new Heap(Heap.LATEST);
+    private long mArmed = Long.MAX_VALUE;
+    private long mWakeups = 0;
+    private long mSavedWakeups = 0;
+
     private Timer mShortTimer;
     private Timer mLongTimer;
 
-    private class TimerHandler {
-        private Handler mHandler;
-        private final Map<String, Pair< Long , Scope > > mTimers = new HashMap<>();
+    private final Runnable mFire = new Runnable() {
+        @Override
+        public void run() {
+            timer();
+        }
+    };
+
+    private static class Entry {
+        private final TimerHandler mOwner;
+        private final String mId;
+        private final long mDeadline;
+        private final long mLatest;
+        private final Scope mScope;
+        private final int mIndex[] = new int[2];
+
+        private Entry(TimerHandler owner, String id, long deadline, long slack, Scope scope) {
+            mOwner = owner;
+            mId = id;
+            mDeadline = deadline;
+            mLatest = deadline + slack < deadline ? Long.MAX_VALUE - 1 : deadline + slack;
+            mScope = scope;
+        }
 
-        private TimerHandler(Handler handler) {
-            mHandler = handler;
+        private long key(int order) {
+            return order == Heap.DUE ? mDeadline : mLatest;
         }
+    }
 
-        private void check(Context ctx, Long cts) {
-            Set<String> fired = new HashSet<>();
-            synchronized (mTimers) {
-                for (Map.Entry<String, Pair< Long , Scope >> timer : mTimers.entrySet()) {
-                    if (timer.getValue().first < cts) {
-                        fired.add(timer.getKey());
-                    }
-                }
-                for ( String id : fired ){
+    /**
+     * Binary min-heap of entries, each entry keeps its position per heap for O(log n) removal.
+     */
+    private static class Heap {
+        private static final int DUE = 0;
+        private static final int LATEST = 1;
 
-                    Pair< Long , Scope > tm = mTimers.remove(id);
-                    cancel(tm.first);
-                }
-            }
-            for ( String id : fired ){
-                mHandler.handle(ctx, id);
-            }
+        private final int mOrder;
+        private Entry mEntries[] = new Entry[16];
+        private int mSize = 0;
+
+        private Heap(int order) {
+            mOrder = order;
         }
 
-        private void start(String id, Long timestamp, Scope scope, Setter setter ) {
-            synchronized (mTimers) {
-                if ( mTimers.containsKey(id)){
-                    return;
-                }
-                mTimers.put(id, new Pair <> (timestamp,scope));
-                if ( setter != null ){
-                    setter.set(id, timestamp);
-                }
+        private Entry peek() {
+            return mSize > 0 ? mEntries[0] : null;
+        }
+
+        private void add(Entry entry) {
+            if (mSize == mEntries.length) {
+                Entry entries[] = new Entry[mSize * 2];
+                System.arraycopy(mEntries, 0, entries, 0, mSize);
+                mEntries = entries;
             }
-            invalidate();
+            mEntries[mSize] = entry;
+            siftUp(mSize++);
         }
 
-        private Pair < Long , Long > calcNearest(){
-            Long nearestLong = Long.MAX_VALUE;
-            Long nearestShort = Long.MAX_VALUE;
-            Long cts = System.currentTimeMillis();
-            for (Map.Entry<String, Pair< Long , Scope >> timer : mTimers.entrySet()) {
-                Long dt = timer.getValue().first - cts;
-                if ( dt <= MIN_BACKGROUND_TIMEOUT ){
-                    if (timer.getValue().first < nearestShort) {
-                        nearestShort = timer.getValue().first;
-                    }
-                }
-                if ( dt > MIN_BACKGROUND_TIMEOUT ){
-                    if ( timer.getValue().first < nearestLong){
-                        nearestLong = timer.getValue().first;
-                    }
-                }
+        private void remove(Entry entry) {
+            int index = entry.mIndex[mOrder];
+            Entry last = mEntries[--mSize];
+            mEntries[mSize] = null;
+            if (index != mSize) {
+                place(last, index);
+                siftDown(index);
+                siftUp(last.mIndex[mOrder]);
             }
-            return new Pair<>(nearestShort, nearestLong);
         }
 
-        private void stop(String id) {
-            synchronized (mTimers) {
-                Pair< Long , Scope > removed = mTimers.remove(id);
-                if (removed != null) {
-                    invalidate();
+        private void place(Entry entry, int index) {
+            mEntries[index] = entry;
+            entry.mIndex[mOrder] = index;
+        }
+
+        private void siftUp(int index) {
+            Entry entry = mEntries[index];
+            long key = entry.key(mOrder);
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (mEntries[parent].key(mOrder) <= key) {
+                    break;
                 }
+                place(mEntries[parent], index);
+                index = parent;
             }
+            place(entry, index);
         }
 
-        private boolean validate(){
-            boolean invalidated = false;
-            synchronized (mTimers) {
-                Set < Pair < String , Long > > inv = null;
-                for (Map.Entry<String, Pair< Long , Scope >> timer : mTimers.entrySet()) {
-                    if ( timer.getValue().second != null ){
-                        if ( !timer.getValue().second.isValid()){
-                            if ( inv == null ){
-                                inv = new HashSet<>();
-                            }
-                            inv.add(new Pair <>(timer.getKey(), timer.getValue().first));
-                        }
-                    }
+        private void siftDown(int index) {
+            Entry entry = mEntries[index];
+            long key = entry.key(mOrder);
+            for (;;) {
+                int child = 2 * index + 1;
+                if (child >= mSize) {
+                    break;
                 }
-                if ( inv != null ){
-                    invalidated = true;
-                    for ( Pair < String , Long > timer : inv ){
-                        cancel(timer.second);
-                        mTimers.remove(timer.first);
-                    }
+                if (child + 1 < mSize && mEntries[child + 1].key(mOrder) < mEntries[child].key(mOrder)) {
+                    child++;
+                }
+                if (key <= mEntries[child].key(mOrder)) {
+                    break;
                 }
+                place(mEntries[child], index);
+                index = child;
             }
-            return invalidated;
+            place(entry, index);
         }
-
     }
 
-    private void cancel(Long timestamp){
-        mShortTimer.stop(timestamp);
-        mLongTimer.stop(timestamp);
+    private static class TimerHandler {
+        private Handler mHandler;
+        private final Map<String, Entry> mTimers = new HashMap<>();
+
+        private TimerHandler(Handler handler) {
+            mHandler = handler;
+        }
     }
 
     private TimerManager(Context ctx) throws Exception {
+        this(ctx, CoreApp.getSingleton(ctx, TimerShort.class), CoreApp.getSingleton(ctx, TimerLong.class));
+    }
+
+    TimerManager(Context ctx, Timer shortTimer, Timer longTimer) {
         mCtx = ctx;
-        mLongTimer = CoreApp.getSingleton(ctx, TimerLong.class);
-        mShortTimer = CoreApp.getSingleton(ctx, TimerShort.class);
+        mShortTimer = shortTimer;
+        mLongTimer = longTimer;
+    }
+
+    public static TimerManager getInstance(Context ctx) {
+        return CoreApp.getSingleton(ctx, TimerManager.class);
+    }
+
+    private void add(Entry entry) {
+        mDue.add(entry);
+        mLatest.add(entry);
+        entry.mOwner.mTimers.put(entry.mId, entry);
+    }
+
+    private void remove(Entry entry) {
+        mDue.remove(entry);
+        mLatest.remove(entry);
+        entry.mOwner.mTimers.remove(entry.mId);
+    }
+
+    private void removeAll(TimerHandler handler) {
+        for (Entry entry : new ArrayList<>(handler.mTimers.values())) {
+            remove(entry);
+        }
     }
 
     private void timer (){
+        List<Entry> fired = new ArrayList<>();
         synchronized (mHandlers){
-            Long cts = System.currentTimeMillis();
-            for ( Map.Entry<String, TimerHandler> handler : mHandlers.entrySet()){
-                handler.getValue().check(mCtx, cts);
+            // the armed deadline went off, whatever is left has to be armed again
+            mArmed = Long.MAX_VALUE;
+            long cts = Clock.get().elapsed();
+            // everything within its window shares this wakeup
+            Entry entry;
+            while ((entry = mDue.peek()) != null && entry.mDeadline <= cts) {
+                remove(entry);
+                fired.add(entry);
+            }
+            if (!fired.isEmpty()) {
+                mWakeups++;
+                mSavedWakeups += fired.size() - 1;
             }
         }
-        invalidate();
+        for (Entry entry : fired) {
+            entry.mOwner.mHandler.handle(mCtx, entry.mId);
+        }
+        rearm();
     }
 
-    public static TimerManager getInstance(Context ctx) {
-        return CoreApp.getSingleton(ctx, TimerManager.class);
+    /**
+     * Arm the earliest latest firing time, by then every timer due is fired with it.
+     * Nothing is done while that time did not change.
+     */
+    private void rearm() {
+        long head;
+        long previous;
+        synchronized (mHandlers) {
+            Entry entry = mLatest.peek();
+            head = entry != null ? entry.mLatest : Long.MAX_VALUE;
+            if (head == mArmed) {
+                return;
+            }
+            previous = mArmed;
+            mArmed = head;
+        }
+        if (previous != Long.MAX_VALUE) {
+            mShortTimer.stop(previous);
+            mLongTimer.stop(previous);
+        }
+        if (head == Long.MAX_VALUE) {
+            return;
+        }
+        if (head - Clock.get().elapsed() <= MIN_BACKGROUND_TIMEOUT) {
+            mShortTimer.start(head, mFire);
+        } else {
+            mLongTimer.start(head, mFire);
+        }
     }
 
     public void registerHandler(String handlerId, Handler handler) {
         synchronized (mHandlers) {
-            mHandlers.put(handlerId, new TimerHandler(handler));
+            TimerHandler previous = mHandlers.put(handlerId, new TimerHandler(handler));
+            if (previous != null) {
+                removeAll(previous);
+            }
         }
+        rearm();
     }
 
     public void unregisterHandler(String handlerId) {
         synchronized (mHandlers){
-            mHandlers.remove(handlerId);
+            TimerHandler previous = mHandlers.remove(handlerId);
+            if (previous != null) {
+                removeAll(previous);
+            }
         }
+        rearm();
     }
 
     public void validate (String handlerId){
         synchronized (mHandlers){
             TimerHandler handler = mHandlers.get(handlerId);
-            if ( handler != null ){
-                if ( handler.validate() ){
-                    invalidate();
+            if ( handler == null ){
+                return;
+            }
+            List<Entry> invalid = null;
+            for (Entry entry : handler.mTimers.values()) {
+                if (entry.mScope != null && !entry.mScope.isValid()) {
+                    if (invalid == null) {
+                        invalid = new ArrayList<>();
+                    }
+                    invalid.add(entry);
                 }
             }
+            if (invalid == null) {
+                return;
+            }
+            for (Entry entry : invalid) {
+                remove(entry);
+            }
         }
+        rearm();
     }
 
     public void startTimer(String handlerId, String id, Long timestamp){
@@ -185,65 +317,79 @@ public class TimerManager {
     }
 
     public void startTimer(String handlerId, String id, Long timestamp, Scope scope, Setter setter) {
-        TimerHandler handler;
-        synchronized (mHandlers){
-            handler = mHandlers.get(handlerId);
-        }
-        if ( handler != null ){
-            Logger.i(LOG_TAG, "Starting timer for " + handlerId + " id " + id + " timestamp "+ timestamp + " msec " + (timestamp - System.currentTimeMillis()));
-            handler.start(id, timestamp, scope, setter);
-        }
+        startTimer(handlerId, id, timestamp, 0, scope, setter);
     }
 
-    public void stopTimer(String handlerId, String id) {
-        TimerHandler handler;
-        synchronized (mHandlers){
-            handler = mHandlers.get(handlerId);
-        }
-        if ( handler != null ){
-            handler.stop(id);
-        }
+    /**
+     * @param slack milliseconds the timer may fire after timestamp, so it can share a wakeup with other timers
+     */
+    public void startTimer(String handlerId, String id, Long timestamp, long slack, Scope scope, Setter setter) {
+        startTimers(handlerId, Collections.singletonList(new Request(id, timestamp, slack, scope, setter)));
     }
 
-    private void invalidate(){
-        Long nearestShort = Long.MAX_VALUE;
-        Long nearestLong = Long.MAX_VALUE;
+    /**
+     * Start several timers of a handler and arm the result once.
+     * Timers which are overdue fire right away.
+     */
+    public void startTimers(String handlerId, List<Request> requests) {
         synchronized (mHandlers){
-            for ( Map.Entry<String, TimerHandler> handler : mHandlers.entrySet()){
-                Pair < Long, Long > nearest = handler.getValue().calcNearest();
-                if ( nearest.first < nearestShort ){
-                    nearestShort = nearest.first;
+            TimerHandler handler = mHandlers.get(handlerId);
+            if ( handler == null ){
+                return;
+            }
+            long now = Clock.get().elapsed();
+            for (Request request : requests) {
+                if (handler.mTimers.containsKey(request.mId)) {
+                    continue;
                 }
-                if ( nearest.second < nearestLong ){
-                    nearestLong = nearest.second;
+                Logger.i(LOG_TAG, "Starting timer for " + handlerId + " id " + request.mId + " timestamp " + request.mTimestamp
+                        + " msec " + (request.mTimestamp - now) + " slack " + request.mSlack);
+                add(new Entry(handler, request.mId, request.mTimestamp, request.mSlack, request.mScope));
+                if ( request.mSetter != null ){
+                    request.mSetter.set(request.mId, request.mTimestamp);
                 }
             }
         }
-        if ( nearestShort != Long.MAX_VALUE ){
-            TimerShort ts = CoreApp.getSingleton(mCtx, TimerShort.class);
-            if ( ts != null ){
-                ts.start(nearestShort, new Runnable() {
-                    @Override
-                    public void run() {
-                        timer();
-                    }
-                });
+        rearm();
+    }
+
+    public void stopTimer(String handlerId, String id) {
+        synchronized (mHandlers){
+            TimerHandler handler = mHandlers.get(handlerId);
+            if ( handler == null ){
+                return;
             }
-        }
-        if ( nearestLong != Long.MAX_VALUE ){
-            TimerLong tl = CoreApp.getSingleton(mCtx, TimerLong.class);
-            if ( tl != null ){
-                tl.start(nearestLong, new Runnable() {
-                    @Override
-                    public void run() {
-                        timer();
-                    }
-                });
+            Entry entry = handler.mTimers.get(id);
+            if ( entry == null ){
+                return;
             }
+            remove(entry);
+        }
+        rearm();
+    }
+
+    public long getWakeupCount() {
+        synchronized (mHandlers) {
+            return mWakeups;
+        }
+    }
+
+    /**
+     * Timers which fired together with another one instead of waking up on their own.
+     */
+    public long getSavedWakeupCount() {
+        synchronized (mHandlers) {
+            return mSavedWakeups;
+        }
+    }
+
+    public void dump() {
+        synchronized (mHandlers) {
+            Entry next = mLatest.peek();
+            Logger.i(LOG_TAG, "Timers " + mDue.mSize + (next != null ? " next in " + (next.mLatest - Clock.get().elapsed()) + "ms" : "")
+                    + " wakeups " + mWakeups + " saved " + mSavedWakeups);
         }
-        Logger.i(LOG_TAG, "=========================================");
         mLongTimer.dump();
         mShortTimer.dump();
     }
-
 }
@@ -6,6 +6,7 @@ import android.content.Intent;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import io.appservice.core.support.WorkerQueue;
 import io.appservice.core.util.Logger;
 
 public class TimerShort implements Timer {
@@ -17,6 +18,7 @@ public class TimerShort implements Timer {
     private CountDownLatch mLatch;
     private Long mCurrent = Long.MAX_VALUE;
     private Runnable mRunnable = null;
+    private Runnable mFire = null;
 
     protected TimerShort(Context ctx){
         mCtx = ctx;
@@ -28,15 +30,26 @@ public class TimerShort implements Timer {
             if ( timestamp >= mCurrent ){
                 return;
             }
-            Logger.i(LOG_TAG, "timer short start " + (timestamp-System.currentTimeMillis()));
+            Logger.i(LOG_TAG, "timer short start " + (timestamp-Clock.get().elapsed()));
             mCurrent = timestamp;
             mRunnable = runnable;
             if ( mLatch != null ) {
                 mLatch.countDown();
                 mLatch = null;
             }
+            WorkerQueue queue = WorkerQueue.getInstance(mCtx);
+            if ( mFire != null ) {
+                queue.cancel(mFire);
+                mFire = null;
+            }
+            if ( queue.isRunning() ) {
+                // fire from the running worker, no job has to be started
+                mFire = new Fire(timestamp);
+                queue.pushAt(timestamp, 1, mFire);
+                return;
+            }
+            mLatch = new CountDownLatch(1);
         }
-        mLatch = new CountDownLatch(1);
         TimerShortJob.enqueueWork(mCtx, TimerShortJob.class, 98457, new Intent().putExtra("timestamp", timestamp));
     }
 
@@ -52,6 +65,32 @@ public class TimerShort implements Timer {
                 mLatch.countDown();
                 mLatch = null;
             }
+            if ( mFire != null ) {
+                WorkerQueue.getInstance(mCtx).cancel(mFire);
+                mFire = null;
+            }
+        }
+    }
+
+    private class Fire implements Runnable {
+        private final Long mTimestamp;
+
+        private Fire(Long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        public void run() {
+            synchronized (TimerShort.this) {
+                if ( mFire != this || !mCurrent.equals(mTimestamp) ) {
+                    return;
+                }
+                mCurrent = Long.MAX_VALUE;
+                mFire = null;
+                if ( mRunnable != null ) {
+                    mRunnable.run();
+                }
+            }
         }
     }
 
@@ -64,7 +103,7 @@ public class TimerShort implements Timer {
         CountDownLatch latch = mLatch;
         try {
             if (latch != null) {
-                long dt = ts - System.currentTimeMillis();
+                long dt = ts - Clock.get().elapsed();
                 if (dt > 0) {
                     latch.await(dt, TimeUnit.MILLISECONDS);
                 }
@@ -88,7 +127,7 @@ public class TimerShort implements Timer {
     @Override
     public void dump(){
         if ( mCurrent != Long.MAX_VALUE ){
-            Logger.i(LOG_TAG, "Timer short fire in " + (mCurrent - System.currentTimeMillis()) + "ms");
+            Logger.i(LOG_TAG, "Timer short fire in " + (mCurrent - Clock.get().elapsed()) + "ms");
         }else{
             Logger.i(LOG_TAG, "Timer short is not running");
         }
@@ -0,0 +1,284 @@
+package io.appservice.core.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * MD5 and SHA-256 whose intermediate state can be saved and restored, so hashing a file which is
+ * written in several runs never has to read its beginning again. {@link java.security.MessageDigest}
+ * does not expose its state.
+ */
+public abstract class Digest {
+
+    public static final String MD5 = "MD5";
+    public static final String SHA256 = "SHA-256";
+
+    private static final int BLOCK = 64;
+
+    private final String mAlgorithm;
+    protected final int mState[];
+    private final byte mBuffer[] = new byte[BLOCK];
+    private long mLength;
+
+    private Digest(String algorithm, int state[]) {
+        mAlgorithm = algorithm;
+        mState = state;
+    }
+
+    public static Digest create(String algorithm) {
+        if (MD5.equalsIgnoreCase(algorithm)) {
+            return new Md5();
+        }
+        if (SHA256.equalsIgnoreCase(algorithm)) {
+            return new Sha256();
+        }
+        throw new IllegalArgumentException("Unsupported digest " + algorithm);
+    }
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /**
+     * Bytes hashed so far.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public void update(byte buf[], int off, int len) {
+        int used = (int) (mLength % BLOCK);
+        mLength += len;
+        if (used > 0) {
+            int n = Math.min(BLOCK - used, len);
+            System.arraycopy(buf, off, mBuffer, used, n);
+            off += n;
+            len -= n;
+            if (used + n < BLOCK) {
+                return;
+            }
+            compress(mBuffer, 0);
+        }
+        while (len >= BLOCK) {
+            compress(buf, off);
+            off += BLOCK;
+            len -= BLOCK;
+        }
+        if (len > 0) {
+            System.arraycopy(buf, off, mBuffer, 0, len);
+        }
+    }
+
+    /**
+     * Independent digest with the state of this one.
+     */
+    public Digest copy() {
+        Digest copy = create(mAlgorithm);
+        System.arraycopy(mState, 0, copy.mState, 0, mState.length);
+        System.arraycopy(mBuffer, 0, copy.mBuffer, 0, BLOCK);
+        copy.mLength = mLength;
+        return copy;
+    }
+
+    /**
+     * Lowercase hex digest of the bytes so far; hashing can go on afterwards.
+     */
+    public String hex() {
+        byte out[] = copy().finish();
+        StringBuilder sb = new StringBuilder(out.length * 2);
+        for (byte b : out) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public void save(DataOutputStream out) throws IOException {
+        out.writeUTF(mAlgorithm);
+        out.writeLong(mLength);
+        for (int word : mState) {
+            out.writeInt(word);
+        }
+        out.write(mBuffer, 0, (int) (mLength % BLOCK));
+    }
+
+    public static Digest restore(DataInputStream in) throws IOException {
+        Digest digest;
+        try {
+            digest = create(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        digest.mLength = in.readLong();
+        for (int i = 0; i < digest.mState.length; i++) {
+            digest.mState[i] = in.readInt();
+        }
+        in.readFully(digest.mBuffer, 0, (int) (digest.mLength % BLOCK));
+        return digest;
+    }
+
+    private byte[] finish() {
+        long bits = mLength * 8;
+        int used = (int) (mLength % BLOCK);
+        byte pad[] = new byte[(used < 56 ? 56 - used : 120 - used) + 8];
+        pad[0] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            int shift = isBigEndian() ? 56 - 8 * i : 8 * i;
+            pad[pad.length - 8 + i] = (byte) (bits >>> shift);
+        }
+        update(pad, 0, pad.length);
+        byte out[] = new byte[mState.length * 4];
+        for (int i = 0; i < out.length; i++) {
+            int shift = isBigEndian() ? 24 - 8 * (i % 4) : 8 * (i % 4);
+            out[i] = (byte) (mState[i / 4] >>> shift);
+        }
+        return out;
+    }
+
+    protected abstract boolean isBigEndian();
+
+    protected abstract void compress(byte block[], int off);
+
+    private static class Md5 extends Digest {
+        private static final int SHIFT[] = {
+                7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21
+        };
+        // RFC 1321, floor(abs(sin(i + 1)) * 2^32)
+        private static final int K[] = {
+                0xd76aa478, 0xe8c7b756, 0x242070db, 0xc1bdceee, 0xf57c0faf, 0x4787c62a, 0xa8304613, 0xfd469501,
+                0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be, 0x6b901122, 0xfd987193, 0xa679438e, 0x49b40821,
+                0xf61e2562, 0xc040b340, 0x265e5a51, 0xe9b6c7aa, 0xd62f105d, 0x02441453, 0xd8a1e681, 0xe7d3fbc8,
+                0x21e1cde6, 0xc33707d6, 0xf4d50d87, 0x455a14ed, 0xa9e3e905, 0xfcefa3f8, 0x676f02d9, 0x8d2a4c8a,
+                0xfffa3942, 0x8771f681, 0x6d9d6122, 0xfde5380c, 0xa4beea44, 0x4bdecfa9, 0xf6bb4b60, 0xbebfbc70,
+                0x289b7ec6, 0xeaa127fa, 0xd4ef3085, 0x04881d05, 0xd9d4d039, 0xe6db99e5, 0x1fa27cf8, 0xc4ac5665,
+                0xf4292244, 0x432aff97, 0xab9423a7, 0xfc93a039, 0x655b59c3, 0x8f0ccc92, 0xffeff47d, 0x85845dd1,
+                0x6fa87e4f, 0xfe2ce6e0, 0xa3014314, 0x4e0811a1, 0xf7537e82, 0xbd3af235, 0x2ad7d2bb, 0xeb86d391
+        };
+
+        private final int mWords[] = new int[16];
+
+        private Md5() {
+            super(MD5, new int[]{0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476});
+        }
+
+        @Override
+        protected boolean isBigEndian() {
+            return false;
+        }
+
+        @Override
+        protected void compress(byte block[], int off) {
+            int x[] = mWords;
+            for (int i = 0; i < 16; i++) {
+                int p = off + i * 4;
+                x[i] = (block[p] & 0xff) | (block[p + 1] & 0xff) << 8
+                        | (block[p + 2] & 0xff) << 16 | (block[p + 3] & 0xff) << 24;
+            }
+            int a = mState[0];
+            int b = mState[1];
+            int c = mState[2];
+            int d = mState[3];
+            for (int i = 0; i < 64; i++) {
+                int f;
+                int g;
+                int round = i >> 4;
+                if (round == 0) {
+                    f = (b & c) | (~b & d);
+                    g = i;
+                } else if (round == 1) {
+                    f = (d & b) | (~d & c);
+                    g = (5 * i + 1) & 15;
+                } else if (round == 2) {
+                    f = b ^ c ^ d;
+                    g = (3 * i + 5) & 15;
+                } else {
+                    f = c ^ (b | ~d);
+                    g = (7 * i) & 15;
+                }
+                int t = d;
+                d = c;
+                c = b;
+                b = b + Integer.rotateLeft(a + f + K[i] + x[g], SHIFT[(round << 2) | (i & 3)]);
+                a = t;
+            }
+            mState[0] += a;
+            mState[1] += b;
+            mState[2] += c;
+            mState[3] += d;
+        }
+    }
+
+    private static class Sha256 extends Digest {
+        private static final int K[] = {
+                0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+                0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+                0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+                0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+                0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+                0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+                0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+                0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+        };
+
+        private final int mWords[] = new int[64];
+
+        private Sha256() {
+            super(SHA256, new int[]{
+                    0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+            });
+        }
+
+        @Override
+        protected boolean isBigEndian() {
+            return true;
+        }
+
+        @Override
+        protected void compress(byte block[], int off) {
+            int w[] = mWords;
+            for (int i = 0; i < 16; i++) {
+                int p = off + i * 4;
+                w[i] = (block[p] & 0xff) << 24 | (block[p + 1] & 0xff) << 16
+                        | (block[p + 2] & 0xff) << 8 | (block[p + 3] & 0xff);
+            }
+            for (int i = 16; i < 64; i++) {
+                int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+            int a = mState[0];
+            int b = mState[1];
+            int c = mState[2];
+            int d = mState[3];
+            int e = mState[4];
+            int f = mState[5];
+            int g = mState[6];
+            int h = mState[7];
+            for (int i = 0; i < 64; i++) {
+                int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+                int ch = (e & f) ^ (~e & g);
+                int t1 = h + s1 + ch + K[i] + w[i];
+                int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+                int maj = (a & b) ^ (a & c) ^ (b & c);
+                int t2 = s0 + maj;
+                h = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            mState[0] += a;
+            mState[1] += b;
+            mState[2] += c;
+            mState[3] += d;
+            mState[4] += e;
+            mState[5] += f;
+            mState[6] += g;
+            mState[7] += h;
+        }
+    }
+}
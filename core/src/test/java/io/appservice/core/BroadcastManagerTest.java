@@ -0,0 +1,243 @@
+package io.appservice.core;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.appservice.core.statemachine.StateMachineList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Dispatch runs against a published routing table while other threads register and unregister:
+ * handlers registered before the dispatch see every broadcast of their actions exactly once, and
+ * after the registrations settle the table holds exactly what is still registered. Each
+ * registration call installs at most one receiver, which goes with the last handler of its actions.
+ */
+public class BroadcastManagerTest {
+
+    private static final int ACTIONS = 16;
+    private static final int DISPATCHERS = 4;
+    private static final int DISPATCHES = 100000;
+    private static final int ROUNDS = 2000;
+
+    // counts the receivers registered with the system
+    private static class App extends CoreApp {
+        private int mReceivers;
+        private int mRegistered;
+
+        @Override
+        public void init(StateMachineList list) {
+        }
+
+        @Override
+        public int getStorageVersion() {
+            return 1;
+        }
+
+        @Override
+        public synchronized Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+            mReceivers++;
+            mRegistered++;
+            return null;
+        }
+
+        @Override
+        public synchronized void unregisterReceiver(BroadcastReceiver receiver) {
+            mReceivers--;
+        }
+    }
+
+    private static class Action extends Intent {
+        private final String mAction;
+
+        private Action(String action) {
+            mAction = action;
+        }
+
+        @Override
+        public String getAction() {
+            return mAction;
+        }
+    }
+
+    private static class Counter implements BroadcastManager.Handler {
+        private final AtomicLongArray mCalls = new AtomicLongArray(ACTIONS);
+
+        @Override
+        public void handle(Context ctx, Intent intent) {
+            mCalls.incrementAndGet(Integer.parseInt(intent.getAction().substring(1)));
+        }
+    }
+
+    private static String action(int index) {
+        return "a" + index;
+    }
+
+    @Test
+    public void concurrentRegisterAndDispatch() throws Exception {
+        final App app = new App();
+        final BroadcastManager manager = new BroadcastManager();
+        final Action intents[] = new Action[ACTIONS];
+        Counter stable = new Counter();
+        for (int i = 0; i < ACTIONS; i++) {
+            intents[i] = new Action(action(i));
+            manager.registerExternal(app, action(i), stable);
+        }
+
+        final AtomicLongArray sent = new AtomicLongArray(ACTIONS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int d = 0; d < DISPATCHERS; d++) {
+            final int offset = d;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < DISPATCHES; i++) {
+                            int index = (i + offset) % ACTIONS;
+                            manager.handle(app, intents[index]);
+                            sent.incrementAndGet(index);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        // every other handler is unregistered again right away
+        final List<Counter> kept = new ArrayList<>();
+        final List<Set<Integer>> keptActions = new ArrayList<>();
+        final List<Counter> dropped = new ArrayList<>();
+        final AtomicLong registrations = new AtomicLong();
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Random random = new Random(5);
+                    for (int round = 0; round < ROUNDS; round++) {
+                        Counter handler = new Counter();
+                        Set<Integer> indexes = new HashSet<>();
+                        Set<String> actions = new HashSet<>();
+                        for (int i = 0; i < 3; i++) {
+                            int index = random.nextInt(ACTIONS);
+                            indexes.add(index);
+                            actions.add(action(index));
+                        }
+                        manager.register(app, actions, null, handler);
+                        registrations.incrementAndGet();
+                        if (round % 2 == 0) {
+                            manager.unregister(app, handler);
+                            dropped.add(handler);
+                        } else {
+                            kept.add(handler);
+                            keptActions.add(indexes);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }));
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long nanos = System.nanoTime() - start;
+        assertNull(failure.get());
+        for (int i = 0; i < ACTIONS; i++) {
+            assertEquals(action(i), sent.get(i), stable.mCalls.get(i));
+        }
+
+        // settled: one more broadcast of every action reaches exactly the kept handlers
+        long before[][] = new long[kept.size()][ACTIONS];
+        for (int k = 0; k < kept.size(); k++) {
+            for (int i = 0; i < ACTIONS; i++) {
+                before[k][i] = kept.get(k).mCalls.get(i);
+            }
+        }
+        long droppedBefore = 0;
+        for (Counter handler : dropped) {
+            for (int i = 0; i < ACTIONS; i++) {
+                droppedBefore += handler.mCalls.get(i);
+            }
+        }
+        for (Action intent : intents) {
+            manager.handle(app, intent);
+        }
+        for (int k = 0; k < kept.size(); k++) {
+            for (int i = 0; i < ACTIONS; i++) {
+                long expected = before[k][i] + (keptActions.get(k).contains(i) ? 1 : 0);
+                assertEquals(expected, kept.get(k).mCalls.get(i));
+            }
+        }
+        long droppedAfter = 0;
+        for (Counter handler : dropped) {
+            for (int i = 0; i < ACTIONS; i++) {
+                droppedAfter += handler.mCalls.get(i);
+            }
+        }
+        assertEquals(droppedBefore, droppedAfter);
+        assertTrue("receivers " + app.mRegistered, app.mRegistered <= ACTIONS + registrations.get());
+
+        manager.unregisterAll(app);
+        assertEquals(0, app.mReceivers);
+        long dispatches = (long) DISPATCHERS * DISPATCHES;
+        System.out.println("Broadcasts " + dispatches + " on " + DISPATCHERS + " threads with " + ROUNDS
+                + " registrations in " + nanos / 1000000 + "ms, " + dispatches * 1000 / Math.max(1, nanos / 1000) + "/ms");
+    }
+
+    @Test
+    public void batchRegistrationInstallsOneReceiver() {
+        App app = new App();
+        BroadcastManager manager = new BroadcastManager();
+        List<BroadcastManager.Binding> bindings = new ArrayList<>();
+        List<Counter> handlers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Counter handler = new Counter();
+            handlers.add(handler);
+            Set<String> actions = new HashSet<>();
+            actions.add(action(i));
+            actions.add(action(i + 1));
+            bindings.add(new BroadcastManager.Binding(actions, null, handler));
+        }
+        manager.register(app, bindings);
+        assertEquals(1, app.mRegistered);
+
+        // every action is covered already
+        manager.register(app, Collections.singleton(action(3)), null, new Counter());
+        assertEquals(1, app.mRegistered);
+
+        manager.handle(app, new Action(action(5)));
+        assertEquals(1, handlers.get(4).mCalls.get(5));
+        assertEquals(1, handlers.get(5).mCalls.get(5));
+        assertEquals(0, handlers.get(6).mCalls.get(5));
+
+        for (Counter handler : handlers) {
+            manager.unregister(app, handler);
+        }
+        // the extra handler of a3 still needs the receiver
+        assertEquals(1, app.mReceivers);
+        manager.unregisterAll(app);
+        assertEquals(0, app.mReceivers);
+    }
+}
@@ -0,0 +1,187 @@
+package io.appservice.core.http;
+
+import android.content.Context;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.appservice.core.util.Digest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A segmented download cut off by the server leaves its sidecar behind, and the next run continues
+ * every range from the sidecar instead of starting over.
+ */
+public class HttpSegmentedDownloaderTest {
+
+    private static final int SEGMENTS = 4;
+    private static final int MIN_SIZE = 1024 * 1024;
+
+    private final byte mData[] = new byte[3 * 1024 * 1024 + 17];
+    private final byte mSmall[] = new byte[MIN_SIZE / 2];
+    private final AtomicInteger mRequests = new AtomicInteger();
+    // ranges are cut after this many bytes, -1 serves them whole
+    private volatile int mCutAfter = -1;
+
+    private final TestCoreApp mApp = new TestCoreApp();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private HttpServer mServer;
+    private URL mUrl;
+    private File mFile;
+    private File mSidecar;
+    private String mExpected;
+
+    // serves bytes=start-end and bytes=start-
+    private class RangeHandler implements HttpHandler {
+        private final byte mBody[];
+
+        RangeHandler(byte body[]) {
+            mBody = body;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            mRequests.incrementAndGet();
+            String range = exchange.getRequestHeaders().getFirst("Range").substring(6);
+            int dash = range.indexOf('-');
+            int start = Integer.parseInt(range.substring(0, dash));
+            int end = dash == range.length() - 1 ? mBody.length - 1 : Integer.parseInt(range.substring(dash + 1));
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + mBody.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+            OutputStream out = exchange.getResponseBody();
+            int length = end - start + 1;
+            if (mCutAfter >= 0 && length > mCutAfter) {
+                length = mCutAfter;
+            }
+            try {
+                out.write(mBody, start, length);
+                out.flush();
+            } catch (IOException e) {
+                // the client dropped the rest of an open range
+            }
+            exchange.close();
+        }
+    }
+
+    private class Download extends HttpSegmentedDownloader {
+        Download() {
+            super(SEGMENTS, MIN_SIZE);
+        }
+
+        @Override
+        protected Context getContext() {
+            return mApp;
+        }
+
+        @Override
+        public String getPath() {
+            return mFile.getPath();
+        }
+
+        @Override
+        protected String getURL() {
+            return mUrl.toString();
+        }
+
+        @Override
+        protected String getDigestAlgorithm() {
+            return Digest.MD5;
+        }
+
+        @Override
+        protected String getExpectedDigest() {
+            return mExpected;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(1).nextBytes(mData);
+        new Random(2).nextBytes(mSmall);
+        mExpected = String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(mData)));
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/file", new RangeHandler(mData));
+        mServer.createContext("/small", new RangeHandler(mSmall));
+        mServer.start();
+        mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/file");
+        mFile = File.createTempFile("segments", ".bin");
+        mFile.delete();
+        mSidecar = new File(mFile.getPath() + ".segments");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+        mFile.delete();
+        mSidecar.delete();
+        new File(mFile.getPath() + ".digest").delete();
+    }
+
+    @Test
+    public void resumesRangesFromSidecar() throws Exception {
+        mCutAfter = 300000;
+        Download cut = new Download();
+        try {
+            cut.execute(mUrl);
+            fail("ranges were cut");
+        } catch (IOException expected) {
+        }
+        assertTrue(mSidecar.exists());
+        long first = cut.getReceived();
+        assertTrue(first > 0 && first < mData.length);
+
+        mCutAfter = -1;
+        Download resumed = new Download();
+        resumed.execute(mUrl);
+        assertArrayEquals(mData, Files.readAllBytes(mFile.toPath()));
+        assertEquals(mExpected, resumed.getDigest());
+        assertFalse(mSidecar.exists());
+        // only what the first run had not written
+        assertTrue(resumed.getReceived() < mData.length);
+        assertTrue(first + resumed.getReceived() >= mData.length);
+
+        mRequests.set(0);
+        Download again = new Download();
+        again.execute(mUrl);
+        assertEquals(0, mRequests.get());
+        assertEquals(mExpected, again.getDigest());
+    }
+
+    @Test
+    public void streamsSmallFileOnFirstRequest() throws Exception {
+        mUrl = new URL(mUrl.toString().replace("/file", "/small"));
+        mExpected = String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(mSmall)));
+        Download download = new Download();
+        download.execute(mUrl);
+        assertArrayEquals(mSmall, Files.readAllBytes(mFile.toPath()));
+        assertEquals(mExpected, download.getDigest());
+        assertFalse(mSidecar.exists());
+        // no separate probe of the size
+        assertEquals(1, mRequests.get());
+    }
+}
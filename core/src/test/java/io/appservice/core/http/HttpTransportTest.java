@@ -0,0 +1,203 @@
+package io.appservice.core.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsExchange;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Released responses, error responses included, hand their connection back to the pool, so the
+ * next request to the same host goes out on the same socket. Over TLS a reused connection needs no
+ * handshake, a new one resumes the session of the shared context, and the insecure trust policy
+ * still checks the host name. The stand-in server has a self-signed certificate for localhost.
+ */
+public class HttpTransportTest {
+
+    private static final char KEY_PASSWORD[] = "password".toCharArray();
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    // client port of every request the server got
+    private final List<Integer> mPorts = new CopyOnWriteArrayList<>();
+    // TLS session of every request the secure server got
+    private final List<String> mSessions = new CopyOnWriteArrayList<>();
+    private HttpServer mServer;
+    private HttpsServer mSecureServer;
+    private HttpTransport mTransport;
+    private String mBase;
+    private int mSecurePort;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mPorts.add(exchange.getRemoteAddress().getPort());
+                boolean found = exchange.getRequestURI().getPath().equals("/file");
+                byte body[] = (found ? "content of the file" : "no such file").getBytes("UTF-8");
+                exchange.sendResponseHeaders(found ? 200 : 404, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        mServer.start();
+        mBase = "http://127.0.0.1:" + mServer.getAddress().getPort();
+
+        mSecureServer = HttpsServer.create(new InetSocketAddress(0), 0);
+        mSecureServer.setExecutor(mExecutor);
+        mSecureServer.setHttpsConfigurator(new HttpsConfigurator(serverContext()) {
+            @Override
+            public void configure(HttpsParameters params) {
+                // session ids stay the same on resumption up to TLS 1.2
+                params.setProtocols(new String[]{"TLSv1.2"});
+            }
+        });
+        mSecureServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mPorts.add(exchange.getRemoteAddress().getPort());
+                mSessions.add(new BigInteger(1, ((HttpsExchange) exchange).getSSLSession().getId()).toString(16));
+                if (exchange.getRequestURI().getPath().equals("/close")) {
+                    exchange.getResponseHeaders().add("Connection", "close");
+                }
+                byte body[] = "secure content".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        mSecureServer.start();
+        mSecurePort = mSecureServer.getAddress().getPort();
+        mTransport = HttpTransport.getInstance(new TestCoreApp());
+    }
+
+    private SSLContext serverContext() throws IOException {
+        try {
+            KeyStore keys = KeyStore.getInstance("PKCS12");
+            InputStream in = getClass().getResourceAsStream("localhost.p12");
+            try {
+                keys.load(in, KEY_PASSWORD);
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keys, KEY_PASSWORD);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            return context;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mSecureServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private int request(String path) throws Exception {
+        return request(new URL(mBase + path), false);
+    }
+
+    private int request(URL url, boolean insecure) throws Exception {
+        HttpURLConnection con = mTransport.open(url, insecure);
+        int response = con.getResponseCode();
+        mTransport.release(con);
+        return response;
+    }
+
+    @Test
+    public void releasedConnectionIsReused() throws Exception {
+        assertEquals(200, request("/file"));
+        assertEquals(200, request("/file"));
+        assertEquals(200, request("/file"));
+        assertEquals(3, mPorts.size());
+        assertEquals(mPorts.get(0), mPorts.get(1));
+        assertEquals(mPorts.get(0), mPorts.get(2));
+        assertEquals(3, mTransport.getRequestCount());
+    }
+
+    @Test
+    public void releasedErrorResponseIsReused() throws Exception {
+        assertEquals(404, request("/missing"));
+        assertEquals(200, request("/file"));
+        assertEquals(2, mPorts.size());
+        assertEquals(mPorts.get(0), mPorts.get(1));
+    }
+
+    @Test
+    public void secureConnectionIsReusedWithoutHandshake() throws Exception {
+        URL url = new URL("https://localhost:" + mSecurePort + "/file");
+        assertEquals(200, request(url, true));
+        assertEquals(200, request(url, true));
+        assertEquals(2, mPorts.size());
+        assertEquals(mPorts.get(0), mPorts.get(1));
+        assertEquals(1, mTransport.getHandshakeCount());
+    }
+
+    @Test
+    public void newSecureConnectionResumesSession() throws Exception {
+        // the server closes the connection, the next request needs a new one
+        assertEquals(200, request(new URL("https://localhost:" + mSecurePort + "/close"), true));
+        assertEquals(200, request(new URL("https://localhost:" + mSecurePort + "/file"), true));
+        assertEquals(2, mPorts.size());
+        assertFalse(mPorts.get(0).equals(mPorts.get(1)));
+        // an abbreviated handshake which takes over the session of the shared context
+        assertEquals(2, mTransport.getHandshakeCount());
+        assertEquals(mSessions.get(0), mSessions.get(1));
+    }
+
+    @Test
+    public void insecurePolicyStillVerifiesHostName() throws Exception {
+        // the certificate is for localhost only
+        try {
+            request(new URL("https://127.0.0.1:" + mSecurePort + "/file"), true);
+            fail("host name not verified");
+        } catch (IOException expected) {
+        }
+        assertTrue(mPorts.isEmpty());
+    }
+
+    @Test
+    public void securePolicyRejectsUntrustedCertificate() throws Exception {
+        try {
+            request(new URL("https://localhost:" + mSecurePort + "/file"), false);
+            fail("self-signed certificate trusted");
+        } catch (IOException expected) {
+        }
+        assertTrue(mPorts.isEmpty());
+    }
+}
@@ -0,0 +1,26 @@
+package io.appservice.core.http;
+
+import android.content.Context;
+
+import io.appservice.core.CoreApp;
+import io.appservice.core.statemachine.StateMachineList;
+
+/**
+ * Application for plain JVM tests, it holds the singletons like {@link HttpTransport}.
+ */
+class TestCoreApp extends CoreApp {
+
+    @Override
+    public void init(StateMachineList list) {
+    }
+
+    @Override
+    public int getStorageVersion() {
+        return 1;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+}
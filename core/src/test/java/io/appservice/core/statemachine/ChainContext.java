@@ -0,0 +1,76 @@
+package io.appservice.core.statemachine;
+
+import android.content.Context;
+import android.content.Intent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.appservice.core.statemachine.annotations.StateEntry;
+import io.appservice.core.statemachine.annotations.StateEvent;
+import io.appservice.core.statemachine.annotations.StateExit;
+
+/**
+ * A download cycle whose entries move on right away until it is idle again, the way the
+ * updater goes from preparing over downloading to installing. See {@link TransitionChainTest}.
+ */
+class ChainContext extends StateContext {
+
+    static final String RUN = "io.appservice.test.RUN";
+
+    static final int START = 0;
+    static final int PREPARE = 1;
+    static final int DOWNLOAD = 2;
+    static final int NEXT = 3;
+    static final int INSTALL = 4;
+    static final int IDLE = 5;
+
+    // every exit and entry in the order they ran, E for entry and X for exit
+    final List<String> mTrace = new ArrayList<>();
+
+    @StateEntry(states = {START})
+    Integer startEntry(Context ctx) {
+        mTrace.add("E" + START);
+        return PREPARE;
+    }
+
+    @StateEntry(states = {PREPARE})
+    Integer prepareEntry(Context ctx) {
+        mTrace.add("E" + PREPARE);
+        return DOWNLOAD;
+    }
+
+    @StateEntry(states = {DOWNLOAD})
+    Integer downloadEntry(Context ctx) {
+        mTrace.add("E" + DOWNLOAD);
+        return NEXT;
+    }
+
+    @StateEntry(states = {NEXT})
+    Integer nextEntry(Context ctx) {
+        mTrace.add("E" + NEXT);
+        return INSTALL;
+    }
+
+    @StateEntry(states = {INSTALL})
+    Integer installEntry(Context ctx) {
+        mTrace.add("E" + INSTALL);
+        return IDLE;
+    }
+
+    @StateEntry(states = {IDLE})
+    Integer idleEntry(Context ctx) {
+        mTrace.add("E" + IDLE);
+        return SAME_STATE;
+    }
+
+    @StateExit(states = {START, PREPARE, DOWNLOAD, NEXT, INSTALL, IDLE})
+    void anyExit(Context ctx) {
+        mTrace.add("X" + mCurrentState);
+    }
+
+    @StateEvent(states = {IDLE}, id = RUN)
+    Integer runEvent(Context ctx, Intent intent) {
+        return START;
+    }
+}
@@ -0,0 +1,140 @@
+package io.appservice.core.statemachine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.appservice.core.statemachine.annotations.StateField;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A queue of ten thousand pending confirms over many transitions, only some of which change it:
+ * a tracked queue is written exactly when marked dirty and never hashed, a plain one is hashed on
+ * every save to find the same changes. Both load back the same queue. The time of each is printed.
+ */
+public class DirtyTrackingTest {
+
+    private static final int CONFIRMS = 10000;
+    private static final int TRANSITIONS = 2000;
+    // every so many transitions a confirm is done
+    private static final int CHANGE_EVERY = 10;
+
+    static class Tracked extends StateContext {
+        @StateField(tracked = true)
+        List<String> mQueue = new ArrayList<>();
+    }
+
+    static class Hashed extends StateContext {
+        @StateField
+        List<String> mQueue = new ArrayList<>();
+    }
+
+    // rows in memory, counts the writes of each field
+    private static class MemoryStorage extends AbstractStateContextStorage {
+        private final Map<String, Snapshot> mRows = new HashMap<>();
+        private final Map<String, Integer> mFieldWrites = new HashMap<>();
+
+        @Override
+        protected Snapshot read(String type) {
+            Snapshot stored = mRows.get(type);
+            return stored != null ? stored : new Snapshot();
+        }
+
+        @Override
+        protected void write(List<Write> writes) {
+            for (Write write : writes) {
+                Snapshot snapshot = mRows.get(write.mType);
+                if (snapshot == null) {
+                    snapshot = new Snapshot();
+                    mRows.put(write.mType, snapshot);
+                }
+                if (write.mKind == Write.CONTEXT) {
+                    snapshot.mState = (Integer) write.mValue;
+                } else if (write.mKind == Write.VALUE) {
+                    snapshot.mValues.put(write.mId, write.mValue);
+                    Integer count = mFieldWrites.get(write.mId);
+                    mFieldWrites.put(write.mId, count == null ? 1 : count + 1);
+                }
+            }
+        }
+    }
+
+    private static List<String> confirms() {
+        List<String> queue = new ArrayList<>();
+        for (int i = 0; i < CONFIRMS; i++) {
+            queue.add("confirm " + i);
+        }
+        return queue;
+    }
+
+    private static long transitions(AbstractStateContextStorage storage, StateContext context, List<String> queue) {
+        long start = System.nanoTime();
+        for (int i = 0; i < TRANSITIONS; i++) {
+            context.mCurrentState = i;
+            if (i % CHANGE_EVERY == 0) {
+                queue.remove(0);
+                context.markDirty("mQueue");
+            }
+            storage.save(context);
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void trackedQueueIsWrittenOnlyWhenDirty() {
+        // the first round warms up, the second one is measured
+        for (int round = 0; round < 2; round++) {
+            MemoryStorage trackedStorage = new MemoryStorage();
+            Tracked tracked = trackedStorage.load(Tracked.class);
+            tracked.mQueue = confirms();
+            MemoryStorage hashedStorage = new MemoryStorage();
+            Hashed hashed = hashedStorage.load(Hashed.class);
+            hashed.mQueue = confirms();
+
+            // marking a plain field dirty changes nothing, its hash code still decides
+            long trackedNanos = transitions(trackedStorage, tracked, tracked.mQueue);
+            long hashedNanos = transitions(hashedStorage, hashed, hashed.mQueue);
+
+            // the first save inserts the queue together with the first change, each later change writes it again
+            int changes = TRANSITIONS / CHANGE_EVERY;
+            assertEquals(changes, (int) trackedStorage.mFieldWrites.get("mQueue"));
+            assertEquals(changes, (int) hashedStorage.mFieldWrites.get("mQueue"));
+            assertEquals(CONFIRMS - changes, tracked.mQueue.size());
+
+            Tracked loadedTracked = trackedStorage.load(Tracked.class);
+            Hashed loadedHashed = hashedStorage.load(Hashed.class);
+            assertEquals(tracked.mQueue, loadedTracked.mQueue);
+            assertEquals(hashed.mQueue, loadedHashed.mQueue);
+            assertEquals(TRANSITIONS - 1, (int) loadedTracked.mCurrentState);
+
+            if (round > 0) {
+                System.out.println("Saves of " + TRANSITIONS + " transitions over " + CONFIRMS + " confirms, tracked "
+                        + trackedNanos / 1000000 + "ms, hashed " + hashedNanos / 1000000 + "ms, "
+                        + changes + " queue writes each");
+            }
+        }
+    }
+
+    @Test
+    public void unmarkedChangeOfTrackedQueueIsNotWritten() {
+        MemoryStorage storage = new MemoryStorage();
+        Tracked tracked = storage.load(Tracked.class);
+        tracked.mQueue = confirms();
+        storage.save(tracked);
+        assertEquals(1, (int) storage.mFieldWrites.get("mQueue"));
+
+        tracked.mQueue.remove(0);
+        storage.save(tracked);
+        assertEquals(1, (int) storage.mFieldWrites.get("mQueue"));
+
+        tracked.markDirty("mQueue");
+        storage.save(tracked);
+        assertEquals(2, (int) storage.mFieldWrites.get("mQueue"));
+        Tracked loaded = storage.load(Tracked.class);
+        assertEquals(CONFIRMS - 1, loaded.mQueue.size());
+    }
+}
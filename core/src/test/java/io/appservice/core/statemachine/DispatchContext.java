@@ -0,0 +1,77 @@
+package io.appservice.core.statemachine;
+
+import android.content.Context;
+import android.content.Intent;
+
+import io.appservice.core.statemachine.annotations.StateContextSettings;
+import io.appservice.core.statemachine.annotations.StateEntry;
+import io.appservice.core.statemachine.annotations.StateEvent;
+import io.appservice.core.statemachine.annotations.StateExit;
+import io.appservice.core.statemachine.annotations.StateThread;
+import io.appservice.core.statemachine.annotations.StateTimer;
+
+/**
+ * Every kind of handler with non-default attributes, each one records its name when called.
+ * The annotation processor generates its dispatcher for {@link StateDispatcherTest}.
+ */
+@StateContextSettings(initial = 1, recover = 2, crash = 3, store = false)
+class DispatchContext extends StateContext {
+
+    static final int IDLE = 1;
+    static final int BUSY = 2;
+    static final int FAILED = 3;
+
+    String mCalled;
+
+    @StateEntry(states = {IDLE})
+    Integer idleEntry(Context ctx) {
+        mCalled = "idleEntry";
+        return SAME_STATE;
+    }
+
+    @StateEntry(states = {BUSY, FAILED}, foreground = true, store = false, durable = true)
+    Integer busyEntry(Context ctx) {
+        mCalled = "busyEntry";
+        return IDLE;
+    }
+
+    @StateExit(states = {BUSY})
+    void busyExit(Context ctx) {
+        mCalled = "busyExit";
+    }
+
+    @StateEvent(states = {IDLE}, id = "io.appservice.test.START", external = true, coalesce = 500)
+    Integer startEvent(Context ctx, Intent intent) {
+        mCalled = "startEvent";
+        return BUSY;
+    }
+
+    @StateEvent(states = {BUSY}, id = "io.appservice.test.STOP")
+    Integer stopEvent(Context ctx, Intent intent) {
+        mCalled = "stopEvent";
+        return null;
+    }
+
+    @StateTimer(states = {BUSY}, timeout = 1000, slack = 200, factor = 2, max = 60000, jitter = true, reset = {IDLE})
+    Integer retryTimer(Context ctx) {
+        mCalled = "retryTimer";
+        return FAILED;
+    }
+
+    @StateTimer(states = {IDLE}, id = "poll", timeout = 30000)
+    Integer pollTimer(Context ctx) {
+        mCalled = "pollTimer";
+        return SAME_STATE;
+    }
+
+    @StateThread(states = {BUSY}, onSuccessState = IDLE, onErrorState = FAILED, onAbortState = IDLE)
+    class Work implements StateContextThread {
+        @Override
+        public void run(Context ctx) {
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+}
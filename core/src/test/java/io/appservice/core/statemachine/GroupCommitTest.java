@@ -0,0 +1,156 @@
+package io.appservice.core.statemachine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.appservice.core.statemachine.annotations.StateField;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Several machines saving every transition on the journal, each commit syncing it: a group commit
+ * window merges their saves into fewer commits, write-behind coalesces the saves of a machine, and
+ * both store the same final rows as one commit per save. Transitions per second and journal bytes
+ * of each mode are printed, the window pays off once a sync takes longer than the window.
+ */
+public class GroupCommitTest {
+
+    private static final int VERSION = 1;
+    private static final int TRANSITIONS = 200;
+
+    static class Machine extends StateContext {
+        @StateField
+        String mValue;
+    }
+
+    static class Machine0 extends Machine {
+    }
+
+    static class Machine1 extends Machine {
+    }
+
+    static class Machine2 extends Machine {
+    }
+
+    static class Machine3 extends Machine {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final Class<? extends Machine> MACHINES[] = new Class[]{
+            Machine0.class, Machine1.class, Machine2.class, Machine3.class};
+    // the state and the value of every save, the backoff attempts of the first one
+    private static final int WRITES = MACHINES.length * (TRANSITIONS * 2 + 1);
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("group", "");
+        mDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    // every machine runs its transitions on a thread of its own
+    private long run(final StateContextStorage storage) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (final Class<? extends Machine> type : MACHINES) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Machine machine = storage.load(type);
+                        for (int i = 0; i < TRANSITIONS; i++) {
+                            machine.mCurrentState = i;
+                            machine.mValue = "value " + i;
+                            storage.save(machine);
+                        }
+                        assertTrue(storage.barrier(machine));
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long nanos = System.nanoTime() - start;
+        assertNull(failure.get());
+        return nanos;
+    }
+
+    private void assertStored() {
+        JournalStateContextStorage storage = new JournalStateContextStorage(mDir, VERSION);
+        for (Class<? extends Machine> type : MACHINES) {
+            Machine machine = storage.load(type);
+            assertEquals(TRANSITIONS - 1, (int) machine.mCurrentState);
+            assertEquals("value " + (TRANSITIONS - 1), machine.mValue);
+        }
+    }
+
+    private String measure(String mode, JournalStateContextStorage storage, long nanos) {
+        long saves = (long) MACHINES.length * TRANSITIONS;
+        assertEquals(0, storage.getCompactionCount());
+        return mode + " " + saves * 1000000000L / Math.max(1, nanos) + " transitions/s, "
+                + storage.getCommitCount() + " commits, "
+                + new File(mDir, "v" + VERSION + ".journal").length() + " bytes";
+    }
+
+    @Test
+    public void commitPerSave() throws Exception {
+        JournalStateContextStorage storage = new JournalStateContextStorage(mDir, VERSION);
+        long nanos = run(storage);
+        assertEquals(MACHINES.length * TRANSITIONS, storage.getCommitCount());
+        System.out.println(measure("Commit per save", storage, nanos));
+        assertStored();
+    }
+
+    @Test
+    public void groupCommitMergesMachines() throws Exception {
+        JournalStateContextStorage storage = new JournalStateContextStorage(mDir, VERSION);
+        storage.setGroupCommitWindow(2);
+        long nanos = run(storage);
+        long commits = storage.getCommitCount();
+        assertTrue("commits " + commits, commits < MACHINES.length * TRANSITIONS);
+        // each save waits for its group, nothing is coalesced away
+        assertEquals(WRITES, storage.getWriteCount());
+        System.out.println(measure("Group commit", storage, nanos));
+        assertStored();
+    }
+
+    @Test
+    public void writeBehindCoalescesSaves() throws Exception {
+        JournalStateContextStorage storage = new JournalStateContextStorage(mDir, VERSION);
+        storage.setWriteBehind(true);
+        long nanos = run(storage);
+        assertTrue(storage.getCommitCount() < MACHINES.length * TRANSITIONS);
+        assertTrue(storage.getCoalescedCount() > 0);
+        assertEquals(WRITES, storage.getWriteCount() + storage.getCoalescedCount());
+        System.out.println(measure("Write-behind", storage, nanos));
+        assertStored();
+    }
+}
@@ -0,0 +1,180 @@
+package io.appservice.core.statemachine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Crash consistency of the journal: a tail torn at any offset or corrupted is cut, loading yields
+ * exactly the records before it, and a crash between the snapshot rename and the journal truncate
+ * replays to the same rows over the old and the new snapshot.
+ */
+public class JournalStateContextStorageTest {
+
+    private static final String TYPE = "Context";
+    private static final int VERSION = 1;
+    private static final int RECORDS = 12;
+    private static final int RANDOM_CUTS = 200;
+
+    private File mDir;
+    private File mJournal;
+    private File mSnapshot;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("journal", "");
+        mDir.delete();
+        mJournal = new File(mDir, "v" + VERSION + ".journal");
+        mSnapshot = new File(mDir, "v" + VERSION + ".snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private JournalStateContextStorage open() {
+        return new JournalStateContextStorage(mDir, VERSION);
+    }
+
+    private static void commit(JournalStateContextStorage storage, int state, String field, String value) throws IOException {
+        List<AbstractStateContextStorage.Write> writes = new ArrayList<>();
+        writes.add(new AbstractStateContextStorage.Write(AbstractStateContextStorage.Write.CONTEXT, TYPE, null, state));
+        writes.add(new AbstractStateContextStorage.Write(AbstractStateContextStorage.Write.VALUE, TYPE, field, value));
+        storage.write(writes);
+    }
+
+    private static String rows(JournalStateContextStorage storage) {
+        AbstractStateContextStorage.Snapshot snapshot = storage.read(TYPE);
+        return "state=" + snapshot.mState + " values=" + new TreeMap<>(snapshot.mValues)
+                + " timers=" + new TreeMap<>(snapshot.mTimers);
+    }
+
+    @Test
+    public void tornTailIsCutAtAnyOffset() throws IOException {
+        JournalStateContextStorage storage = open();
+        // journal length and rows after every record
+        List<Long> ends = new ArrayList<>();
+        List<String> prefixes = new ArrayList<>();
+        ends.add(0L);
+        prefixes.add(rows(storage));
+        for (int record = 1; record <= RECORDS; record++) {
+            // deletes too, a replay which skipped a record would keep the value
+            commit(storage, record, "f" + record % 3, record % 4 == 0 ? null : "v" + record);
+            ends.add(mJournal.length());
+            prefixes.add(rows(storage));
+        }
+        byte journal[] = Files.readAllBytes(mJournal.toPath());
+
+        List<Integer> cuts = new ArrayList<>();
+        for (long end : ends) {
+            // every offset inside the header of the next record
+            for (int offset = 0; offset < 8 && end + offset <= journal.length; offset++) {
+                cuts.add((int) (end + offset));
+            }
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < RANDOM_CUTS; i++) {
+            cuts.add(random.nextInt(journal.length + 1));
+        }
+
+        for (int cut : cuts) {
+            Files.write(mJournal.toPath(), Arrays.copyOf(journal, cut));
+            int committed = 0;
+            while (committed < RECORDS && ends.get(committed + 1) <= cut) {
+                committed++;
+            }
+
+            storage = open();
+            assertEquals("cut at " + cut, prefixes.get(committed), rows(storage));
+            assertEquals("cut at " + cut, (long) ends.get(committed), mJournal.length());
+
+            // appended behind the cut, nothing of the torn record is left in between
+            commit(storage, 100, "next", "v" + cut);
+            String expected = rows(storage);
+            assertTrue(expected.contains("next=v" + cut));
+            assertEquals("cut at " + cut, expected, rows(open()));
+        }
+    }
+
+    @Test
+    public void corruptedTailIsCut() throws IOException {
+        JournalStateContextStorage storage = open();
+        commit(storage, 1, "a", "1");
+        long valid = mJournal.length();
+        commit(storage, 2, "b", "2");
+
+        RandomAccessFile journal = new RandomAccessFile(mJournal, "rw");
+        try {
+            journal.seek(journal.length() - 1);
+            int last = journal.read();
+            journal.seek(journal.length() - 1);
+            journal.write(last ^ 0xff);
+        } finally {
+            journal.close();
+        }
+
+        assertEquals("state=1 values={a=1} timers={}", rows(open()));
+        assertEquals(valid, mJournal.length());
+    }
+
+    @Test
+    public void crashBeforeTruncateReplaysOverOldSnapshot() throws IOException {
+        JournalStateContextStorage storage = open();
+        commit(storage, 1, "a", "1");
+        storage.compact();
+        commit(storage, 2, "b", "2");
+        commit(storage, 3, "a", null);
+        byte snapshot[] = Files.readAllBytes(mSnapshot.toPath());
+        byte journal[] = Files.readAllBytes(mJournal.toPath());
+        String expected = rows(storage);
+
+        // the rename of the new snapshot never happened
+        storage.compact();
+        Files.write(mSnapshot.toPath(), snapshot);
+        Files.write(mJournal.toPath(), journal);
+
+        assertEquals("state=3 values={b=2} timers={}", expected);
+        assertEquals(expected, rows(open()));
+    }
+
+    @Test
+    public void crashBeforeTruncateReplaysOverNewSnapshot() throws IOException {
+        JournalStateContextStorage storage = open();
+        commit(storage, 1, "a", "1");
+        storage.compact();
+        commit(storage, 2, "b", "2");
+        commit(storage, 3, "a", null);
+        byte journal[] = Files.readAllBytes(mJournal.toPath());
+        String expected = rows(storage);
+
+        // renamed, but the journal was not truncated
+        storage.compact();
+        assertEquals(0, mJournal.length());
+        Files.write(mJournal.toPath(), journal);
+
+        storage = open();
+        assertEquals(expected, rows(storage));
+        commit(storage, 4, "c", "4");
+        assertEquals("state=4 values={b=2, c=4} timers={}", rows(open()));
+    }
+}
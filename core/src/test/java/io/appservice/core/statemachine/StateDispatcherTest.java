@@ -0,0 +1,131 @@
+package io.appservice.core.statemachine;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The generated dispatcher announces the same handlers as the reflective one and every handler
+ * reaches the same method with the same result, whatever index each of them gives it.
+ */
+public class StateDispatcherTest {
+
+    private static final int CALLS = 1000000;
+
+    // handler index by everything announced about it, per kind
+    private static class Table implements StateDispatcher.Registry {
+        private final Map<String, Integer> mHandlers = new TreeMap<>();
+        private String mSettings;
+
+        @Override
+        public void settings(int initial, int recover, int crash, boolean store) {
+            mSettings = initial + " " + recover + " " + crash + " " + store;
+        }
+
+        @Override
+        public void entry(int handler, int[] states, boolean foreground, boolean store, boolean durable) {
+            mHandlers.put("entry " + Arrays.toString(states) + " " + foreground + " " + store + " " + durable, handler);
+        }
+
+        @Override
+        public void exit(int handler, int[] states) {
+            mHandlers.put("exit " + Arrays.toString(states), handler);
+        }
+
+        @Override
+        public void event(int handler, int[] states, String id, boolean external, long coalesce) {
+            mHandlers.put("event " + Arrays.toString(states) + " " + id + " " + external + " " + coalesce, handler);
+        }
+
+        @Override
+        public void timer(int handler, int[] states, String id, long timeout, long slack,
+                          double factor, long max, boolean jitter, int[] reset) {
+            mHandlers.put("timer " + Arrays.toString(states) + " " + id + " " + timeout + " " + slack + " "
+                    + factor + " " + max + " " + jitter + " " + Arrays.toString(reset), handler);
+        }
+
+        @Override
+        public void thread(int handler, int[] states, int onSuccessState, int onErrorState, int onAbortState) {
+            mHandlers.put("thread " + Arrays.toString(states) + " " + onSuccessState + " " + onErrorState
+                    + " " + onAbortState, handler);
+        }
+    }
+
+    private static StateDispatcher generated() throws Exception {
+        Class<?> type = Class.forName(DispatchContext.class.getName() + StateDispatcher.SUFFIX);
+        return (StateDispatcher) type.newInstance();
+    }
+
+    private static Table describe(StateDispatcher dispatcher) throws Exception {
+        Table table = new Table();
+        dispatcher.describe(table);
+        return table;
+    }
+
+    // what calling the handler does: its result and the method it reached
+    private static String call(StateDispatcher dispatcher, String description, int handler) throws Exception {
+        DispatchContext ctx = new DispatchContext();
+        String kind = description.substring(0, description.indexOf(' '));
+        if (kind.equals("entry")) {
+            return dispatcher.entry(ctx, handler, null) + " " + ctx.mCalled;
+        } else if (kind.equals("exit")) {
+            dispatcher.exit(ctx, handler, null);
+            return ctx.mCalled;
+        } else if (kind.equals("event")) {
+            return dispatcher.event(ctx, handler, null, null) + " " + ctx.mCalled;
+        } else if (kind.equals("timer")) {
+            return dispatcher.timer(ctx, handler, null) + " " + ctx.mCalled;
+        }
+        return dispatcher.thread(ctx, handler).getClass().getName();
+    }
+
+    @Test
+    public void generatedMatchesReflective() throws Exception {
+        StateDispatcher generated = generated();
+        StateDispatcher reflective = new ReflectiveStateDispatcher(DispatchContext.class);
+        Table expected = describe(reflective);
+        Table actual = describe(generated);
+
+        assertNotNull(expected.mSettings);
+        assertEquals(expected.mSettings, actual.mSettings);
+        assertEquals(8, expected.mHandlers.size());
+        assertEquals(expected.mHandlers.keySet(), actual.mHandlers.keySet());
+        for (Map.Entry<String, Integer> handler : expected.mHandlers.entrySet()) {
+            String description = handler.getKey();
+            assertEquals(description, call(reflective, description, handler.getValue()),
+                    call(generated, description, actual.mHandlers.get(description)));
+        }
+    }
+
+    @Test
+    public void generatedDispatchCost() throws Exception {
+        StateDispatcher generated = generated();
+        StateDispatcher reflective = new ReflectiveStateDispatcher(DispatchContext.class);
+        int generatedTimer = describe(generated).mHandlers.get("timer [1] poll 30000 0 1.0 9223372036854775807 false []");
+        int reflectiveTimer = describe(reflective).mHandlers.get("timer [1] poll 30000 0 1.0 9223372036854775807 false []");
+        DispatchContext ctx = new DispatchContext();
+        // best of several rounds, the first ones warm up both
+        long nanosGenerated = Long.MAX_VALUE;
+        long nanosReflective = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                generated.timer(ctx, generatedTimer, null);
+            }
+            nanosGenerated = Math.min(nanosGenerated, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                reflective.timer(ctx, reflectiveTimer, null);
+            }
+            nanosReflective = Math.min(nanosReflective, System.nanoTime() - start);
+        }
+        assertEquals("pollTimer", ctx.mCalled);
+        System.out.println("Dispatch of " + CALLS + " timers, generated " + nanosGenerated / 1000 + "us, reflective "
+                + nanosReflective / 1000 + "us");
+    }
+}
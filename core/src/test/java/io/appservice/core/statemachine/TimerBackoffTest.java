@@ -0,0 +1,99 @@
+package io.appservice.core.statemachine;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Backoff timeouts grow by the factor up to the cap, full jitter keeps every draw below the backoff
+ * value and spreads simulated clients evenly over it, so retries of clients which failed together
+ * do not arrive together.
+ */
+public class TimerBackoffTest {
+
+    private static final int CLIENTS = 10000;
+    private static final int BUCKETS = 10;
+
+    private static StateContext.TimerDesc timer(long timeout, double factor, long max, boolean jitter) {
+        return new StateContext.TimerDesc(new int[]{0}, "retry", 0, timeout, 0, factor, max, jitter, new int[0]);
+    }
+
+    @Test
+    public void growsByFactorUpToCap() {
+        StateContext.TimerDesc timer = timer(1000, 2, 60000, false);
+        long expected[] = {1000, 2000, 4000, 8000, 16000, 32000, 60000, 60000};
+        for (int attempts = 0; attempts < expected.length; attempts++) {
+            assertEquals("attempt " + attempts, expected[attempts], timer.getTimeout(attempts));
+        }
+        // no overflow however long it keeps failing
+        assertEquals(60000, timer.getTimeout(Integer.MAX_VALUE));
+        assertEquals(1000, timer(1000, 1, 60000, false).getTimeout(100));
+    }
+
+    @Test
+    public void jitterStaysWithinBounds() {
+        StateContext.TimerDesc timer = timer(1000, 2, 60000, true);
+        StateContext.TimerDesc plain = timer(1000, 2, 60000, false);
+        for (int attempts = 0; attempts < 10; attempts++) {
+            long cap = plain.getTimeout(attempts);
+            for (int client = 0; client < CLIENTS; client++) {
+                long timeout = timer.getTimeout(attempts);
+                assertTrue(timeout + " of " + cap, timeout >= 0 && timeout < cap);
+            }
+        }
+    }
+
+    @Test
+    public void jitterIsUniform() {
+        long cap = 60000;
+        StateContext.TimerDesc timer = timer(1000, 2, cap, true);
+        int counts[] = new int[BUCKETS];
+        double sum = 0;
+        for (int client = 0; client < CLIENTS; client++) {
+            long timeout = timer.getTimeout(20);
+            counts[(int) (timeout * BUCKETS / cap)]++;
+            sum += timeout;
+        }
+        // five standard deviations of a uniform draw
+        double mean = sum / CLIENTS;
+        assertEquals(cap / 2.0, mean, cap * 0.015);
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            assertEquals("bucket " + bucket, CLIENTS / BUCKETS, counts[bucket], 150);
+        }
+    }
+
+    @Test
+    public void failedTogetherRetrySpread() {
+        // every client failed at the same instant, count arrivals per second of the sixth retry
+        int attempts = 6;
+        StateContext.TimerDesc plain = timer(1000, 2, 60000, false);
+        StateContext.TimerDesc jittered = timer(1000, 2, 60000, true);
+        int peakPlain = peak(plain, attempts);
+        int peakJittered = peak(jittered, attempts);
+        assertEquals(CLIENTS, peakPlain);
+        assertTrue("peak " + peakJittered, peakJittered < CLIENTS / 10);
+        System.out.println("Retries of " + CLIENTS + " clients, busiest second " + peakPlain
+                + " without jitter, " + peakJittered + " with jitter");
+    }
+
+    private static int peak(StateContext.TimerDesc timer, int attempts) {
+        Map<Long, Integer> seconds = new HashMap<>();
+        for (int client = 0; client < CLIENTS; client++) {
+            long elapsed = 0;
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                elapsed += timer.getTimeout(attempt);
+            }
+            Integer count = seconds.get(elapsed / 1000);
+            seconds.put(elapsed / 1000, count == null ? 1 : count + 1);
+        }
+        int peak = 0;
+        for (int count : seconds.values()) {
+            peak = Math.max(peak, count);
+        }
+        return peak;
+    }
+}
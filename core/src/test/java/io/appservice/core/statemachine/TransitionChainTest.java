@@ -0,0 +1,173 @@
+package io.appservice.core.statemachine;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import io.appservice.core.CoreApp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Transitions returned by entry handlers run inline up to the chain depth: the exits and entries
+ * run in the same order as through the queue, with a single task per cycle instead of two per
+ * transition, and the rest of a chain deeper than the bound continues through the queue. Both
+ * save only the state a chain stops in. The cost of a cycle with and without chaining is printed.
+ */
+public class TransitionChainTest {
+
+    private static final int CYCLES = 20000;
+    // transitions of one cycle, from the event to idle
+    private static final int CHAIN = ChainContext.IDLE - ChainContext.START + 1;
+
+    private static class App extends CoreApp {
+        @Override
+        public void init(StateMachineList list) {
+        }
+
+        @Override
+        public int getStorageVersion() {
+            return 1;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+            return null;
+        }
+    }
+
+    // runs the tasks on the test thread, counts every task pushed
+    private static class Queue implements StateProcessQueue {
+        @SuppressWarnings("unchecked")
+        private final ArrayDeque<Runnable> mTasks[] = new ArrayDeque[]{new ArrayDeque<>(), new ArrayDeque<>()};
+        private long mPushed;
+
+        @Override
+        public void push(int priority, Runnable task) {
+            mTasks[priority].add(task);
+            mPushed++;
+        }
+
+        @Override
+        public void pushAt(long deadline, int priority, Runnable task) {
+            push(priority, task);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+        }
+
+        void drain() {
+            for (;;) {
+                Runnable task = mTasks[0].poll();
+                if (task == null) {
+                    task = mTasks[1].poll();
+                }
+                if (task == null) {
+                    return;
+                }
+                task.run();
+            }
+        }
+    }
+
+    private static class Storage extends AbstractStateContextStorage {
+        @Override
+        protected Snapshot read(String type) {
+            return new Snapshot();
+        }
+
+        @Override
+        protected void write(List<Write> writes) {
+        }
+    }
+
+    private static class Run extends Intent {
+        @Override
+        public String getAction() {
+            return ChainContext.RUN;
+        }
+    }
+
+    private static class Result {
+        private StateMachine mMachine;
+        private Queue mQueue;
+        private Storage mStorage;
+        private long mNanos;
+    }
+
+    private static Result cycles(int depth, int cycles) throws Exception {
+        Result result = new Result();
+        App app = new App();
+        result.mQueue = new Queue();
+        result.mStorage = new Storage();
+        result.mMachine = new StateMachine();
+        result.mMachine.setMaxChainDepth(depth);
+        result.mMachine.init(app, result.mQueue, result.mStorage, ChainContext.class);
+        result.mQueue.drain();
+        assertEquals(ChainContext.IDLE, (int) result.mMachine.getContext().mCurrentState);
+
+        Intent run = new Run();
+        long start = System.nanoTime();
+        for (int i = 0; i < cycles; i++) {
+            result.mMachine.handle(app, run);
+            result.mQueue.drain();
+        }
+        result.mNanos = System.nanoTime() - start;
+        assertEquals(ChainContext.IDLE, (int) result.mMachine.getContext().mCurrentState);
+        return result;
+    }
+
+    private static List<String> trace(Result result) {
+        return ((ChainContext) result.mMachine.getContext()).mTrace;
+    }
+
+    @Test
+    public void chainRunsInlineInQueueOrder() throws Exception {
+        Result queued = cycles(0, 100);
+        Result chained = cycles(8, 100);
+        assertEquals(trace(queued), trace(chained));
+        assertEquals(0, queued.mMachine.getChainedCount());
+        // the first enter was queued, the transitions it returned ran inline
+        assertEquals(CHAIN - 1 + 100 * CHAIN, chained.mMachine.getChainedCount());
+        // an event per cycle, against an exit and an entry per transition
+        assertEquals(1 + 100, chained.mQueue.mPushed);
+        assertEquals(1 + 2 * (CHAIN - 1) + 100 * (1 + 2 * CHAIN), queued.mQueue.mPushed);
+        // idle is the only state which stays, once per cycle and the initial one
+        assertEquals(1 + 100, chained.mStorage.getCommitCount());
+        assertEquals(1 + 100, queued.mStorage.getCommitCount());
+    }
+
+    @Test
+    public void deeperChainContinuesThroughQueue() throws Exception {
+        Result queued = cycles(0, 100);
+        Result bounded = cycles(2, 100);
+        assertEquals(trace(queued), trace(bounded));
+        assertTrue(bounded.mQueue.mPushed < queued.mQueue.mPushed);
+        assertEquals(1 + 100, bounded.mStorage.getCommitCount());
+    }
+
+    @Test
+    public void chainedCycleCost() throws Exception {
+        // warm up both first
+        cycles(0, CYCLES);
+        cycles(8, CYCLES);
+        Result queued = cycles(0, CYCLES);
+        Result chained = cycles(8, CYCLES);
+        System.out.println("Cycles of " + CHAIN + " transitions, queued " + queued.mNanos / CYCLES + "ns and "
+                + queued.mQueue.mPushed / CYCLES + " tasks, chained " + chained.mNanos / CYCLES + "ns and "
+                + chained.mQueue.mPushed / CYCLES + " tasks per cycle");
+    }
+}
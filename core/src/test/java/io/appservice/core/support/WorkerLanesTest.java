@@ -0,0 +1,175 @@
+package io.appservice.core.support;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.appservice.core.statemachine.StateProcessQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A busy lane holds the anchor with a single deadline for as long as it runs, without waking the
+ * anchor meanwhile, and lets it go when it drains. Under a saturating stream of higher priority
+ * tasks a lower priority is still served within the starvation bound.
+ */
+public class WorkerLanesTest {
+
+    private static final long TIMEOUT = 5000;
+
+    // records the deadlines the lanes leave with the anchor
+    private static class Anchor implements StateProcessQueue {
+        private final List<Runnable> mPending = new ArrayList<>();
+        private int mPushed;
+
+        @Override
+        public synchronized void push(int priority, Runnable task) {
+            mPushed++;
+        }
+
+        @Override
+        public synchronized void pushAt(long deadline, int priority, Runnable task) {
+            mPushed++;
+            mPending.add(task);
+        }
+
+        @Override
+        public synchronized void cancel(Runnable task) {
+            mPending.remove(task);
+        }
+
+        synchronized int getPending() {
+            return mPending.size();
+        }
+
+        synchronized int getPushed() {
+            return mPushed;
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        assertTrue(latch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private static void awaitIdle(Anchor anchor) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (anchor.getPending() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, anchor.getPending());
+    }
+
+    @Test
+    public void busyLaneHoldsAnchorWithoutPolling() throws Exception {
+        Anchor anchor = new Anchor();
+        WorkerLanes lanes = new WorkerLanes(anchor, 2);
+        WorkerLanes.Lane lane = lanes.create("lane");
+        lanes.start();
+
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        lane.push(0, new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        await(running);
+        assertEquals(1, anchor.getPending());
+        // a long task costs the anchor no wakeups
+        Thread.sleep(300);
+        assertEquals(1, anchor.getPushed());
+
+        release.countDown();
+        awaitIdle(anchor);
+        assertEquals(0, lane.getDepth());
+
+        // the next burst takes the hold again
+        final CountDownLatch again = new CountDownLatch(1);
+        lane.push(0, new Runnable() {
+            @Override
+            public void run() {
+                again.countDown();
+            }
+        });
+        await(again);
+        awaitIdle(anchor);
+        assertEquals(2, anchor.getPushed());
+    }
+
+    @Test
+    public void lowerPriorityServedWithinBoundUnderSaturation() throws Exception {
+        final int lows = 200;
+        Anchor anchor = new Anchor();
+        WorkerLanes lanes = new WorkerLanes(anchor, 2);
+        final WorkerLanes.Lane lane = lanes.create("lane");
+        lanes.start();
+
+        // H for every task of priority 0, L for priority 1, in the order the lane ran them
+        final StringBuffer order = new StringBuffer();
+        final AtomicInteger lowsDone = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        lane.push(0, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gate.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        // every transition queues another one, the lane never runs out of priority 0 work
+        Runnable high = new Runnable() {
+            @Override
+            public void run() {
+                order.append('H');
+                if (lowsDone.get() < lows) {
+                    lane.push(0, this);
+                }
+            }
+        };
+        for (int i = 0; i < 4; i++) {
+            lane.push(0, high);
+        }
+        for (int i = 0; i < lows; i++) {
+            lane.push(1, new Runnable() {
+                @Override
+                public void run() {
+                    order.append('L');
+                    if (lowsDone.incrementAndGet() == lows) {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        gate.countDown();
+        await(done);
+        long nanos = System.nanoTime() - start;
+
+        int run = 0;
+        int longest = 0;
+        for (int i = 0; i < order.length(); i++) {
+            if (order.charAt(i) == 'H') {
+                longest = Math.max(longest, ++run);
+            } else {
+                run = 0;
+            }
+        }
+        assertTrue("longest run " + longest, longest <= WorkerQueue.STARVATION_BOUND);
+        assertEquals(lows, lane.getPromoted());
+        System.out.println("Lane served " + order.length() + " tasks in " + nanos / 1000 + "us, longest wait "
+                + longest + " of bound " + WorkerQueue.STARVATION_BOUND);
+        awaitIdle(anchor);
+    }
+}
@@ -0,0 +1,212 @@
+package io.appservice.core.timer;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Thousands of timers on a virtual clock: every one fires exactly once, not before its deadline
+ * and not after its slack, in deadline order, while timers stopped in between never fire. Only the
+ * head of the heaps is ever armed.
+ */
+public class TimerManagerTest {
+
+    private static final String HANDLER = "test";
+    private static final int TIMERS = 5000;
+    private static final long SPAN = 24 * 3600 * 1000L;
+
+    private static class VirtualClock extends Clock {
+        private long mNow = 1000;
+
+        @Override
+        public long elapsed() {
+            return mNow;
+        }
+
+        @Override
+        public long wall() {
+            return mNow;
+        }
+    }
+
+    // stands in for both the short and the long timer, keeps what is armed
+    private static class Alarm implements Timer {
+        private long mArmed = Long.MAX_VALUE;
+        private Runnable mRunnable;
+        private int mStarts;
+
+        @Override
+        public void start(Long timestamp, Runnable runnable) {
+            mArmed = timestamp;
+            mRunnable = runnable;
+            mStarts++;
+        }
+
+        @Override
+        public void stop(Long timestamp) {
+            if (mArmed == timestamp) {
+                mArmed = Long.MAX_VALUE;
+                mRunnable = null;
+            }
+        }
+
+        @Override
+        public void dump() {
+        }
+    }
+
+    private VirtualClock mClock;
+    private Alarm mAlarm;
+    private TimerManager mManager;
+    // id and the time it fired at, in firing order
+    private final List<String> mFired = new ArrayList<>();
+    private final Map<String, Long> mFiredAt = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        mClock = new VirtualClock();
+        Clock.set(mClock);
+        mAlarm = new Alarm();
+        mManager = new TimerManager(null, mAlarm, mAlarm);
+        mManager.registerHandler(HANDLER, new TimerManager.Handler() {
+            @Override
+            public void handle(Context ctx, String id) {
+                assertFalse("fired twice " + id, mFiredAt.containsKey(id));
+                mFired.add(id);
+                mFiredAt.put(id, mClock.mNow);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        Clock.set(null);
+    }
+
+    // move the clock to whatever is armed and fire it, until nothing is left
+    private void runAll() {
+        while (mAlarm.mArmed != Long.MAX_VALUE) {
+            assertTrue(mAlarm.mArmed >= mClock.mNow);
+            mClock.mNow = mAlarm.mArmed;
+            mAlarm.mArmed = Long.MAX_VALUE;
+            mAlarm.mRunnable.run();
+        }
+    }
+
+    @Test
+    public void thousandsOfTimersFireInDeadlineOrder() {
+        Random random = new Random(11);
+        Map<String, Long> deadlines = new HashMap<>();
+        List<TimerManager.Request> batch = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMERS; i++) {
+            String id = "t" + i;
+            // plenty of equal deadlines too
+            long deadline = mClock.mNow + 1 + random.nextInt(i % 2 == 0 ? 1000 : (int) SPAN);
+            deadlines.put(id, deadline);
+            if (i % 3 == 0) {
+                batch.add(new TimerManager.Request(id, deadline, 0, null, null));
+            } else {
+                mManager.startTimer(HANDLER, id, deadline);
+            }
+        }
+        mManager.startTimers(HANDLER, batch);
+        Set<String> stopped = new HashSet<>();
+        for (int i = 0; i < TIMERS / 5; i++) {
+            String id = "t" + random.nextInt(TIMERS);
+            mManager.stopTimer(HANDLER, id);
+            stopped.add(id);
+        }
+        long added = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runAll();
+        long fired = System.nanoTime() - start;
+
+        assertEquals(TIMERS - stopped.size(), mFired.size());
+        long previous = 0;
+        for (String id : mFired) {
+            assertFalse("stopped timer fired " + id, stopped.contains(id));
+            long deadline = deadlines.get(id);
+            assertEquals(id, deadline, (long) mFiredAt.get(id));
+            assertTrue(id, deadline >= previous);
+            previous = deadline;
+        }
+        System.out.println("Timers " + TIMERS + " added and stopped in " + added / 1000 + "us, fired in "
+                + fired / 1000 + "us with " + mManager.getWakeupCount() + " wakeups, " + mAlarm.mStarts + " arms");
+    }
+
+    @Test
+    public void slackSharesWakeupsWithinWindow() {
+        Random random = new Random(13);
+        Map<String, Long> deadlines = new HashMap<>();
+        Map<String, Long> slacks = new HashMap<>();
+        List<TimerManager.Request> batch = new ArrayList<>();
+        for (int i = 0; i < TIMERS; i++) {
+            String id = "t" + i;
+            long deadline = mClock.mNow + 1 + random.nextInt(3600 * 1000);
+            long slack = random.nextInt(60 * 1000);
+            deadlines.put(id, deadline);
+            slacks.put(id, slack);
+            batch.add(new TimerManager.Request(id, deadline, slack, null, null));
+        }
+        mManager.startTimers(HANDLER, batch);
+
+        // timers stopped while others fire leave the heaps in the middle
+        final Random stops = new Random(17);
+        final Set<String> stopped = new HashSet<>();
+        mManager.registerHandler("stopper", new TimerManager.Handler() {
+            @Override
+            public void handle(Context ctx, String id) {
+                for (int i = 0; i < 3; i++) {
+                    String victim = "t" + stops.nextInt(TIMERS);
+                    if (!mFiredAt.containsKey(victim)) {
+                        mManager.stopTimer(HANDLER, victim);
+                        stopped.add(victim);
+                    }
+                }
+            }
+        });
+        for (int i = 0; i < 200; i++) {
+            mManager.startTimer("stopper", "s" + i, mClock.mNow + 1 + random.nextInt(3600 * 1000));
+        }
+        runAll();
+
+        assertEquals(TIMERS - stopped.size(), mFired.size());
+        for (String id : mFired) {
+            long at = mFiredAt.get(id);
+            assertTrue(id + " early", at >= deadlines.get(id));
+            assertTrue(id + " late", at <= deadlines.get(id) + slacks.get(id));
+        }
+        long wakeups = mManager.getWakeupCount();
+        assertTrue("wakeups " + wakeups, wakeups < mFired.size());
+        assertEquals(mFired.size() + 200, wakeups + mManager.getSavedWakeupCount());
+        System.out.println("Timers " + mFired.size() + " with slack fired by " + wakeups + " wakeups");
+    }
+
+    @Test
+    public void unregisterDropsAllTimers() {
+        for (int i = 0; i < TIMERS; i++) {
+            mManager.startTimer(HANDLER, "t" + i, mClock.mNow + 1 + i);
+        }
+        assertEquals(mClock.mNow + 1, mAlarm.mArmed);
+        mManager.unregisterHandler(HANDLER);
+        assertEquals(Long.MAX_VALUE, mAlarm.mArmed);
+        runAll();
+        assertTrue(mFired.isEmpty());
+    }
+}
@@ -0,0 +1,109 @@
+package io.appservice.core.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Both algorithms against {@link MessageDigest}, for lengths around the block and padding boundaries,
+ * fed in uneven chunks, and continued after a save and restore of their state.
+ */
+public class DigestTest {
+
+    private static final String ALGORITHMS[] = {Digest.MD5, Digest.SHA256};
+    private static final int LENGTHS[] = {0, 1, 55, 56, 57, 63, 64, 65, 119, 120, 127, 128, 129, 1000, 65537};
+
+    private static String expected(String algorithm, byte data[], int len) throws Exception {
+        MessageDigest md = MessageDigest.getInstance(algorithm);
+        md.update(data, 0, len);
+        byte out[] = md.digest();
+        return String.format("%0" + out.length * 2 + "x", new BigInteger(1, out));
+    }
+
+    private static byte[] data(int len) {
+        byte data[] = new byte[len];
+        new Random(len).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void knownVectors() {
+        byte abc[] = {'a', 'b', 'c'};
+        Digest md5 = Digest.create(Digest.MD5);
+        md5.update(abc, 0, abc.length);
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", md5.hex());
+        Digest sha = Digest.create(Digest.SHA256);
+        sha.update(abc, 0, abc.length);
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", sha.hex());
+    }
+
+    @Test
+    public void matchesMessageDigest() throws Exception {
+        for (String algorithm : ALGORITHMS) {
+            for (int len : LENGTHS) {
+                byte data[] = data(len);
+                Digest digest = Digest.create(algorithm);
+                digest.update(data, 0, len);
+                assertEquals(algorithm + " " + len, expected(algorithm, data, len), digest.hex());
+                assertEquals(len, digest.getLength());
+            }
+        }
+    }
+
+    @Test
+    public void matchesInChunks() throws Exception {
+        Random random = new Random(7);
+        for (String algorithm : ALGORITHMS) {
+            byte data[] = data(10000);
+            Digest digest = Digest.create(algorithm);
+            int off = 0;
+            while (off < data.length) {
+                int len = Math.min(data.length - off, random.nextInt(150));
+                digest.update(data, off, len);
+                off += len;
+                // hex() must not disturb the running state
+                assertEquals(algorithm + " " + off, expected(algorithm, data, off), digest.hex());
+            }
+        }
+    }
+
+    @Test
+    public void continuesAfterRestore() throws Exception {
+        for (String algorithm : ALGORITHMS) {
+            for (int split : LENGTHS) {
+                byte data[] = data(70000);
+                Digest digest = Digest.create(algorithm);
+                digest.update(data, 0, split);
+                ByteArrayOutputStream saved = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(saved);
+                digest.save(out);
+                out.close();
+
+                Digest restored = Digest.restore(new DataInputStream(new ByteArrayInputStream(saved.toByteArray())));
+                assertEquals(split, restored.getLength());
+                restored.update(data, split, data.length - split);
+                assertEquals(algorithm + " " + split, expected(algorithm, data, data.length), restored.hex());
+            }
+        }
+    }
+
+    @Test
+    public void copyIsIndependent() throws Exception {
+        byte data[] = data(300);
+        Digest digest = Digest.create(Digest.SHA256);
+        digest.update(data, 0, 100);
+        Digest copy = digest.copy();
+        digest.update(data, 100, 200);
+        assertEquals(expected(Digest.SHA256, data, 100), copy.hex());
+        copy.update(data, 100, 200);
+        assertEquals(expected(Digest.SHA256, data, 300), copy.hex());
+    }
+}
@@ -23,40 +23,40 @@ public class Test2 extends StateContext {
     private static final int FOREGROUND2 = 3;
 
     @StateEntry(states = {INIT})
-    private Integer initEntry(Context ctx){
+    Integer initEntry(Context ctx){
         return FOREGROUND;
     }
 
     @StateEntry(states = {BACKGROUND})
-    private Integer bacgroundEntry(Context ctx){
+    Integer bacgroundEntry(Context ctx){
         Logger.i(LOG_TAG, "Background entry");
         return SAME_STATE;
     }
 
     @StateTimer(states = {BACKGROUND}, timeout = 45000, id = "timer")
-    private Integer backgroundTimer(Context ctx){
+    Integer backgroundTimer(Context ctx){
         Logger.i(LOG_TAG, "Background timer fired");
         return FOREGROUND;
     }
 
     @StateExit(states = {BACKGROUND})
-    private void backgroundExit(Context ctx){
+    void backgroundExit(Context ctx){
         Logger.i(LOG_TAG, "Background exit");
     }
 
     @StateEntry(states = {FOREGROUND}, foreground = true)
-    private Integer foregroundEntry(Context ctx){
+    Integer foregroundEntry(Context ctx){
         Logger.i(LOG_TAG, "Begin foreground");
         return SAME_STATE;
     }
 
     @StateExit(states = {FOREGROUND})
-    private void foregroundExit(Context ctx){
+    void foregroundExit(Context ctx){
         Logger.i(LOG_TAG, "End foreground");
     }
 
     @StateThread(states = {FOREGROUND})
-    private class foregroundThread implements StateContextThread{
+    class foregroundThread implements StateContextThread{
 
         private final Object mWait = new Object();
 
@@ -82,7 +82,7 @@ public class Test2 extends StateContext {
     }
 
     @StateTimer(states = {FOREGROUND}, timeout = 3000, id = "timer2")
-    private Integer foregroundTimer(Context ctx){
+    Integer foregroundTimer(Context ctx){
         Logger.i(LOG_TAG, "Foreground timer fired");
         return FOREGROUND2;
     }
@@ -90,7 +90,7 @@ public class Test2 extends StateContext {
     @StateThread(states = {FOREGROUND2},
         onSuccessState = BACKGROUND
     )
-    private class foreground2Thread implements StateContextThread{
+    class foreground2Thread implements StateContextThread{
 
         @Override
         public void run(Context ctx) {
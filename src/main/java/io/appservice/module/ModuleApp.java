@@ -4,6 +4,8 @@ package io.appservice.module;
 import com.crashlytics.android.Crashlytics;
 
 import io.appservice.core.CoreApp;
+import io.appservice.core.http.HttpTransport;
+import io.appservice.core.statemachine.BinaryFieldCodec;
 import io.appservice.core.statemachine.StateMachineList;
 import io.appservice.module.logic.Confirm;
 import io.appservice.module.logic.TaskLoader;
@@ -22,10 +24,19 @@ public class ModuleApp extends CoreApp {
         return 4;
     }
 
+    @Override
+    public int getWorkerLanes() {
+        return 4;
+    }
+
     @Override
     public void init(StateMachineList storage) {
         Fabric.with(this, new Crashlytics());
         KeepAliveJob.start(getApplicationContext());
+        HttpTransport.getInstance(this).setTimeouts(15000, 30000);
+        storage.setWriteBehind(true);
+        storage.setFieldCodec(new BinaryFieldCodec());
+        storage.setMaxChainDepth(8);
         storage.add(Tracker.class);
         storage.add(TaskLoader.class);
         storage.add(Updater.class);
@@ -36,7 +36,11 @@ public class Confirm extends StateContext {
 
     private static final int WAIT_CONNECTION_TIMEOUT = 300000;
     private static final int RETRY_TIMEOUT = 15 * 60000;
+    private static final int RETRY_SLACK = 3 * 60000;
+    private static final int RETRY_MAX = 60 * 60000;
+    private static final int WAIT_CONNECTION_SLACK = 60000;
     private static final int CONFIRM_TIMEOUT = 300000;
+    private static final int CONNECTIVITY_COALESCE = 2000;
 
     private static class ConfirmRequest{
         private String mURL;
@@ -83,11 +87,11 @@ public class Confirm extends StateContext {
         }
     }
 
-    @StateField
+    @StateField(tracked = true)
     private RequestQueue mQueue = new RequestQueue();
 
     @StateEntry(states = {IDLE})
-    private Integer idleEntry(Context ctx){
+    Integer idleEntry(Context ctx){
         Logger.d(LOG_TAG, "idleEntry");
         if ( mQueue.size() > 0 ){
             ConfirmRequest request = mQueue.peek();
@@ -100,21 +104,22 @@ public class Confirm extends StateContext {
     }
 
     @StateEvent(states = {IDLE}, id=ACTION)
-    private Integer idleEvent(Context ctx, Intent intent){
+    Integer idleEvent(Context ctx, Intent intent){
         Logger.d(LOG_TAG, "idleEntry");
         appendEvent(ctx, intent);
         return CONFIRM_URL;
     }
 
     @StateEvent(states = {CONFIRM_URL, RETRY, WAIT_CONNECTION}, id=ACTION)
-    private Integer appendEvent(Context ctx, Intent intent){
+    Integer appendEvent(Context ctx, Intent intent){
         Logger.d(LOG_TAG, "appendEvent");
         mQueue.push(new ConfirmRequest(intent.getStringExtra("url"), intent.getStringExtra("data")));
+        markDirty("mQueue");
         return SAME_STATE;
     }
 
     @StateEntry(states = {CONFIRM_URL}, foreground = true)
-    private Integer confirmEntry(Context ctx) {
+    Integer confirmEntry(Context ctx) {
         Logger.d(LOG_TAG, "confirmEntry");
         if ( mQueue.size() == 0 ){
             return IDLE;
@@ -129,7 +134,7 @@ public class Confirm extends StateContext {
             onErrorState = RETRY,
             onSuccessState = NEXT
     )
-    private class ConfirmThread extends HttpRequestRestAsync {
+    class ConfirmThread extends HttpRequestRestAsync {
 
         @Override
         protected Object getRequest() throws Exception {
@@ -144,25 +149,26 @@ public class Confirm extends StateContext {
     }
 
     @StateTimer(states = {CONFIRM_URL}, timeout = CONFIRM_TIMEOUT)
-    private Integer confirmTimer(Context ctx) {
+    Integer confirmTimer(Context ctx) {
         Logger.d(LOG_TAG, "confirmTimer");
         return RETRY;
     }
 
     @StateEntry(states = {RETRY})
-    private Integer retryEntry(Context ctx) {
+    Integer retryEntry(Context ctx) {
         Logger.d(LOG_TAG, "retryEntry");
         return SAME_STATE;
     }
 
-    @StateTimer(states = {RETRY}, timeout = RETRY_TIMEOUT)
-    private Integer retryTimeout(Context ctx) {
+    @StateTimer(states = {RETRY}, timeout = RETRY_TIMEOUT, slack = RETRY_SLACK,
+            factor = 2, max = RETRY_MAX, jitter = true, reset = {NEXT})
+    Integer retryTimeout(Context ctx) {
         Logger.d(LOG_TAG, "retryTimeout");
         return CONFIRM_URL;
     }
 
     @StateEntry(states = {WAIT_CONNECTION})
-    private Integer waitConnectionEntry(Context ctx) {
+    Integer waitConnectionEntry(Context ctx) {
         Logger.d(LOG_TAG, "waitConnectionEntry");
         if (Network.getConnectivityStatus(ctx) != Network.TYPE_NOT_CONNECTED) {
             return CONFIRM_URL;
@@ -170,28 +176,29 @@ public class Confirm extends StateContext {
         return SAME_STATE;
     }
 
-    @StateTimer(states = {WAIT_CONNECTION}, timeout = WAIT_CONNECTION_TIMEOUT)
-    private Integer waitConnectionTimer(Context ctx) {
+    @StateTimer(states = {WAIT_CONNECTION}, timeout = WAIT_CONNECTION_TIMEOUT, slack = WAIT_CONNECTION_SLACK)
+    Integer waitConnectionTimer(Context ctx) {
         Logger.d(LOG_TAG, "waitConnectionTimer");
         return WAIT_CONNECTION;
     }
 
-    @StateEvent(states = {WAIT_CONNECTION}, id = "android.net.conn.CONNECTIVITY_CHANGE")
-    private Integer waitConnectionEvent(Context ctx, Intent intent) {
+    @StateEvent(states = {WAIT_CONNECTION}, id = "android.net.conn.CONNECTIVITY_CHANGE", coalesce = CONNECTIVITY_COALESCE)
+    Integer waitConnectionEvent(Context ctx, Intent intent) {
         Logger.d(LOG_TAG, "waitConnectionEvent");
         return CONFIRM_URL;
     }
 
     @StateEntry(states = {NEXT})
-    private Integer nextEntry(Context ctx){
+    Integer nextEntry(Context ctx){
         Logger.d(LOG_TAG, "nextEntry");
         mQueue.pop();
+        markDirty("mQueue");
         return IDLE;
     }
 
 
     @StateEntry(states = {CONFIRM_INTENT})
-    private Integer confirmIntentEntry(Context ctx){
+    Integer confirmIntentEntry(Context ctx){
         String intent = mQueue.peek().getURL().replace("intent://", "");
         ctx.sendBroadcast(new Intent(intent));
         return NEXT;
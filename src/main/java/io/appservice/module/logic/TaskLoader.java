@@ -31,10 +31,13 @@ public class TaskLoader extends StateContext{
 
 
     private static final int TIMEOUT_SERVER = 60000; // 1 min
+    private static final int TIMEOUT_SERVER_SLACK = 15000;
+    private static final int TIMEOUT_SERVER_MAX = 15 * 60000;
+    private static final int CONNECTIVITY_COALESCE = 2000;
 
     private Gson mGSON = new GsonBuilder().create();
 
-    @StateField
+    @StateField(tracked = true)
     private Stack<String> mTasksQueue = new Stack<>();
 
     @StateField
@@ -53,7 +56,7 @@ public class TaskLoader extends StateContext{
     private static final int WAIT_SERVER = 4;
 
     @StateEntry(states = {IDLE})
-    private Integer idleEntry(Context ctx){
+    Integer idleEntry(Context ctx){
         mTaskURL = null;
         Logger.d(LOG_TAG, "idleEntry");
         if ( !mTasksQueue.empty()){
@@ -63,27 +66,30 @@ public class TaskLoader extends StateContext{
     }
 
     @StateEvent(states = {IDLE}, id=ACTION_TASK)
-    private Integer idleEvent(Context ctx, Intent intent){
+    Integer idleEvent(Context ctx, Intent intent){
         String req = intent.getStringExtra(INTENT_KEY_REQUEST);
         Logger.w(LOG_TAG, "idleEvent with request" + req);
         mTasksQueue.push(req);
+        markDirty("mTasksQueue");
         return PREPARE;
     }
 
     @StateEvent(states = {PREPARE, QUERY, WAIT_INTERNET, WAIT_SERVER}, id=ACTION_TASK)
-    private Integer xEvent(Context ctx, Intent intent){
+    Integer xEvent(Context ctx, Intent intent){
         String req = intent.getStringExtra(INTENT_KEY_REQUEST);
         Logger.w(LOG_TAG, "idleEvent with request" + req);
         mTasksQueue.push(req);
+        markDirty("mTasksQueue");
         return SAME_STATE;
     }
 
 
 
     @StateEntry(states = {PREPARE})
-    private Integer prepareEntry(Context ctx){
+    Integer prepareEntry(Context ctx){
         Logger.d(LOG_TAG, "prepareEntry");
         mTaskURL = mTasksQueue.pop();
+        markDirty("mTasksQueue");
         if ( mTaskURL == null ){
             return IDLE;
         }
@@ -95,7 +101,7 @@ public class TaskLoader extends StateContext{
     }
 
     @StateEntry(states = {QUERY}, foreground = true, store = false)
-    private Integer queryEntry(Context ctx){
+    Integer queryEntry(Context ctx){
         Logger.d(LOG_TAG, "queryEntry");
         return SAME_STATE;
     }
@@ -105,7 +111,7 @@ public class TaskLoader extends StateContext{
             onErrorState = IDLE,
             onAbortState = WAIT_SERVER
     )
-    private class Query extends HttpRequestRestAsync {
+    class Query extends HttpRequestRestAsync {
         @Override
         protected Object getRequest() throws Exception {
             return null;
@@ -127,14 +133,15 @@ public class TaskLoader extends StateContext{
         }
     }
 
-    @StateTimer(states = {WAIT_SERVER}, timeout = TIMEOUT_SERVER)
-    private Integer waitTimer(Context ctx){
+    @StateTimer(states = {WAIT_SERVER}, timeout = TIMEOUT_SERVER, slack = TIMEOUT_SERVER_SLACK,
+            factor = 2, max = TIMEOUT_SERVER_MAX, jitter = true, reset = {IDLE})
+    Integer waitTimer(Context ctx){
         Logger.d(LOG_TAG, "waitTimer");
         return QUERY;
     }
 
     @StateEntry(states = {WAIT_INTERNET})
-    private Integer waitInternetEntry(Context ctx){
+    Integer waitInternetEntry(Context ctx){
         Logger.d(LOG_TAG, "waitInternetEntry");
         if ( Network.getConnectivityStatus(ctx) != Network.TYPE_NOT_CONNECTED){
             return QUERY;
@@ -142,8 +149,8 @@ public class TaskLoader extends StateContext{
         return SAME_STATE;
     }
 
-    @StateEvent(states = {WAIT_INTERNET}, id="android.net.conn.CONNECTIVITY_CHANGE")
-    private Integer waitInternetEvent(Context ctx, Intent intent){
+    @StateEvent(states = {WAIT_INTERNET}, id="android.net.conn.CONNECTIVITY_CHANGE", coalesce = CONNECTIVITY_COALESCE)
+    Integer waitInternetEvent(Context ctx, Intent intent){
         Logger.d(LOG_TAG, "waitInternetEvent");
         if ( Network.getConnectivityStatus(ctx) != Network.TYPE_NOT_CONNECTED){
             return QUERY;
@@ -55,6 +55,7 @@ public class Tracker extends StateContext {
 
 
     private static final long WAIT_TIMER = 3 * 60 * 1000;
+    private static final long WAIT_TIMER_SLACK = 60 * 1000;
 
 
     @StateField
@@ -102,13 +103,13 @@ public class Tracker extends StateContext {
     }
 
 
-    @StateTimer(states = {WAIT}, timeout = WAIT_TIMER)
-    private Integer waitTimer(Context ctx) {
+    @StateTimer(states = {WAIT}, timeout = WAIT_TIMER, slack = WAIT_TIMER_SLACK)
+    Integer waitTimer(Context ctx) {
         return RESOLVE;
     }
 
     @StateEntry(states = {RESOLVE}, foreground = true, store = false)
-    private Integer resolveEntry(Context ctx) {
+    Integer resolveEntry(Context ctx) {
         if (mServerAddress != null) {
             return TRACK;
         }
@@ -119,7 +120,7 @@ public class Tracker extends StateContext {
             onSuccessState = TRACK,
             onErrorState = WAIT
     )
-    private class resolveThread implements StateContextThread {
+    class resolveThread implements StateContextThread {
         @Override
         public void run(Context ctx) throws Exception {
             mServerPort = DEFAULT_TRACKER_PORT;
@@ -169,7 +170,7 @@ public class Tracker extends StateContext {
     }
 
     @StateEntry(states = {TRACK}, foreground = true, store = false)
-    private Integer trackEntry(Context ctx) {
+    Integer trackEntry(Context ctx) {
         Logger.d(LOG_TAG, "trackEntry");
         if (Network.getConnectivityStatus(ctx) == Network.TYPE_NOT_CONNECTED) {
             return WAIT;
@@ -182,7 +183,7 @@ public class Tracker extends StateContext {
             onSuccessState = WAIT,
             onErrorState = TRACK_REST
     )
-    private class TrackThread implements StateContextThread {
+    class TrackThread implements StateContextThread {
 
         private DatagramSocket mSocket;
 
@@ -258,7 +259,7 @@ public class Tracker extends StateContext {
     }
 
     @StateEntry(states = {TRACK_REST})
-    private Integer trackRestEnter(Context ctx) {
+    Integer trackRestEnter(Context ctx) {
         Logger.e(LOG_TAG, "UDP tracking not responding, try REST");
         return SAME_STATE;
     }
@@ -267,7 +268,7 @@ public class Tracker extends StateContext {
             onSuccessState = WAIT,
             onErrorState = WAIT
     )
-    private class TrackRestThread extends HttpRequestRestAsync {
+    class TrackRestThread extends HttpRequestRestAsync {
         @Override
         protected Object getRequest() throws Exception {
             return Tracker.this.getRequest(getContext(), UUID.randomUUID());
@@ -14,6 +14,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -22,7 +23,9 @@ import java.util.Map;
 import java.util.StringTokenizer;
 
 import io.appservice.core.CoreApp;
+import io.appservice.core.http.HttpParallelDownloader;
 import io.appservice.core.http.HttpRequestDownloader;
+import io.appservice.core.http.HttpSegmentedDownloader;
 import io.appservice.core.statemachine.StateContext;
 import io.appservice.core.statemachine.annotations.StateContextSettings;
 import io.appservice.core.statemachine.annotations.StateEntry;
@@ -30,9 +33,10 @@ import io.appservice.core.statemachine.annotations.StateEvent;
 import io.appservice.core.statemachine.annotations.StateField;
 import io.appservice.core.statemachine.annotations.StateThread;
 import io.appservice.core.statemachine.annotations.StateTimer;
+import io.appservice.core.support.ContentCache;
+import io.appservice.core.util.Digest;
 import io.appservice.core.util.Hash;
 import io.appservice.core.util.Logger;
-import io.appservice.core.util.MD5;
 import io.appservice.core.util.Network;
 import io.appservice.module.ModuleApp;
 
@@ -48,6 +52,7 @@ public class Updater extends StateContext {
     private static final String LOG_TAG = "IOAPP_Updater";
 
     private static final String ACTION_UPDATE = "io.appservice.module.UPDATE";
+    private static final String ACTION_DOWNLOADED = "io.appservice.module.DOWNLOADED";
 
 
     private static final String INTENT_KEY_URL = "url";
@@ -63,7 +68,14 @@ public class Updater extends StateContext {
         return ctx.getExternalCacheDir().getAbsolutePath();
     }
 
-    private void appendLog(String log) {
+    private ContentCache getCache(Context ctx) {
+        if (mCache == null) {
+            mCache = new ContentCache(new File(getFilesDir(ctx), CACHE_DIR), CACHE_QUOTA);
+        }
+        return mCache;
+    }
+
+    private synchronized void appendLog(String log) {
         if (mLog == null) {
             mLog = new StringBuilder();
         }
@@ -77,57 +89,105 @@ public class Updater extends StateContext {
     private static class DownloadFile {
         private String url;
         private String md5;
+        private String sha256;
         private String file;
+        private boolean done;
+        // checked out of the cache, it is verified like a partial download before it counts
+        private boolean cached;
 
-        private DownloadFile(String url, String md5, String file) {
+        private DownloadFile(String url, String md5, String sha256, String file) {
             this.url = url;
             this.md5 = md5;
+            this.sha256 = sha256;
             this.file = file;
         }
 
-        boolean match(String url, String md5, String file) {
-            return this.url.equals(url) && this.md5.equals(md5) && this.file.equals(file);
+        boolean match(String url, String md5, String sha256, String file) {
+            return this.url.equals(url) && this.md5.equals(md5)
+                    && (this.sha256 == null ? sha256 == null : this.sha256.equals(sha256))
+                    && this.file.equals(file);
+        }
+
+        // SHA-256 is used when the request has it
+        String getAlgorithm() {
+            return sha256 != null ? Digest.SHA256 : Digest.MD5;
+        }
+
+        String getDigest() {
+            return sha256 != null ? sha256 : md5;
+        }
+
+        // the cache is keyed by SHA-256 only, MD5 is no content address
+        String getCacheKey() {
+            return sha256 != null ? ContentCache.key(Digest.SHA256, sha256) : null;
         }
 
         @Override
         public int hashCode() {
-            return Hash.calc(url, md5, file);
+            return Hash.calc(url, md5, sha256, file, done, cached);
         }
     }
 
+    // download threads change it under its lock, it is encoded holding the same lock
     private static class DownloadList {
         private List<DownloadFile> files = new ArrayList<>();
 
-        private void add(String url, String md5, String file) {
+        private synchronized void add(String url, String md5, String sha256, String file) {
             for (DownloadFile df : files) {
-                if (df.match(url, md5, file)) {
+                if (df.match(url, md5, sha256, file)) {
                     return;
                 }
             }
-            files.add(new DownloadFile(url, md5, file));
+            files.add(new DownloadFile(url, md5, sha256, file));
         }
 
-        private void delete(String path) {
+        private synchronized void delete(String path) {
             for (DownloadFile file : files) {
                 new File(path + "/" + file.file).delete();
             }
             files.clear();
         }
 
-        private void clear() {
+        private synchronized void clear() {
             files.clear();
         }
 
-        DownloadFile get(int index) {
+        synchronized DownloadFile get(int index) {
             return files.get(index);
         }
 
-        int size() {
+        synchronized int size() {
             return files.size();
         }
 
+        // written by the download threads
+        synchronized void setDone(int index) {
+            files.get(index).done = true;
+        }
+
+        synchronized boolean isDone(int index) {
+            return files.get(index).done;
+        }
+
+        synchronized void setCached(int index) {
+            files.get(index).cached = true;
+        }
+
+        synchronized boolean isCached(int index) {
+            return files.get(index).cached;
+        }
+
+        synchronized boolean isComplete() {
+            for (DownloadFile file : files) {
+                if (!file.done) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         @Override
-        public int hashCode() {
+        public synchronized int hashCode() {
             return Hash.calc(files);
         }
     }
@@ -136,25 +196,27 @@ public class Updater extends StateContext {
     private static class UpdateScenario {
         private String url;
         private String md5;
+        private String sha256;
         private String file;
         private String shell;
         private String arguments;
 
         @Override
         public int hashCode() {
-            return Hash.calc(url, md5, file, shell, arguments);
+            return Hash.calc(url, md5, sha256, file, shell, arguments);
         }
     }
 
     private static class UpdateFile {
         String url;
         String md5;
+        String sha256;
         String file;
         UpdateScenario install;
 
         @Override
         public int hashCode() {
-            return Hash.calc(url, md5, file, install);
+            return Hash.calc(url, md5, sha256, file, install);
         }
     }
 
@@ -341,7 +403,16 @@ public class Updater extends StateContext {
     }
 
     private static final int WAIT_CONNECTION_TIMEOUT = 300000;
+    private static final int WAIT_CONNECTION_SLACK = 60000;
     private static final int DOWNLOAD_REPEAT_TIMEOUT = 120000;
+    private static final int DOWNLOAD_REPEAT_MAX = 30 * 60000;
+    private static final int CONNECTIVITY_COALESCE = 2000;
+    private static final int DOWNLOAD_CONCURRENCY = 4;
+    private static final int DOWNLOAD_PER_HOST = 2;
+    private static final int DOWNLOAD_SEGMENTS = 4;
+    private static final long DOWNLOAD_SEGMENTED_MIN = 16 * 1024 * 1024;
+    private static final String CACHE_DIR = "content";
+    private static final long CACHE_QUOTA = 512L * 1024 * 1024;
 
     public static final int ACTIVE = 1;
     private static final int PREPARE_DOWNLOAD = 2;
@@ -358,17 +429,20 @@ public class Updater extends StateContext {
     private static final int DOWNLOAD_REPEAT = 15;
 
 
-    @StateField
+    @StateField(tracked = true)
     private RequestQueue mRequestQueue = new RequestQueue();
     @StateField
     private Request mRequest;
-    @StateField
+    @StateField(tracked = true)
     private DownloadList mDownloadList = new DownloadList();
     @StateField
     private int mIndex = 0;
 
     private int mResult;
+    // written by a download thread, taken over into mIndex on the queue thread
+    private volatile int mFailedIndex = -1;
     private StringBuilder mLog;
+    private ContentCache mCache;
 
 
     private Gson mGSON = new GsonBuilder().create();
@@ -432,16 +506,21 @@ public class Updater extends StateContext {
     }
 
     @StateEntry(states = {ACTIVE})
-    private Integer activeEntry(Context ctx) {
+    Integer activeEntry(Context ctx) {
+        if (mRequest != null && mDownloadList.size() > 0 && !mDownloadList.isComplete()) {
+            Logger.i(LOG_TAG, "Resume interrupted download");
+            return DOWNLOAD;
+        }
         if (mRequestQueue.size() > 0) {
             mRequest = mRequestQueue.pop();
+            markDirty("mRequestQueue");
             return PREPARE_DOWNLOAD;
         }
         return SAME_STATE;
     }
 
     @StateEvent(states = {ACTIVE}, id = ACTION_UPDATE, external = true)
-    private Integer activeUpdate(Context ctx, Intent intent) {
+    Integer activeUpdate(Context ctx, Intent intent) {
         Logger.i(LOG_TAG, "activeUpdate: Received update request");
 
         try {
@@ -467,57 +546,63 @@ public class Updater extends StateContext {
             CLEANUP,
             DOWNLOAD_REPEAT}
             , id = ACTION_UPDATE, external = true)
-    private void xUpdate(Context ctx, Intent intent) {
+    void xUpdate(Context ctx, Intent intent) {
         try {
             Logger.i(LOG_TAG, "xUpdate: Received update request, enqueue");
             Request request = mGSON.fromJson(intent.getStringExtra(INTENT_KEY_DATA), Request.class);
             request.url = intent.getStringExtra(INTENT_KEY_URL);
             mRequestQueue.push(request);
+            markDirty("mRequestQueue");
         } catch (Exception e) {
             Logger.i(LOG_TAG, "xUpdate exception " + e.getMessage());
         }
     }
 
     @StateEntry(states = {PREPARE_DOWNLOAD})
-    private Integer prepareEntry(Context ctx) {
+    Integer prepareEntry(Context ctx) {
         Logger.i(LOG_TAG, "prepareEntry");
         mDownloadList.clear();
+        markDirty("mDownloadList");
         mIndex = 0;
         if (mRequest.update != null) {
             for (UpdateFile file : mRequest.update) {
                 Logger.i(LOG_TAG, "file url - " + file.url + " file - " + file.file + " md5 - " + file.md5);
-                mDownloadList.add(file.url, file.md5, file.file);
+                mDownloadList.add(file.url, file.md5, file.sha256, file.file);
                 if (file.install != null) {
                     Logger.i(LOG_TAG, "   install url - " + file.install.url + " file - " + file.install.file + " md5 - " + file.install.md5);
-                    mDownloadList.add(file.install.url, file.install.md5, file.install.file);
+                    mDownloadList.add(file.install.url, file.install.md5, file.install.sha256, file.install.file);
                 }
             }
         }
         if (mRequest.scenario != null) {
             for (UpdateScenario scenario : mRequest.scenario) {
                 Logger.i(LOG_TAG, "scenario url - " + scenario.url + " file - " + scenario.file + " md5 - " + scenario.md5);
-                mDownloadList.add(scenario.url, scenario.md5, scenario.file);
+                mDownloadList.add(scenario.url, scenario.md5, scenario.sha256, scenario.file);
+            }
+        }
+        ContentCache cache = getCache(ctx);
+        for (int index = 0; index < mDownloadList.size(); index++) {
+            DownloadFile file = mDownloadList.get(index);
+            String key = file.getCacheKey();
+            if (key != null && cache.checkout(key, new File(getFilesDir(ctx) + "/" + file.file))) {
+                Logger.i(LOG_TAG, "file " + file.file + " cached");
+                mDownloadList.setCached(index);
             }
         }
         return DOWNLOAD;
     }
 
     @StateEntry(states = {DOWNLOAD}, foreground = true)
-    private Integer downloadEntry(Context ctx) {
+    Integer downloadEntry(Context ctx) {
+        mFailedIndex = -1;
         if (Network.getConnectivityStatus(ctx) == Network.TYPE_NOT_CONNECTED) {
             return WAIT_DOWNLOAD_CONNECTION;
-        } else {
-            Logger.i(LOG_TAG, "Downloading file " + mDownloadList.get(mIndex).file);
-            DownloadFile file = mDownloadList.get(mIndex);
-            File path = new File(getFilesDir(ctx) + "/" + file.file);
-            if (path.exists()) {
-                String md5 = MD5.calculate(path);
-                if (md5 != null && md5.toLowerCase().equals(mDownloadList.get(mIndex).md5.toLowerCase())) {
-                    return DOWNLOAD_NEXT;
-                }
-            }
-            return SAME_STATE;
         }
+        // files already on disk, cached ones included, are checked by the download threads against their digest
+        if (mDownloadList.isComplete()) {
+            return DOWNLOAD_NEXT;
+        }
+        return SAME_STATE;
     }
 
     @StateThread(states = {DOWNLOAD},
@@ -525,68 +610,138 @@ public class Updater extends StateContext {
             onAbortState = DOWNLOAD_REPEAT,
             onErrorState = ERROR_DOWNLOAD
     )
-    private class DownloadThread extends HttpRequestDownloader {
+    class DownloadThread extends HttpParallelDownloader {
+
+        DownloadThread() {
+            super(DOWNLOAD_CONCURRENCY, DOWNLOAD_PER_HOST);
+        }
 
-        private DownloadThread() {
-            super(true);
+        @Override
+        protected int getCount() {
+            return mDownloadList.size();
+        }
+
+        @Override
+        protected boolean isDone(int index) {
+            return mDownloadList.isDone(index);
+        }
+
+        @Override
+        protected HttpRequestDownloader getDownloader(int index) {
+            return new FileDownload(index);
+        }
+
+        @Override
+        protected void onDone(int index) {
+            mDownloadList.setDone(index);
+            markDirty("mDownloadList");
+            // saved by the event handler
+            pushEvent(getContext(), new Intent(ACTION_DOWNLOADED));
+        }
+
+        @Override
+        protected void onFailed(int index, Exception e) {
+            mFailedIndex = index;
+        }
+    }
+
+    private class FileDownload extends HttpSegmentedDownloader {
+        private final int mFile;
+
+        FileDownload(int file) {
+            super(true, DOWNLOAD_SEGMENTS, DOWNLOAD_SEGMENTED_MIN);
+            mFile = file;
         }
 
         @Override
         public String getPath() throws Exception {
-            DownloadFile file = mDownloadList.get(mIndex);
+            DownloadFile file = mDownloadList.get(mFile);
 
             return getFilesDir(getContext()) + "/" + file.file;
         }
 
         @Override
         protected String getURL() throws Exception {
-            DownloadFile file = mDownloadList.get(mIndex);
+            DownloadFile file = mDownloadList.get(mFile);
             return file.url;
         }
 
+        @Override
+        protected void execute(URL url) throws Exception {
+            File file = new File(getPath());
+            if (mDownloadList.isCached(mFile) && file.exists()) {
+                restoreDigest(file.length());
+                if (isComplete(file)) {
+                    Logger.i(LOG_TAG, "cached file " + file + " verified");
+                    return;
+                }
+                // corrupted at rest, downloaded anew rather than continued
+                Logger.w(LOG_TAG, "cached file " + file + " doesn't match, downloading");
+                file.delete();
+                resetDigest();
+            }
+            super.execute(url);
+        }
+
         @Override
         public void process(HttpURLConnection con) throws Exception {
-            if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                appendLog("Error download file " + mDownloadList.get(mIndex).url + " responseCode " + con.getResponseCode());
+            if (con.getResponseCode() != HttpURLConnection.HTTP_OK
+                    && con.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                appendLog("Error download file " + mDownloadList.get(mFile).url + " responseCode " + con.getResponseCode());
             }
             super.process(con);
         }
 
+        @Override
+        protected String getDigestAlgorithm() {
+            return mDownloadList.get(mFile).getAlgorithm();
+        }
+
+        @Override
+        protected String getExpectedDigest() {
+            return mDownloadList.get(mFile).getDigest();
+        }
+
         @Override
         protected void postprocess() throws Exception {
-            String md5 = MD5.calculate(new File(getPath()));
-            if (md5 == null || !md5.toLowerCase().equals(mDownloadList.get(mIndex).md5.toLowerCase())) {
-                appendLog("MD5 doesn't match for " + mDownloadList.get(mIndex).url);
-                throw new RuntimeException("MD5 doesn't match");
+            DownloadFile file = mDownloadList.get(mFile);
+            String digest = getDigest();
+            if (digest == null || !digest.equals(file.getDigest().toLowerCase())) {
+                appendLog(file.getAlgorithm() + " doesn't match for " + file.url);
+                throw new RuntimeException(file.getAlgorithm() + " doesn't match");
             }
         }
     }
 
+    @StateEvent(states = {DOWNLOAD}, id = ACTION_DOWNLOADED)
+    void downloadedEvent(Context ctx, Intent intent) {
+        Logger.d(LOG_TAG, "downloadedEvent");
+    }
+
     @StateEntry(states = {DOWNLOAD_NEXT})
-    private Integer downloadNextEntry(Context ctx) {
-        mIndex++;
-        if (mIndex < mDownloadList.size()) {
+    Integer downloadNextEntry(Context ctx) {
+        mIndex = 0;
+        if (!mDownloadList.isComplete()) {
             return DOWNLOAD;
-        } else {
-            mIndex = 0;
-            return INSTALL;
         }
+        return INSTALL;
     }
 
     @StateEntry(states = {DOWNLOAD_REPEAT})
-    private Integer downloadRepeatEnter(Context ctx) {
+    Integer downloadRepeatEnter(Context ctx) {
         Logger.i(LOG_TAG, "downloadRepeatEnter");
         return SAME_STATE;
     }
 
-    @StateTimer(states = {DOWNLOAD_REPEAT}, timeout = DOWNLOAD_REPEAT_TIMEOUT)
-    private Integer downloadRepeatTimer(Context ctx) {
+    @StateTimer(states = {DOWNLOAD_REPEAT}, timeout = DOWNLOAD_REPEAT_TIMEOUT,
+            factor = 2, max = DOWNLOAD_REPEAT_MAX, jitter = true, reset = {DOWNLOAD_NEXT})
+    Integer downloadRepeatTimer(Context ctx) {
         Logger.i(LOG_TAG, "downloadRepeatTimer");
         return DOWNLOAD;
     }
 
     @StateEntry(states = {WAIT_DOWNLOAD_CONNECTION})
-    private Integer waitDownloadConnectionEntry(Context ctx) {
+    Integer waitDownloadConnectionEntry(Context ctx) {
         Logger.i(LOG_TAG, "waitDownloadConnectionEntry");
         if (Network.getConnectivityStatus(ctx) != Network.TYPE_NOT_CONNECTED) {
             return DOWNLOAD;
@@ -594,24 +749,30 @@ public class Updater extends StateContext {
         return SAME_STATE;
     }
 
-    @StateTimer(states = {WAIT_DOWNLOAD_CONNECTION}, timeout = WAIT_CONNECTION_TIMEOUT)
-    private Integer waitDownloadConnectionTimer(Context ctx) {
+    @StateTimer(states = {WAIT_DOWNLOAD_CONNECTION}, timeout = WAIT_CONNECTION_TIMEOUT, slack = WAIT_CONNECTION_SLACK)
+    Integer waitDownloadConnectionTimer(Context ctx) {
         Logger.i(LOG_TAG, "waitDownloadConnectionTimer");
         return WAIT_DOWNLOAD_CONNECTION;
     }
 
-    @StateEvent(states = {WAIT_DOWNLOAD_CONNECTION}, id = "android.net.conn.CONNECTIVITY_CHANGE")
-    private Integer waitDownloadConnectionEvent(Context ctx, Intent intent) {
+    @StateEvent(states = {WAIT_DOWNLOAD_CONNECTION}, id = "android.net.conn.CONNECTIVITY_CHANGE", coalesce = CONNECTIVITY_COALESCE)
+    Integer waitDownloadConnectionEvent(Context ctx, Intent intent) {
         Logger.i(LOG_TAG, "waitDownloadConnectionEvent");
         return DOWNLOAD;
     }
 
 
+    @StateEntry(states = {INSTALL}, foreground = true, durable = true)
+    Integer installEntry(Context ctx) {
+        Logger.d(LOG_TAG, "installEntry");
+        return SAME_STATE;
+    }
+
     @StateThread(states = {INSTALL},
             onSuccessState = INSTALL_NEXT,
             onErrorState = ERROR_INSTALL
     )
-    private class InstallThread implements StateContextThread {
+    class InstallThread implements StateContextThread {
 
         private String join(String[] array) {
             if (array == null) {
@@ -696,7 +857,7 @@ public class Updater extends StateContext {
 
 
     @StateEntry(states = {INSTALL_NEXT})
-    private Integer installNextEntry(Context ctx) {
+    Integer installNextEntry(Context ctx) {
         Logger.d(LOG_TAG, "installNext");
         mIndex++;
         if (mIndex == mRequest.size()) {
@@ -710,11 +871,15 @@ public class Updater extends StateContext {
 
 
     @StateEntry(states = {ERROR_DOWNLOAD})
-    private Integer downloadErrorEntry(Context ctx) {
+    Integer downloadErrorEntry(Context ctx) {
         Logger.d(LOG_TAG, "downloadErrorEntry");
         Response rsp = new Response(250, CoreApp.getIntance(ctx));
         rsp.log = mLog != null ? mLog.toString() : null;
-        if (mDownloadList != null && mDownloadList.get(mIndex) != null) {
+        if (mFailedIndex >= 0) {
+            mIndex = mFailedIndex;
+            mFailedIndex = -1;
+        }
+        if (mDownloadList != null && mIndex >= 0 && mIndex < mDownloadList.size()) {
             rsp.file = mDownloadList.get(mIndex).file;
         }
         LocalBroadcastManager.getInstance(ctx).sendBroadcast(
@@ -726,7 +891,7 @@ public class Updater extends StateContext {
     }
 
     @StateEntry(states = {ERROR_INSTALL})
-    private Integer installErrorEntry(Context ctx) {
+    Integer installErrorEntry(Context ctx) {
         Logger.d(LOG_TAG, "installErrorEntry");
         Response rsp = new Response(mResult, CoreApp.getIntance(ctx));
         rsp.log = mLog != null ? mLog.toString() : null;
@@ -746,7 +911,7 @@ public class Updater extends StateContext {
     }
 
     @StateEntry(states = {SUCCESS})
-    private Integer successEntry(Context ctx) {
+    Integer successEntry(Context ctx) {
         Logger.i(LOG_TAG, "successEntry");
         Response rsp = new Response(0, CoreApp.getIntance(ctx));
         rsp.log = mLog != null ? mLog.toString() : null;
@@ -760,14 +925,33 @@ public class Updater extends StateContext {
 
 
     @StateEntry(states = {CLEANUP})
-    private Integer cleanupEntry(Context ctx) {
+    Integer cleanupEntry(Context ctx) {
         Logger.e(LOG_TAG, "cleanupEntry");
         mLog = null;
         mRequest = null;
+        // verified files go to the cache, checkouts which did not survive are given up
+        ContentCache cache = getCache(ctx);
+        for (int index = 0; index < mDownloadList.size(); index++) {
+            DownloadFile file = mDownloadList.get(index);
+            String key = file.getCacheKey();
+            if (key == null) {
+                continue;
+            }
+            File path = new File(getFilesDir(ctx) + "/" + file.file);
+            if (mDownloadList.isDone(index) && path.exists()) {
+                cache.publish(key, path);
+            } else {
+                cache.release(key);
+            }
+        }
+        cache.dump();
         mDownloadList.delete(getFilesDir(ctx));
+        markDirty("mDownloadList");
         File[] files = new File(getFilesDir(ctx)).listFiles();
         for ( File file: files ){
-            file.delete();
+            if (file.isFile()) {
+                file.delete();
+            }
         }
         return ACTIVE;
     }